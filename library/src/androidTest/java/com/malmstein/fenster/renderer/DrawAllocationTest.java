@@ -0,0 +1,195 @@
+package com.malmstein.fenster.renderer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.SurfaceTexture;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.view.Surface;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that drawing a video frame does not allocate on the Java heap once the renderer is warmed up.
+ *
+ * Frames are posted from the test thread into the video texture, and the allocations of the rendering thread are
+ * counted around each {@link TextureSurfaceRenderer#drawFrame()}, so the allocations of the producer do not count.
+ */
+public class DrawAllocationTest extends AndroidTestCase {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int WARMUP_FRAMES = 30;
+    private static final int MEASURED_FRAMES = 120;
+    private static final long TIMEOUT_MS = 5000;
+
+    public void testVideoTextureRendererDrawsWithoutAllocating() throws InterruptedException {
+        SurfaceTexture output = createOutput();
+        AllocationCounter counter = new AllocationCounter();
+        CountingVideoRenderer renderer = new CountingVideoRenderer(getContext(), output, counter);
+        try {
+            assertDrawsWithoutAllocating(renderer, counter);
+        } finally {
+            renderer.release();
+            output.release();
+        }
+    }
+
+    public void testMoviePlayerTextureRendererDrawsWithoutAllocating() throws InterruptedException {
+        SurfaceTexture output = createOutput();
+        AllocationCounter counter = new AllocationCounter();
+        CountingMovieRenderer renderer = new CountingMovieRenderer(getContext(), output, counter);
+        try {
+            assertDrawsWithoutAllocating(renderer, counter);
+        } finally {
+            renderer.release();
+            output.release();
+        }
+    }
+
+    private void assertDrawsWithoutAllocating(VideoTextureRenderer renderer, AllocationCounter counter)
+            throws InterruptedException {
+        renderer.start();
+        assertTrue("GL not ready", renderer.awaitGLReady(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        renderer.setSize(WIDTH, HEIGHT, WIDTH, HEIGHT);
+        SurfaceTexture videoTexture = renderer.getVideoTexture();
+        videoTexture.setDefaultBufferSize(WIDTH, HEIGHT);
+        Surface input = new Surface(videoTexture);
+        try {
+            postFrames(input, counter, WARMUP_FRAMES);
+            counter.start();
+            postFrames(input, counter, MEASURED_FRAMES);
+            counter.stop();
+        } finally {
+            input.release();
+        }
+        assertTrue("No frame drawn", counter.getMeasuredFrames() > 0);
+        assertEquals("Bytes allocated over " + counter.getMeasuredFrames() + " frames", 0,
+                counter.getAllocatedBytes());
+    }
+
+    private static SurfaceTexture createOutput() {
+        // Only the producer side is used, as the window surface of the renderer
+        SurfaceTexture output = new SurfaceTexture(0);
+        output.setDefaultBufferSize(WIDTH, HEIGHT);
+        return output;
+    }
+
+    private static void postFrames(Surface input, AllocationCounter counter, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            long drawn = counter.getDrawnFrames();
+            Canvas canvas = input.lockCanvas(null);
+            canvas.drawColor(i % 2 == 0 ? Color.RED : Color.BLUE);
+            input.unlockCanvasAndPost(canvas);
+            assertTrue("Frame " + i + " not drawn", counter.awaitDrawnFrames(drawn + 1, TIMEOUT_MS));
+        }
+    }
+
+    /**
+     * Counts the bytes allocated by the rendering thread while drawing frames with a new video frame.
+     */
+    private static class AllocationCounter {
+
+        private boolean counting;
+        private long drawnFrames;
+        private long measuredFrames;
+        private long allocatedBytes;
+        private long latchedFrameCount;
+
+        synchronized void start() {
+            Debug.startAllocCounting();
+            counting = true;
+        }
+
+        synchronized void stop() {
+            counting = false;
+            Debug.stopAllocCounting();
+        }
+
+        synchronized boolean isCounting() {
+            return counting;
+        }
+
+        /**
+         * Called on the rendering thread after each frame.
+         */
+        synchronized void onFrameDrawn(long latchedFrameCount, long allocatedBytes, boolean counted) {
+            if (latchedFrameCount == this.latchedFrameCount) {
+                // Redraw without a new video frame
+                return;
+            }
+            this.latchedFrameCount = latchedFrameCount;
+            drawnFrames++;
+            if (counted) {
+                measuredFrames++;
+                this.allocatedBytes += allocatedBytes;
+            }
+            notifyAll();
+        }
+
+        synchronized boolean awaitDrawnFrames(long count, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (drawnFrames < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized long getDrawnFrames() {
+            return drawnFrames;
+        }
+
+        synchronized long getMeasuredFrames() {
+            return measuredFrames;
+        }
+
+        synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    private static class CountingVideoRenderer extends VideoTextureRenderer {
+
+        private final AllocationCounter counter;
+
+        CountingVideoRenderer(Context context, SurfaceTexture output, AllocationCounter counter) {
+            super(context, output, WIDTH, HEIGHT, null);
+            this.counter = counter;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void drawFrame() {
+            boolean counted = counter.isCounting();
+            long before = Debug.getThreadAllocSize();
+            super.drawFrame();
+            long allocated = Debug.getThreadAllocSize() - before;
+            counter.onFrameDrawn(getLatchedFrameCount(), allocated, counted);
+        }
+    }
+
+    private static class CountingMovieRenderer extends MoviePlayerTextureRenderer {
+
+        private final AllocationCounter counter;
+
+        CountingMovieRenderer(Context context, SurfaceTexture output, AllocationCounter counter) {
+            super(context, output, WIDTH, HEIGHT, null);
+            this.counter = counter;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void drawFrame() {
+            boolean counted = counter.isCounting();
+            long before = Debug.getThreadAllocSize();
+            super.drawFrame();
+            long allocated = Debug.getThreadAllocSize() - before;
+            counter.onFrameDrawn(getLatchedFrameCount(), allocated, counted);
+        }
+    }
+}
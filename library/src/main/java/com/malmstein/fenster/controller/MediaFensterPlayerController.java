@@ -22,6 +22,9 @@ import com.malmstein.fenster.gestures.FensterGestureControllerView;
 import com.malmstein.fenster.play.FensterPlayer;
 import com.malmstein.fenster.seekbar.BrightnessSeekBar;
 import com.malmstein.fenster.seekbar.VolumeSeekBar;
+import com.malmstein.fenster.thumbnail.Thumbnail;
+import com.malmstein.fenster.thumbnail.ThumbnailEngine;
+import com.malmstein.fenster.thumbnail.ThumbnailPreviewView;
 
 import java.util.Formatter;
 import java.util.Locale;
@@ -96,6 +99,14 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
     private VolumeSeekBar mVolume;
     private TextView mEndTime;
     private TextView mCurrentTime;
+    private View mPreviewArea;
+    private ThumbnailPreviewView mPreviewImage;
+    private TextView mPreviewTime;
+    private ThumbnailEngine mThumbnailEngine;
+    private final Thumbnail mPreviewThumbnail = new Thumbnail();
+    // True while the seekbar is dragged with a thumbnail engine set, the player only seeks once dragging stops
+    private boolean mPreviewing;
+    private long mPreviewPosition;
     // There are two scenarios that can trigger the seekbar listener to trigger:
     //
     // The first is the user using the touchpad to adjust the posititon of the
@@ -107,12 +118,20 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
     // The second scenario involves the user operating the scroll ball, in this
     // case there WON'T BE onStartTrackingTouch/onStopTrackingTouch notifications,
     // we will simply apply the updated position without suspending regular updates.
+    //
+    // With a thumbnail engine the first scenario does not seek the player until
+    // onStopTrackingTouch, a preview of the position is shown above the seekbar instead.
     private final SeekBar.OnSeekBarChangeListener mSeekListener = new SeekBar.OnSeekBarChangeListener() {
         public void onStartTrackingTouch(final SeekBar bar) {
             show(3600000);
 
             mDragging = true;
 
+            if (mThumbnailEngine != null) {
+                mPreviewing = true;
+                updatePreview(positionForProgress(bar.getProgress()));
+            }
+
             // By removing these pending progress messages we make sure
             // that a) we won't update the progress while the user adjusts
             // the seekbar and b) once the user is done dragging the thumb
@@ -128,15 +147,23 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
                 return;
             }
 
-            long duration = mFensterPlayer.getDuration();
-            long newposition = (duration * progress) / 1000L;
-            mFensterPlayer.seekTo((int) newposition);
+            long newposition = positionForProgress(progress);
+            if (mPreviewing) {
+                updatePreview(newposition);
+            } else {
+                mFensterPlayer.seekTo((int) newposition);
+            }
             if (mCurrentTime != null) {
                 mCurrentTime.setText(stringForTime((int) newposition));
             }
         }
 
         public void onStopTrackingTouch(final SeekBar bar) {
+            if (mPreviewing) {
+                mPreviewing = false;
+                hidePreview();
+                mFensterPlayer.seekTo((int) positionForProgress(bar.getProgress()));
+            }
             mDragging = false;
             setProgress();
             updatePausePlay();
@@ -177,6 +204,31 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
         updatePausePlay();
     }
 
+    /**
+     * Shows thumbnails from the engine while the seekbar is dragged and only seeks the player once dragging stops.
+     * Without an engine, the default, the player seeks on every change of the seekbar.
+     *
+     * @param thumbnailEngine engine with the data source of the played video set, or null
+     */
+    public void setThumbnailEngine(final ThumbnailEngine thumbnailEngine) {
+        if (mThumbnailEngine != null) {
+            mThumbnailEngine.setListener(null);
+        }
+        mThumbnailEngine = thumbnailEngine;
+        if (thumbnailEngine != null) {
+            thumbnailEngine.setListener(mThumbnailListener);
+        }
+    }
+
+    private final ThumbnailEngine.Listener mThumbnailListener = new ThumbnailEngine.Listener() {
+        @Override
+        public void onThumbnailsAvailable() {
+            if (mPreviewing) {
+                updatePreview(mPreviewPosition);
+            }
+        }
+    };
+
     public void setVisibilityListener(final FensterPlayerControllerVisibilityListener visibilityListener) {
         this.visibilityListener = visibilityListener;
     }
@@ -206,6 +258,9 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
 
         mEndTime = (TextView) findViewById(R.id.fen__media_controller_time);
         mCurrentTime = (TextView) findViewById(R.id.fen__media_controller_time_current);
+        mPreviewArea = findViewById(R.id.fen__media_controller_preview);
+        mPreviewImage = (ThumbnailPreviewView) findViewById(R.id.fen__media_controller_preview_image);
+        mPreviewTime = (TextView) findViewById(R.id.fen__media_controller_preview_time);
         mFormatBuilder = new StringBuilder();
         mFormatter = new Formatter(mFormatBuilder, Locale.getDefault());
     }
@@ -306,6 +361,43 @@ public final class MediaFensterPlayerController extends RelativeLayout implement
         }
     }
 
+    private long positionForProgress(final int progress) {
+        return (mFensterPlayer.getDuration() * (long) progress) / MAX_VIDEO_PROGRESS;
+    }
+
+    private void updatePreview(final long position) {
+        mPreviewPosition = position;
+        // The previous thumbnail stays until the one of the new position has been loaded
+        if (mThumbnailEngine.getThumbnail(position, mPreviewThumbnail)) {
+            mPreviewImage.setThumbnail(mPreviewThumbnail);
+        }
+        mPreviewTime.setText(stringForTime((int) position));
+        mPreviewArea.setVisibility(View.VISIBLE);
+        alignPreviewWithThumb();
+    }
+
+    private void alignPreviewWithThumb() {
+        int previewWidth = mPreviewArea.getWidth();
+        if (previewWidth == 0) {
+            // Not laid out yet
+            mPreviewArea.measure(MeasureSpec.UNSPECIFIED, MeasureSpec.UNSPECIFIED);
+            previewWidth = mPreviewArea.getMeasuredWidth();
+        }
+        int left = mProgress.getLeft();
+        for (View parent = (View) mProgress.getParent(); parent != this; parent = (View) parent.getParent()) {
+            left += parent.getLeft();
+        }
+        int track = mProgress.getWidth() - mProgress.getPaddingLeft() - mProgress.getPaddingRight();
+        float thumbX = left + mProgress.getPaddingLeft() + track * mProgress.getProgress() / (float) mProgress.getMax();
+        float previewX = Math.min(thumbX - previewWidth / 2f, getWidth() - previewWidth);
+        mPreviewArea.setTranslationX(Math.max(previewX, 0));
+    }
+
+    private void hidePreview() {
+        mPreviewArea.setVisibility(View.GONE);
+        mPreviewImage.setThumbnail(null);
+    }
+
     private int setProgress() {
         if (mFensterPlayer == null || mDragging) {
             return 0;
@@ -0,0 +1,276 @@
+package com.malmstein.fenster.recording;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Cuts a range out of a video without decoding or encoding it.
+ *
+ * The compressed samples of the video and audio tracks are copied from {@link MediaExtractor} to {@link MediaMuxer}.
+ * A video can only start on a sync frame, so the clip starts at the last sync frame before the requested start, see
+ * {@link #getActualStartMs()}, and ends with the last sample before the requested end. The cost is that of copying the
+ * bytes, well under a second for a short clip, instead of the real time of a re-encode.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ClipExporter {
+
+    public interface Listener {
+        /**
+         * Called on the export thread once the clip has been written, or the export failed.
+         *
+         * @param success false if the export failed or has been cancelled, no file is left behind then
+         */
+        void onClipExportFinished(ClipExporter exporter, boolean success);
+    }
+
+    private static final String TAG = "ClipExporter";
+    // MediaFormat.KEY_ROTATION, only public from API 23 on but set by the extractor before
+    private static final String KEY_ROTATION = "rotation-degrees";
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 1024 * 1024;
+
+    private final Context context;
+    private final Uri source;
+    private final Map<String, String> headers;
+    private final AssetFileDescriptor assetFileDescriptor;
+    private final String outputPath;
+    private long startUs;
+    private long endUs = Long.MAX_VALUE;
+    private Listener listener;
+
+    private Thread thread;
+    private volatile boolean cancelled;
+    private volatile long actualStartUs = -1;
+
+    /**
+     * @param headers headers sent with the requests for network sources, may be null
+     */
+    public ClipExporter(Context context, Uri source, Map<String, String> headers, String outputPath) {
+        this.context = context.getApplicationContext();
+        this.source = source;
+        this.headers = headers;
+        this.assetFileDescriptor = null;
+        this.outputPath = outputPath;
+    }
+
+    public ClipExporter(AssetFileDescriptor assetFileDescriptor, String outputPath) {
+        this.context = null;
+        this.source = null;
+        this.headers = null;
+        this.assetFileDescriptor = assetFileDescriptor;
+        this.outputPath = outputPath;
+    }
+
+    /**
+     * @param startMs start of the clip, moved back to the previous sync frame
+     * @param endMs   end of the clip
+     */
+    public void setRange(int startMs, int endMs) {
+        if (startMs < 0 || endMs <= startMs) {
+            throw new IllegalArgumentException("Invalid range " + startMs + "-" + endMs);
+        }
+        this.startUs = startMs * 1000L;
+        this.endUs = endMs * 1000L;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    /**
+     * @return position in the source the clip actually starts at, -1 until known
+     */
+    public int getActualStartMs() {
+        long start = actualStartUs;
+        return start < 0 ? -1 : (int) (start / 1000);
+    }
+
+    /**
+     * Starts the export on a background thread, can only be called once.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Export already started");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = export();
+                Listener current = listener;
+                if (current != null) {
+                    current.onClipExportFinished(ClipExporter.this, success);
+                }
+            }
+        }, "FensterClip");
+        thread.start();
+    }
+
+    /**
+     * Stops the export as soon as possible, the listener is told that it did not succeed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Writes the clip on the calling thread.
+     *
+     * @return false if the export failed or has been cancelled, the partial file has been deleted then
+     */
+    public boolean export() {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        boolean success = false;
+        try {
+            if (assetFileDescriptor != null) {
+                extractor.setDataSource(assetFileDescriptor.getFileDescriptor(),
+                        assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+            } else {
+                extractor.setDataSource(context, source, headers);
+            }
+            muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int trackCount = extractor.getTrackCount();
+            // Index of the muxer track of each extractor track, -1 for the tracks left out
+            int[] muxerTracks = new int[trackCount];
+            int videoTrack = -1;
+            int maxSampleSize = 0;
+            for (int i = 0; i < trackCount; i++) {
+                muxerTracks[i] = -1;
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                boolean video = mime != null && mime.startsWith("video/");
+                boolean audio = mime != null && mime.startsWith("audio/");
+                // The muxer writes a single video track
+                if (!audio && !(video && videoTrack < 0)) {
+                    continue;
+                }
+                try {
+                    muxerTracks[i] = muxer.addTrack(format);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Log.w(TAG, "Leaving out track " + i + " (" + mime + "), not supported by the muxer", e);
+                    continue;
+                }
+                extractor.selectTrack(i);
+                if (video) {
+                    videoTrack = i;
+                    if (format.containsKey(KEY_ROTATION)) {
+                        muxer.setOrientationHint(format.getInteger(KEY_ROTATION));
+                    }
+                }
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    maxSampleSize = Math.max(maxSampleSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+            }
+            if (videoTrack < 0) {
+                throw new IOException("No video track in the source");
+            }
+            muxer.start();
+            muxerStarted = true;
+
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            copySamples(extractor, muxer, muxerTracks, videoTrack,
+                    maxSampleSize > 0 ? maxSampleSize : DEFAULT_MAX_SAMPLE_SIZE);
+            muxer.stop();
+            muxerStarted = false;
+            success = !cancelled;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Clip export failed", e);
+        } finally {
+            extractor.release();
+            if (muxer != null) {
+                if (muxerStarted) {
+                    try {
+                        muxer.stop();
+                    } catch (IllegalStateException e) {
+                        // Stopping without any sample fails, the file is deleted below anyway
+                        Log.w(TAG, "Cannot stop the muxer", e);
+                    }
+                }
+                muxer.release();
+            }
+        }
+        if (!success && !new File(outputPath).delete()) {
+            Log.w(TAG, "Cannot delete " + outputPath);
+        }
+        return success;
+    }
+
+    /**
+     * Copies the samples of the selected tracks from the current position of the extractor until every track is past
+     * the end. The time of the first video sample, a sync frame, becomes 0 in the clip.
+     */
+    @SuppressWarnings("deprecation")
+    private void copySamples(MediaExtractor extractor, MediaMuxer muxer, int[] muxerTracks, int videoTrack,
+                             int maxSampleSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxSampleSize);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean[] finished = new boolean[muxerTracks.length];
+        int remainingTracks = 0;
+        for (int muxerTrack : muxerTracks) {
+            if (muxerTrack >= 0) {
+                remainingTracks++;
+            }
+        }
+        long baseTimeUs = -1;
+        while (remainingTracks > 0 && !cancelled) {
+            int track = extractor.getSampleTrackIndex();
+            if (track < 0) {
+                // End of the source
+                break;
+            }
+            long sampleTimeUs = extractor.getSampleTime();
+            if (baseTimeUs < 0) {
+                if (track != videoTrack) {
+                    // Audio interleaved before the first video sync frame
+                    extractor.advance();
+                    continue;
+                }
+                baseTimeUs = sampleTimeUs;
+                actualStartUs = sampleTimeUs;
+            }
+            if (finished[track]) {
+                extractor.advance();
+                continue;
+            }
+            if (sampleTimeUs > endUs) {
+                finished[track] = true;
+                remainingTracks--;
+                extractor.advance();
+                continue;
+            }
+            // Samples before the sync frame, e.g. audio or leading B frames, cannot be played from the clip
+            if (sampleTimeUs >= baseTimeUs) {
+                info.offset = 0;
+                info.size = extractor.readSampleData(buffer, 0);
+                if (info.size < 0) {
+                    break;
+                }
+                info.presentationTimeUs = sampleTimeUs - baseTimeUs;
+                info.flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                muxer.writeSampleData(muxerTracks[track], buffer, info);
+            }
+            extractor.advance();
+        }
+        if (baseTimeUs < 0) {
+            throw new IOException("No video sample in the range");
+        }
+    }
+}
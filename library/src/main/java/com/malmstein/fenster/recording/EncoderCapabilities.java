@@ -0,0 +1,31 @@
+package com.malmstein.fenster.recording;
+
+/**
+ * Limits of a video encoder, see {@link RecordingSizePolicy}. Mirrors the parts of
+ * android.media.MediaCodecInfo.VideoCapabilities the size selection needs, without depending on Android.
+ */
+public interface EncoderCapabilities {
+
+    /**
+     * @return the width has to be a multiple of this
+     */
+    int getWidthAlignment();
+
+    /**
+     * @return the height has to be a multiple of this
+     */
+    int getHeightAlignment();
+
+    boolean isSizeSupported(int width, int height);
+
+    /**
+     * @return false if the encoder cannot encode this size at this rate, e.g. because it exceeds the macroblocks per
+     * second of its level
+     */
+    boolean areSizeAndRateSupported(int width, int height, double frameRate);
+
+    /**
+     * @return highest bit rate the encoder accepts, in bits per second
+     */
+    int getMaxBitRate();
+}
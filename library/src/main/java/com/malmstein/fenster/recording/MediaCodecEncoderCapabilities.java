@@ -0,0 +1,94 @@
+package com.malmstein.fenster.recording;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * {@link EncoderCapabilities} of the encoder {@link android.media.MediaCodec#createEncoderByType(String)} picks for a
+ * mime type, read from {@link MediaCodecInfo.VideoCapabilities}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MediaCodecEncoderCapabilities implements EncoderCapabilities {
+
+    private static final String TAG = "EncoderCapabilities";
+
+    private final MediaCodecInfo.VideoCapabilities capabilities;
+
+    public MediaCodecEncoderCapabilities(MediaCodecInfo.VideoCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * @return capabilities of the first encoder of the mime type, or null if there is none or they cannot be queried
+     * before API 21
+     */
+    public static EncoderCapabilities forMimeType(String mimeType) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType)) {
+                    continue;
+                }
+                try {
+                    MediaCodecInfo.VideoCapabilities videoCapabilities =
+                            info.getCapabilitiesForType(type).getVideoCapabilities();
+                    if (videoCapabilities != null) {
+                        return new MediaCodecEncoderCapabilities(videoCapabilities);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Cannot read the capabilities of " + info.getName(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param mimeType mime type asked from {@link VideoEncoder}, see {@link VideoEncoder#resolveMimeType(String)}
+     * @return capabilities of the encoder a {@link VideoEncoder} will use for the mime type, or
+     * {@link RecordingSizePolicy#DEFAULT_CAPABILITIES} where they cannot be queried
+     */
+    public static EncoderCapabilities forVideoEncoder(String mimeType) {
+        String resolvedMimeType = VideoEncoder.resolveMimeType(mimeType);
+        EncoderCapabilities capabilities = forMimeType(resolvedMimeType);
+        if (capabilities == null && !VideoEncoder.MIME_TYPE_AVC.equals(resolvedMimeType)) {
+            // The encoder falls back to H.264 as well
+            capabilities = forMimeType(VideoEncoder.MIME_TYPE_AVC);
+        }
+        return capabilities != null ? capabilities : RecordingSizePolicy.DEFAULT_CAPABILITIES;
+    }
+
+    @Override
+    public int getWidthAlignment() {
+        return capabilities.getWidthAlignment();
+    }
+
+    @Override
+    public int getHeightAlignment() {
+        return capabilities.getHeightAlignment();
+    }
+
+    @Override
+    public boolean isSizeSupported(int width, int height) {
+        return capabilities.isSizeSupported(width, height);
+    }
+
+    @Override
+    public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+        return capabilities.areSizeAndRateSupported(width, height, frameRate);
+    }
+
+    @Override
+    public int getMaxBitRate() {
+        return capabilities.getBitrateRange().getUpper();
+    }
+}
@@ -0,0 +1,177 @@
+package com.malmstein.fenster.recording;
+
+/**
+ * Picks the size a video is recorded at, from the size of the source and the limits of the encoder.
+ *
+ * The recording keeps the aspect ratio of the source and is never larger than the source, except for sources smaller
+ * than a macroblock, so no pixel is encoded which does not carry information. Both edges are multiples of the 16 pixel
+ * macroblocks encoders work on, otherwise the encoder pads every frame. Within that, the largest size is taken which
+ * fits the pixel budget, the bit rate budget at {@link VideoEncoder}'s bits per pixel, and which the encoder accepts at
+ * the frame rate.
+ *
+ * This class has no Android dependency, the encoder is described by {@link EncoderCapabilities}.
+ */
+public class RecordingSizePolicy {
+
+    public static final int DEFAULT_MAX_PIXELS = 1280 * 720;
+
+    // Encoders work on blocks of 16x16 pixels, other sizes are padded to them
+    static final int MACROBLOCK_SIZE = 16;
+
+    /**
+     * Capabilities assumed where they cannot be queried, before API 21: H.264 up to 1280x720 at 30 fps.
+     */
+    public static final EncoderCapabilities DEFAULT_CAPABILITIES = new EncoderCapabilities() {
+        private static final int MAX_EDGE = 1280;
+        private static final int MAX_PIXELS = 1280 * 720;
+        private static final double MAX_FRAME_RATE = 30;
+
+        @Override
+        public int getWidthAlignment() {
+            return MACROBLOCK_SIZE;
+        }
+
+        @Override
+        public int getHeightAlignment() {
+            return MACROBLOCK_SIZE;
+        }
+
+        @Override
+        public boolean isSizeSupported(int width, int height) {
+            return width <= MAX_EDGE && height <= MAX_EDGE && width * height <= MAX_PIXELS;
+        }
+
+        @Override
+        public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+            return isSizeSupported(width, height) && frameRate <= MAX_FRAME_RATE;
+        }
+
+        @Override
+        public int getMaxBitRate() {
+            return 8 * 1000 * 1000;
+        }
+    };
+
+    private int maxPixels = DEFAULT_MAX_PIXELS;
+    private int maxBitRate = Integer.MAX_VALUE;
+    private int frameRate = VideoEncoder.DEFAULT_FRAME_RATE;
+
+    private int width;
+    private int height;
+
+    /**
+     * @param maxPixels largest number of pixels per frame, which bounds the encoding work
+     */
+    public void setMaxPixels(int maxPixels) {
+        if (maxPixels <= 0) {
+            throw new IllegalArgumentException("Invalid pixel budget " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * @param maxBitRate largest bit rate in bits per second, unlimited by default besides the encoder's own limit
+     */
+    public void setMaxBitRate(int maxBitRate) {
+        if (maxBitRate <= 0) {
+            throw new IllegalArgumentException("Invalid bit rate budget " + maxBitRate);
+        }
+        this.maxBitRate = maxBitRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+        }
+        this.frameRate = frameRate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Selects the recording size, see {@link #getWidth()} and {@link #getHeight()}.
+     *
+     * @return false if the encoder supports no size of the aspect ratio of the source within the budget
+     */
+    public boolean select(int sourceWidth, int sourceHeight, EncoderCapabilities capabilities) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalArgumentException("Invalid source size " + sourceWidth + "x" + sourceHeight);
+        }
+        long budget = getPixelBudget(capabilities);
+        double scale = Math.min(1, Math.sqrt((double) budget / ((long) sourceWidth * sourceHeight)));
+
+        // Candidates shrink the long edge one alignment step at a time, the short edge follows the aspect ratio
+        boolean landscape = sourceWidth >= sourceHeight;
+        int widthAlignment = alignment(capabilities.getWidthAlignment());
+        int heightAlignment = alignment(capabilities.getHeightAlignment());
+        int longSource = landscape ? sourceWidth : sourceHeight;
+        int shortSource = landscape ? sourceHeight : sourceWidth;
+        int longAlignment = landscape ? widthAlignment : heightAlignment;
+        int shortAlignment = landscape ? heightAlignment : widthAlignment;
+
+        int longEdge = Math.max(roundDown(longSource * scale, longAlignment), longAlignment);
+        // Sources smaller than a macroblock are the only ones scaled up
+        int maxShortEdge = Math.max(roundDown(shortSource, shortAlignment), shortAlignment);
+        for (; longEdge >= longAlignment; longEdge -= longAlignment) {
+            double exactShortEdge = (double) longEdge * shortSource / longSource;
+            int shortEdge = (int) Math.round(exactShortEdge / shortAlignment) * shortAlignment;
+            shortEdge = Math.max(Math.min(shortEdge, maxShortEdge), shortAlignment);
+            int candidateWidth = landscape ? longEdge : shortEdge;
+            int candidateHeight = landscape ? shortEdge : longEdge;
+            if ((long) candidateWidth * candidateHeight <= budget
+                    && capabilities.isSizeSupported(candidateWidth, candidateHeight)
+                    && capabilities.areSizeAndRateSupported(candidateWidth, candidateHeight, frameRate)) {
+                width = candidateWidth;
+                height = candidateHeight;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return width selected by the last successful {@link #select(int, int, EncoderCapabilities)}
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height selected by the last successful {@link #select(int, int, EncoderCapabilities)}
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return largest number of pixels per frame allowed by the pixel and bit rate budgets, at least one macroblock
+     */
+    long getPixelBudget(EncoderCapabilities capabilities) {
+        int bitRate = Math.min(maxBitRate, capabilities.getMaxBitRate());
+        long bitRatePixels = (long) (bitRate / (frameRate * VideoEncoder.BITS_PER_PIXEL));
+        return Math.max(Math.min(maxPixels, bitRatePixels), MACROBLOCK_SIZE * MACROBLOCK_SIZE);
+    }
+
+    /**
+     * @return multiple of both the encoder's alignment and the macroblock size
+     */
+    static int alignment(int encoderAlignment) {
+        int alignment = Math.max(encoderAlignment, 1);
+        return alignment / gcd(alignment, MACROBLOCK_SIZE) * MACROBLOCK_SIZE;
+    }
+
+    private static int roundDown(double value, int alignment) {
+        return (int) (value / alignment) * alignment;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,354 @@
+package com.malmstein.fenster.recording;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames drawn on an input surface into an MP4 file.
+ *
+ * The frames are drawn with OpenGL on the surface returned by {@link #start()}, their timestamps are the presentation
+ * times set on the EGL surface. Encoded samples are written by a dedicated drain thread, so the rendering thread only
+ * ever waits for a free input buffer. {@link #stop()} returns immediately, the frames already drawn are still encoded
+ * and written before the callback is called on the drain thread.
+ *
+ * HEVC is used when requested and supported by both an encoder and the muxer of the device, H.264 otherwise.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class VideoEncoder {
+
+    public interface Callback {
+        /**
+         * Called on the drain thread once the file has been written, or the encoding failed.
+         *
+         * @param success false if the encoding failed, the partial file has been deleted
+         */
+        void onEncoderFinished(VideoEncoder encoder, boolean success);
+    }
+
+    public static final String MIME_TYPE_AVC = "video/avc";
+    public static final String MIME_TYPE_HEVC = "video/hevc";
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    private static final String TAG = "VideoEncoder";
+    // Build.VERSION_CODES.N, newer than the SDK the library is built against. MediaMuxer writes HEVC from then on.
+    private static final int API_HEVC_MUXING = 24;
+    // Bits per pixel and frame, good quality for the mostly static content of a recorded video with an overlay
+    static final float BITS_PER_PIXEL = 0.12f;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    // Some encoders never signal the end of stream, the file is finished anyway after this
+    private static final long END_OF_STREAM_TIMEOUT_MS = 2000;
+
+    private final String outputPath;
+    private final int width;
+    private final int height;
+    private String mimeType = MIME_TYPE_AVC;
+    private int frameRate = DEFAULT_FRAME_RATE;
+    // 0 until set, derived from the size and the frame rate when the encoder is configured
+    private int bitRate;
+    private int orientationHint;
+    private Callback callback;
+
+    private MediaCodec codec;
+    private MediaMuxer muxer;
+    private Surface inputSurface;
+    private Thread drainThread;
+    private volatile boolean endOfInputSignaled;
+    private volatile long endOfInputSignaledAtMs;
+    private boolean started;
+    private boolean stopped;
+
+    /**
+     * @param width  width of the video, even
+     * @param height height of the video, even
+     */
+    public VideoEncoder(String outputPath, int width, int height) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Invalid video size " + width + "x" + height);
+        }
+        this.outputPath = outputPath;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param mimeType {@link #MIME_TYPE_AVC} (default) or {@link #MIME_TYPE_HEVC}, which falls back to H.264 where it
+     *                 is not supported
+     */
+    public void setMimeType(String mimeType) {
+        checkNotStarted();
+        this.mimeType = mimeType;
+    }
+
+    public void setFrameRate(int frameRate) {
+        checkNotStarted();
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @param bitRate bits per second, by default derived from the size and the frame rate
+     */
+    public void setBitRate(int bitRate) {
+        checkNotStarted();
+        if (bitRate <= 0) {
+            throw new IllegalArgumentException("Invalid bit rate " + bitRate);
+        }
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * @return bits per second encoded, the one set or the one derived from the size and the frame rate
+     */
+    public int getBitRate() {
+        return bitRate > 0 ? bitRate : defaultBitRate(width, height, frameRate);
+    }
+
+    static int defaultBitRate(int width, int height, int frameRate) {
+        return (int) (width * height * frameRate * BITS_PER_PIXEL);
+    }
+
+    /**
+     * @param degrees clockwise rotation players apply when showing the video: 0, 90, 180 or 270
+     */
+    public void setOrientationHint(int degrees) {
+        checkNotStarted();
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported orientation hint " + degrees);
+        }
+        this.orientationHint = degrees;
+    }
+
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return mime type actually used, only valid once started
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Creates the encoder and the muxer and starts the drain thread.
+     *
+     * @return the surface to draw the frames on, released by the encoder once finished
+     */
+    public synchronized Surface start() throws IOException {
+        checkNotStarted();
+        started = true;
+        try {
+            codec = createEncoder();
+            inputSurface = codec.createInputSurface();
+            muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(orientationHint);
+            codec.start();
+        } catch (IOException | RuntimeException e) {
+            releaseCodec();
+            releaseMuxer();
+            throw e;
+        }
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "FensterEncoder");
+        drainThread.start();
+        return inputSurface;
+    }
+
+    /**
+     * @return the mime type an encoder asked for the passed one uses at most, H.264 where the muxer cannot write HEVC
+     */
+    public static String resolveMimeType(String mimeType) {
+        if (MIME_TYPE_HEVC.equals(mimeType) && Build.VERSION.SDK_INT >= API_HEVC_MUXING) {
+            return MIME_TYPE_HEVC;
+        }
+        return MIME_TYPE_AVC;
+    }
+
+    private MediaCodec createEncoder() throws IOException {
+        if (MIME_TYPE_HEVC.equals(resolveMimeType(mimeType))) {
+            try {
+                return configure(MediaCodec.createEncoderByType(MIME_TYPE_HEVC));
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "HEVC encoding not supported, falling back to H.264", e);
+            }
+        }
+        mimeType = MIME_TYPE_AVC;
+        return configure(MediaCodec.createEncoderByType(mimeType));
+    }
+
+    private MediaCodec configure(MediaCodec encoder) {
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            encoder.release();
+            throw e;
+        }
+        return encoder;
+    }
+
+    /**
+     * Signals the end of the stream to the encoder, the frames drawn so far are still written. Does not block, the
+     * callback is called once the file is complete. The EGL surface on the input surface has to be destroyed first.
+     */
+    public synchronized void stop() {
+        if (!started || stopped) {
+            return;
+        }
+        stopped = true;
+        if (codec == null) {
+            // The drain thread already failed and released everything
+            return;
+        }
+        try {
+            codec.signalEndOfInputStream();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Cannot signal the end of stream", e);
+        }
+        endOfInputSignaledAtMs = System.currentTimeMillis();
+        endOfInputSignaled = true;
+    }
+
+    /**
+     * Blocks until the file has been written, e.g. when the owner is torn down.
+     */
+    public void awaitFinished() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = drainThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.join();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void drain() {
+        boolean success = false;
+        int trackIndex = -1;
+        long firstPresentationTimeUs = -1;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            while (true) {
+                int index = codec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (endOfInputSignaled
+                            && System.currentTimeMillis() - endOfInputSignaledAtMs > END_OF_STREAM_TIMEOUT_MS) {
+                        Log.w(TAG, "No end of stream from the encoder, finishing the file");
+                        break;
+                    }
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (trackIndex >= 0) {
+                        throw new IllegalStateException("Output format changed twice");
+                    }
+                    trackIndex = muxer.addTrack(codec.getOutputFormat());
+                    muxer.start();
+                } else if (index >= 0) {
+                    ByteBuffer buffer = outputBuffers[index];
+                    // The codec config is part of the output format passed to the muxer
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        if (trackIndex < 0) {
+                            throw new IllegalStateException("Sample before the output format");
+                        }
+                        // Frames are stamped in the System.nanoTime() time base, the file starts at 0
+                        if (firstPresentationTimeUs < 0) {
+                            firstPresentationTimeUs = info.presentationTimeUs;
+                        }
+                        info.presentationTimeUs = Math.max(0, info.presentationTimeUs - firstPresentationTimeUs);
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        muxer.writeSampleData(trackIndex, buffer, info);
+                    }
+                    codec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+            if (trackIndex >= 0) {
+                muxer.stop();
+                success = true;
+            } else {
+                Log.w(TAG, "No frame has been encoded");
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Encoding failed", e);
+        } finally {
+            releaseCodec();
+            releaseMuxer();
+        }
+        if (!success && !new File(outputPath).delete()) {
+            Log.w(TAG, "Cannot delete " + outputPath);
+        }
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onEncoderFinished(this, success);
+        }
+    }
+
+    private synchronized void releaseCodec() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Not started or already failed, released below anyway
+            }
+            codec.release();
+            codec = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+    }
+
+    private synchronized void releaseMuxer() {
+        if (muxer != null) {
+            try {
+                muxer.release();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Cannot release the muxer", e);
+            }
+            muxer = null;
+        }
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Encoder already started");
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.malmstein.fenster.recording;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.malmstein.fenster.renderer.ExportTextureRenderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a video with filters and overlay into a new file, faster than real time.
+ *
+ * The source is decoded with {@link MediaExtractor} and {@link MediaCodec} straight into the video texture of an
+ * {@link ExportTextureRenderer}, which draws every frame into the input surface of a {@link VideoEncoder}. Nothing
+ * waits for a clock: the decoder thread hands over one frame at a time and the encoder blocks the renderer while its
+ * input is full, so the export runs as fast as the codecs allow. Only the video track is exported.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class VideoExporter {
+
+    public interface Listener {
+        /**
+         * Called on the export thread before the first frame is decoded, with the renderer initialized. Filters are
+         * set and the overlay is drawn here.
+         */
+        void onRendererReady(VideoExporter exporter, ExportTextureRenderer renderer);
+
+        /**
+         * Called on the export thread as frames are rendered.
+         *
+         * @param progress between 0 and 1
+         */
+        void onExportProgress(VideoExporter exporter, float progress);
+
+        /**
+         * Called once the export is over, on the export or the encoder thread.
+         *
+         * @param success false if the export failed or has been cancelled, no file is left behind then
+         */
+        void onExportFinished(VideoExporter exporter, boolean success);
+    }
+
+    private static final String TAG = "VideoExporter";
+    // MediaFormat.KEY_ROTATION, only public from API 23 on but set by the extractor before
+    private static final String KEY_ROTATION = "rotation-degrees";
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final long GL_READY_TIMEOUT_MS = 5000;
+    // A frame released by the decoder which does not reach the renderer within this time is considered dropped
+    private static final long FRAME_TIMEOUT_MS = 2500;
+    private static final long RELEASE_TIMEOUT_MS = 5000;
+
+    private final Context context;
+    private final Uri source;
+    private final Map<String, String> headers;
+    private final String outputPath;
+    private String mimeType = VideoEncoder.MIME_TYPE_AVC;
+    private RecordingSizePolicy sizePolicy = new RecordingSizePolicy();
+    private Listener listener;
+
+    private Thread thread;
+    private volatile boolean cancelled;
+    // Set when the export failed after the encoder started, the partial file is discarded
+    private volatile boolean failed;
+
+    public VideoExporter(Context context, Uri source, String outputPath) {
+        this(context, source, null, outputPath);
+    }
+
+    /**
+     * @param headers headers sent with the requests for network sources, may be null
+     */
+    public VideoExporter(Context context, Uri source, Map<String, String> headers, String outputPath) {
+        this.context = context.getApplicationContext();
+        this.source = source;
+        this.headers = headers;
+        this.outputPath = outputPath;
+    }
+
+    /**
+     * @param mimeType {@link VideoEncoder#MIME_TYPE_AVC} (default) or {@link VideoEncoder#MIME_TYPE_HEVC}
+     */
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * @param sizePolicy policy choosing the size of the export from the size of the source
+     */
+    public void setSizePolicy(RecordingSizePolicy sizePolicy) {
+        this.sizePolicy = sizePolicy;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    /**
+     * Starts the export on a background thread, can only be called once.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Export already started");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, "FensterExport");
+        thread.start();
+    }
+
+    /**
+     * Stops the export as soon as possible, the listener is told that it did not succeed.
+     */
+    public void cancel() {
+        cancelled = true;
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    private void export() {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        Surface decoderSurface = null;
+        ExportTextureRenderer renderer = null;
+        VideoEncoder encoder = null;
+        boolean rendered = false;
+        try {
+            extractor.setDataSource(context, source, headers);
+            int track = selectVideoTrack(extractor);
+            if (track < 0) {
+                throw new IOException("No video track in " + source);
+            }
+            extractor.selectTrack(track);
+            MediaFormat format = extractor.getTrackFormat(track);
+            int videoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+            int videoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+            int frameRate = getFrameRate(format);
+            if (frameRate > 0) {
+                sizePolicy.setFrameRate(frameRate);
+            }
+            if (!sizePolicy.select(videoWidth, videoHeight, MediaCodecEncoderCapabilities.forVideoEncoder(mimeType))) {
+                throw new IOException("No export size supported for " + videoWidth + "x" + videoHeight);
+            }
+
+            VideoEncoder newEncoder = new VideoEncoder(outputPath, sizePolicy.getWidth(), sizePolicy.getHeight());
+            newEncoder.setMimeType(mimeType);
+            newEncoder.setFrameRate(sizePolicy.getFrameRate());
+            if (format.containsKey(KEY_ROTATION)) {
+                // Decoded frames are not rotated, players apply the rotation of the source to the export as well
+                newEncoder.setOrientationHint(format.getInteger(KEY_ROTATION));
+            }
+            newEncoder.setCallback(new VideoEncoder.Callback() {
+                @Override
+                public void onEncoderFinished(VideoEncoder finishedEncoder, boolean success) {
+                    finish(success);
+                }
+            });
+            Surface encoderSurface = newEncoder.start();
+            // From now on the encoder callback finishes the export
+            encoder = newEncoder;
+
+            renderer = new ExportTextureRenderer(context, encoderSurface, sizePolicy.getWidth(),
+                    sizePolicy.getHeight());
+            renderer.start();
+            if (!renderer.awaitGLReady(GL_READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Renderer not ready");
+            }
+            renderer.setSize(sizePolicy.getWidth(), sizePolicy.getHeight(), videoWidth, videoHeight);
+            Listener current = listener;
+            if (current != null) {
+                current.onRendererReady(this, renderer);
+            }
+
+            SurfaceTexture videoTexture = renderer.getVideoTexture();
+            decoderSurface = new Surface(videoTexture);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, decoderSurface, null, 0);
+            decoder.start();
+            decode(extractor, decoder, renderer, durationUs);
+            rendered = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Export failed", e);
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Export cancelled");
+        } finally {
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException e) {
+                    // Failed before being started, released below anyway
+                }
+                decoder.release();
+            }
+            if (decoderSurface != null) {
+                decoderSurface.release();
+            }
+            extractor.release();
+            if (renderer != null) {
+                releaseRenderer(renderer);
+            }
+        }
+        if (encoder == null) {
+            finish(false);
+        } else {
+            if (!rendered) {
+                failed = true;
+            }
+            // The encoder writes what has been rendered, the callback finishes the export
+            encoder.stop();
+        }
+    }
+
+    /**
+     * Feeds the decoder until the end of the stream, each decoded frame is handed to the renderer and waited for.
+     */
+    @SuppressWarnings("deprecation")
+    private void decode(MediaExtractor extractor, MediaCodec decoder, ExportTextureRenderer renderer,
+                        long durationUs) throws InterruptedException {
+        ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        long sentFrames = renderer.getPresentedFrames();
+        int reportedPercent = -1;
+        while (true) {
+            if (cancelled || Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!inputDone) {
+                int inputIndex = decoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+            int outputIndex = decoder.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+            if (outputIndex < 0) {
+                // No frame yet, or a format or buffer change the surface output does not care about
+                continue;
+            }
+            boolean render = info.size > 0;
+            decoder.releaseOutputBuffer(outputIndex, render);
+            if (render) {
+                // One frame in flight at a time, the texture of the renderer only holds one
+                sentFrames++;
+                if (!renderer.awaitPresentedFrames(sentFrames, FRAME_TIMEOUT_MS)) {
+                    Log.w(TAG, "Frame at " + info.presentationTimeUs + "us not rendered, skipping it");
+                    sentFrames = renderer.getPresentedFrames();
+                }
+                int percent = durationUs > 0 ? (int) Math.min(100, info.presentationTimeUs * 100 / durationUs) : 0;
+                Listener current = listener;
+                if (percent != reportedPercent && current != null) {
+                    reportedPercent = percent;
+                    current.onExportProgress(this, percent / 100f);
+                }
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases the renderer and waits until its EGL surface on the encoder input is gone.
+     */
+    private static void releaseRenderer(ExportTextureRenderer renderer) {
+        renderer.release();
+        try {
+            if (!renderer.awaitReleased(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Renderer not released in time");
+            }
+        } catch (InterruptedException e) {
+            // Cancelled while releasing, the encoder is stopped anyway
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish(boolean success) {
+        if (success && (cancelled || failed)) {
+            if (!new File(outputPath).delete()) {
+                Log.w(TAG, "Cannot delete " + outputPath);
+            }
+            success = false;
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.onExportFinished(this, success);
+        }
+    }
+
+    /**
+     * @return frame rate of the track, or 0 if unknown. Some extractors store it as a float.
+     */
+    private static int getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return Math.round(format.getFloat(MediaFormat.KEY_FRAME_RATE));
+        }
+    }
+
+    private static int selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
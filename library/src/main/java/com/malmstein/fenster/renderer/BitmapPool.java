@@ -0,0 +1,64 @@
+package com.malmstein.fenster.renderer;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ARGB_8888 bitmaps kept for reuse, so that repeated snapshots of the same size do not allocate. Thread safe.
+ */
+public class BitmapPool {
+
+    private final int maxSize;
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+
+    /**
+     * @param maxSize number of bitmaps kept at most, further released ones are left to the garbage collector
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a bitmap of the passed size, reused if one has been released. Its content is undefined.
+     */
+    public Bitmap acquire(int width, int height) {
+        synchronized (bitmaps) {
+            for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bitmaps.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    bitmaps.remove(i);
+                    return bitmap;
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Gives a bitmap back for reuse, it must not be used by the caller afterwards.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || !bitmap.isMutable()) {
+            return;
+        }
+        synchronized (bitmaps) {
+            if (bitmaps.contains(bitmap)) {
+                return;
+            }
+            if (bitmaps.size() >= maxSize) {
+                // Least recently released first
+                bitmaps.remove(0);
+            }
+            bitmaps.add(bitmap);
+        }
+    }
+
+    public void clear() {
+        synchronized (bitmaps) {
+            bitmaps.clear();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+
+/**
+ * Gaussian blur over a 3x3 neighbourhood whose spacing grows with the radius.
+ */
+public class BlurFilter extends Filter {
+
+    private float radius;
+
+    private int radiusHandle;
+
+    /**
+     * @param radius distance between the samples, in input pixels
+     */
+    public BlurFilter(float radius) {
+        this.radius = radius;
+    }
+
+    public void setRadius(float radius) {
+        synchronized (this) {
+            this.radius = radius;
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean isPerPixel() {
+        return false;
+    }
+
+    @Override
+    protected String getShaderCode(String prefix) {
+        return "uniform float " + prefix + "radius;\n" +
+                "vec4 " + prefix + "apply(vec2 uv) {\n" +
+                "    vec2 d = texelSize * " + prefix + "radius;\n" +
+                "    vec4 sum = sampleInput(uv) * 4.0;\n" +
+                "    sum += (sampleInput(uv + vec2(d.x, 0.0)) + sampleInput(uv - vec2(d.x, 0.0))\n" +
+                "            + sampleInput(uv + vec2(0.0, d.y)) + sampleInput(uv - vec2(0.0, d.y))) * 2.0;\n" +
+                "    sum += sampleInput(uv + d) + sampleInput(uv - d)\n" +
+                "            + sampleInput(uv + vec2(d.x, -d.y)) + sampleInput(uv + vec2(-d.x, d.y));\n" +
+                "    return sum / 16.0;\n" +
+                "}\n";
+    }
+
+    @Override
+    protected void onLinked(int program, String prefix) {
+        radiusHandle = GLES20.glGetUniformLocation(program, prefix + "radius");
+    }
+
+    @Override
+    protected synchronized int onDraw(int textureUnit) {
+        GLES20.glUniform1f(radiusHandle, radius);
+        return textureUnit;
+    }
+}
@@ -0,0 +1,64 @@
+package com.malmstein.fenster.renderer;
+
+import android.view.Display;
+
+/**
+ * Frame scheduler which ticks at a fixed interval on a {@link FrameScheduler.Clock}.
+ *
+ * Frames are aligned on a fixed grid instead of sleeping for "interval minus elapsed", so the frame rate does not drift
+ * with the time spent drawing. When the caller falls behind by more than a frame the grid is restarted instead of
+ * rendering a burst of frames to catch up.
+ */
+public class ClockFrameScheduler implements FrameScheduler {
+
+    private final Clock clock;
+    private final long frameIntervalNanos;
+    private long nextFrameTimeNanos;
+
+    public ClockFrameScheduler() {
+        this(SYSTEM_CLOCK, DEFAULT_FRAME_INTERVAL_NANOS);
+    }
+
+    public ClockFrameScheduler(Clock clock, long frameIntervalNanos) {
+        if (frameIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Frame interval must be positive: " + frameIntervalNanos);
+        }
+        this.clock = clock;
+        this.frameIntervalNanos = frameIntervalNanos;
+    }
+
+    /**
+     * @return a scheduler ticking at the refresh rate reported by the passed display
+     */
+    public static ClockFrameScheduler forDisplay(Display display) {
+        float refreshRate = display.getRefreshRate();
+        if (refreshRate < 1) {
+            return new ClockFrameScheduler();
+        }
+        return new ClockFrameScheduler(SYSTEM_CLOCK, (long) (1000000000L / refreshRate));
+    }
+
+    @Override
+    public long awaitNextFrame() throws InterruptedException {
+        long now = clock.nanoTime();
+        if (nextFrameTimeNanos == 0 || now - nextFrameTimeNanos > frameIntervalNanos) {
+            // First frame, or we fell behind by more than a frame: restart the grid from now
+            nextFrameTimeNanos = now;
+        } else if (nextFrameTimeNanos > now) {
+            clock.sleepNanos(nextFrameTimeNanos - now);
+        }
+        long frameTimeNanos = nextFrameTimeNanos;
+        nextFrameTimeNanos += frameIntervalNanos;
+        return frameTimeNanos;
+    }
+
+    @Override
+    public long getFrameIntervalNanos() {
+        return frameIntervalNanos;
+    }
+
+    @Override
+    public void release() {
+        nextFrameTimeNanos = 0;
+    }
+}
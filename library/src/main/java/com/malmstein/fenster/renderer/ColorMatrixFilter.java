@@ -0,0 +1,95 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Multiplies every pixel by a 4x4 color matrix and adds an offset, e.g. for saturation, sepia or channel mixing.
+ */
+public class ColorMatrixFilter extends Filter {
+
+    private final float[] matrix = new float[16];
+    private final float[] offset = new float[4];
+    private float intensity = 1f;
+
+    private int matrixHandle;
+    private int offsetHandle;
+    private int intensityHandle;
+
+    public ColorMatrixFilter() {
+        Matrix.setIdentityM(matrix, 0);
+    }
+
+    /**
+     * @return a filter changing the saturation, 0 gives grayscale, 1 leaves the colors untouched
+     */
+    public static ColorMatrixFilter saturation(float saturation) {
+        // Rec. 709 luma weights
+        float r = 0.2126f * (1 - saturation);
+        float g = 0.7152f * (1 - saturation);
+        float b = 0.0722f * (1 - saturation);
+        ColorMatrixFilter filter = new ColorMatrixFilter();
+        filter.setMatrix(new float[]{
+                r + saturation, r, r, 0,
+                g, g + saturation, g, 0,
+                b, b, b + saturation, 0,
+                0, 0, 0, 1});
+        return filter;
+    }
+
+    /**
+     * @param matrix column major 4x4 matrix, as used by {@link Matrix}, applied to (r, g, b, a)
+     */
+    public void setMatrix(float[] matrix) {
+        synchronized (this) {
+            System.arraycopy(matrix, 0, this.matrix, 0, 16);
+        }
+        invalidate();
+    }
+
+    /**
+     * @param offset (r, g, b, a) added after the matrix
+     */
+    public void setOffset(float[] offset) {
+        synchronized (this) {
+            System.arraycopy(offset, 0, this.offset, 0, 4);
+        }
+        invalidate();
+    }
+
+    /**
+     * @param intensity mix between the original (0) and the filtered (1) color
+     */
+    public void setIntensity(float intensity) {
+        synchronized (this) {
+            this.intensity = intensity;
+        }
+        invalidate();
+    }
+
+    @Override
+    protected String getShaderCode(String prefix) {
+        return "uniform mat4 " + prefix + "matrix;\n" +
+                "uniform vec4 " + prefix + "offset;\n" +
+                "uniform float " + prefix + "intensity;\n" +
+                "vec4 " + prefix + "apply(vec4 color) {\n" +
+                "    vec4 filtered = " + prefix + "matrix * color + " + prefix + "offset;\n" +
+                "    return mix(color, filtered, " + prefix + "intensity);\n" +
+                "}\n";
+    }
+
+    @Override
+    protected void onLinked(int program, String prefix) {
+        matrixHandle = GLES20.glGetUniformLocation(program, prefix + "matrix");
+        offsetHandle = GLES20.glGetUniformLocation(program, prefix + "offset");
+        intensityHandle = GLES20.glGetUniformLocation(program, prefix + "intensity");
+    }
+
+    @Override
+    protected synchronized int onDraw(int textureUnit) {
+        GLES20.glUniformMatrix4fv(matrixHandle, 1, false, matrix, 0);
+        GLES20.glUniform4fv(offsetHandle, 1, offset, 0);
+        GLES20.glUniform1f(intensityHandle, intensity);
+        return textureUnit;
+    }
+}
@@ -0,0 +1,96 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-pixel filter made of user supplied GLSL.
+ *
+ * The body is a list of statements modifying {@code vec4 color}, for example {@code color.rgb = 1.0 - color.rgb;}.
+ * Uniforms are declared in the declarations with a {@code $} in front of their name, which is replaced by a prefix
+ * unique to the filter, and set with {@link #setUniform(String, float...)} using the plain name:
+ *
+ * <pre>
+ * new CustomFilter("uniform float $strength;", "color.rgb *= $strength;").setUniform("strength", 1.2f);
+ * </pre>
+ */
+public class CustomFilter extends Filter {
+
+    private final String declarations;
+    private final String body;
+
+    private final List<String> uniformNames = new ArrayList<>();
+    private final List<float[]> uniformValues = new ArrayList<>();
+    private final List<Integer> uniformHandles = new ArrayList<>();
+    private int program;
+    private String prefix;
+
+    public CustomFilter(String declarations, String body) {
+        this.declarations = declarations;
+        this.body = body;
+    }
+
+    /**
+     * Sets a float, vec2, vec3 or vec4 uniform declared as {@code $name}, depending on the number of values.
+     *
+     * @return this filter
+     */
+    public CustomFilter setUniform(String name, float... values) {
+        synchronized (this) {
+            int index = uniformNames.indexOf(name);
+            if (index < 0) {
+                uniformNames.add(name);
+                uniformValues.add(values.clone());
+            } else {
+                uniformValues.set(index, values.clone());
+            }
+        }
+        invalidate();
+        return this;
+    }
+
+    @Override
+    protected String getShaderCode(String prefix) {
+        return declarations.replace("$", prefix) + "\n" +
+                "vec4 " + prefix + "apply(vec4 color) {\n" +
+                body.replace("$", prefix) + "\n" +
+                "    return color;\n" +
+                "}\n";
+    }
+
+    @Override
+    protected synchronized void onLinked(int program, String prefix) {
+        this.program = program;
+        this.prefix = prefix;
+        uniformHandles.clear();
+    }
+
+    @Override
+    protected synchronized int onDraw(int textureUnit) {
+        // Uniforms set after linking are looked up on their first draw
+        for (int i = uniformHandles.size(); i < uniformNames.size(); i++) {
+            uniformHandles.add(GLES20.glGetUniformLocation(program, prefix + uniformNames.get(i)));
+        }
+        for (int i = 0; i < uniformNames.size(); i++) {
+            int handle = uniformHandles.get(i);
+            float[] values = uniformValues.get(i);
+            switch (values.length) {
+                case 1:
+                    GLES20.glUniform1fv(handle, 1, values, 0);
+                    break;
+                case 2:
+                    GLES20.glUniform2fv(handle, 1, values, 0);
+                    break;
+                case 3:
+                    GLES20.glUniform3fv(handle, 1, values, 0);
+                    break;
+                case 4:
+                    GLES20.glUniform4fv(handle, 1, values, 0);
+                    break;
+            }
+        }
+        return textureUnit;
+    }
+}
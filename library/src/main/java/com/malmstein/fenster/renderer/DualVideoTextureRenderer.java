@@ -0,0 +1,481 @@
+package com.malmstein.fenster.renderer;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import com.malmstein.fenster.view.FensterDualVideoView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compositor of {@link FensterDualVideoView}, drawing both videos onto the view in a single pass.
+ *
+ * Each video is decoded into its own input {@link SurfaceTexture}. One fragment shader samples both of them and places
+ * them according to the {@link Layout}: every video is fitted into its part of the output keeping its aspect ratio,
+ * clipped and blended over the background and the first video, so no intermediate framebuffer is needed. The renderer
+ * only draws when one of the inputs delivers a frame or the layout changes.
+ *
+ * Usage: create it, pass it to {@link FensterDualVideoView#setRenderer(FensterDualVideoView.Renderer)} before the
+ * videos are set, and configure the layout at any time from any thread.
+ */
+public class DualVideoTextureRenderer extends TextureSurfaceRenderer implements FensterDualVideoView.Renderer,
+        SurfaceTexture.OnFrameAvailableListener {
+
+    public enum Layout {
+        /**
+         * Both videos next to each other, the first one on the left
+         */
+        SIDE_BY_SIDE,
+        /**
+         * The first video over the whole output, the second one in a rectangle over it, see
+         * {@link #setPictureInPictureBounds(RectF)}
+         */
+        PICTURE_IN_PICTURE,
+        /**
+         * Both videos over the whole output, the first one left and the second one right of a vertical split, see
+         * {@link #setSplitPosition(float)}
+         */
+        SPLIT,
+        /**
+         * Both videos over the whole output, the second one blended over the first one, see
+         * {@link #setBlendFactor(float)}
+         */
+        BLEND
+    }
+
+    private static final int INPUT_COUNT = 2;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 vPosition;\n" +
+                    "attribute vec4 vTexCoordinate;\n" +
+                    "varying vec2 v_Position;\n" +
+                    "void main() {\n" +
+                    "    v_Position = vTexCoordinate.xy;\n" +
+                    "    gl_Position = vPosition;\n" +
+                    "}\n";
+
+    // Positions are normalized output coordinates with the origin at the bottom left. Bounds hold the origin and size
+    // of the rectangle a video is fitted into, clips the visible part as left, bottom, right, top.
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision mediump float;\n" +
+                    "uniform samplerExternalOES u_input0;\n" +
+                    "uniform samplerExternalOES u_input1;\n" +
+                    "uniform mat4 textureTransform0;\n" +
+                    "uniform mat4 textureTransform1;\n" +
+                    "uniform vec4 bounds0;\n" +
+                    "uniform vec4 bounds1;\n" +
+                    "uniform vec4 clip0;\n" +
+                    "uniform vec4 clip1;\n" +
+                    "uniform vec2 alpha;\n" +
+                    "uniform vec4 background;\n" +
+                    "varying vec2 v_Position;\n" +
+                    "float inside(vec4 clip) {\n" +
+                    "    vec2 s = step(clip.xy, v_Position) * step(v_Position, clip.zw);\n" +
+                    "    return s.x * s.y;\n" +
+                    "}\n" +
+                    "void main() {\n" +
+                    "    vec2 uv0 = (v_Position - bounds0.xy) / bounds0.zw;\n" +
+                    "    vec2 uv1 = (v_Position - bounds1.xy) / bounds1.zw;\n" +
+                    "    vec4 color0 = texture2D(u_input0, (textureTransform0 * vec4(uv0, 0.0, 1.0)).xy);\n" +
+                    "    vec4 color1 = texture2D(u_input1, (textureTransform1 * vec4(uv1, 0.0, 1.0)).xy);\n" +
+                    "    vec4 color = mix(background, color0, alpha.x * inside(clip0));\n" +
+                    "    gl_FragColor = mix(color, color1, alpha.y * inside(clip1));\n" +
+                    "}\n";
+
+    private final List<Runnable> inputsReadyCallbacks = new ArrayList<>();
+    private final SurfaceTexture[] inputTextures = new SurfaceTexture[INPUT_COUNT];
+
+    // Guarded by this
+    private boolean inputsReady;
+    private final boolean[] frameAvailable = new boolean[INPUT_COUNT];
+    private boolean contentInvalidated;
+    private final int[] videoWidths = new int[INPUT_COUNT];
+    private final int[] videoHeights = new int[INPUT_COUNT];
+    private Layout layout = Layout.SIDE_BY_SIDE;
+    // Normalized, with the origin at the top left like view coordinates
+    private final RectF pictureInPictureBounds = new RectF(0.6f, 0.6f, 0.95f, 0.95f);
+    private float splitPosition = 0.5f;
+    private float blendFactor = 0.5f;
+    private int backgroundColor = Color.BLACK;
+
+    // Only accessed on the rendering thread
+    private final int[] textures = new int[INPUT_COUNT];
+    private final boolean[] frameLatched = new boolean[INPUT_COUNT];
+    private final float[][] textureTransforms = new float[INPUT_COUNT][16];
+    private final float[] bounds = new float[4 * INPUT_COUNT];
+    private final float[] clips = new float[4 * INPUT_COUNT];
+    private final float[] alphas = new float[INPUT_COUNT];
+    private final float[] background = new float[4];
+    private QuadGeometry quad;
+    private int program;
+    private int positionHandle;
+    private int textureCoordinateHandle;
+    private final int[] inputHandles = new int[INPUT_COUNT];
+    private final int[] textureTransformHandles = new int[INPUT_COUNT];
+    private final int[] boundsHandles = new int[INPUT_COUNT];
+    private final int[] clipHandles = new int[INPUT_COUNT];
+    private int alphaHandle;
+    private int backgroundHandle;
+
+    public DualVideoTextureRenderer(Context context) {
+        // The output is only known once the view starts rendering
+        super(null, 0, 0);
+        ProgramCache.initialize(context);
+    }
+
+    public synchronized Layout getLayout() {
+        return layout;
+    }
+
+    public void setLayout(Layout layout) {
+        synchronized (this) {
+            this.layout = layout;
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * @param bounds rectangle of the second video in {@link Layout#PICTURE_IN_PICTURE}, in fractions of the output
+     *               size with the origin at the top left. The video is fitted into it keeping its aspect ratio.
+     */
+    public void setPictureInPictureBounds(RectF bounds) {
+        synchronized (this) {
+            pictureInPictureBounds.set(bounds);
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * @param splitPosition position of the split in {@link Layout#SPLIT}, as a fraction of the output width from the
+     *                      left, e.g. following a finger dragging the split
+     */
+    public void setSplitPosition(float splitPosition) {
+        synchronized (this) {
+            this.splitPosition = Math.max(0f, Math.min(1f, splitPosition));
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * @param blendFactor opacity of the second video in {@link Layout#BLEND}, from 0 to 1
+     */
+    public void setBlendFactor(float blendFactor) {
+        synchronized (this) {
+            this.blendFactor = Math.max(0f, Math.min(1f, blendFactor));
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * @param backgroundColor color shown where no video is drawn, opaque black by default
+     */
+    public void setBackgroundColor(int backgroundColor) {
+        synchronized (this) {
+            this.backgroundColor = backgroundColor;
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void setVideoSize(int index, int width, int height) {
+        synchronized (this) {
+            videoWidths[index] = width;
+            videoHeights[index] = height;
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void setOutputSize(int width, int height) {
+        synchronized (this) {
+            this.width = width;
+            this.height = height;
+            contentInvalidated = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * Starts rendering on the output on first call, later calls with another output move rendering to it. The
+     * callback is run on the rendering thread once the input textures exist, right away if they already do.
+     */
+    @Override
+    public void startRenderingToOutput(SurfaceTexture outputSurfaceTexture, Runnable callback) {
+        State state = getState();
+        if (state == State.RELEASED) {
+            throw new IllegalStateException("Renderer already released");
+        }
+        if (state == State.CREATED && !isStarted()) {
+            texture = outputSurfaceTexture;
+            start();
+        } else if (outputSurfaceTexture != texture) {
+            reinitGL(outputSurfaceTexture);
+        }
+        synchronized (this) {
+            if (!inputsReady) {
+                if (callback != null) {
+                    inputsReadyCallbacks.add(callback);
+                }
+                return;
+            }
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return the textures the videos have to be decoded into, valid once the callback of
+     * {@link #startRenderingToOutput(SurfaceTexture, Runnable)} has been run
+     */
+    @Override
+    public SurfaceTexture[] getInputTextures() {
+        return inputTextures;
+    }
+
+    @Override
+    protected void initGLComponents() {
+        quad = eglCore.getQuadGeometry();
+        loadShaders();
+        GLES20.glGenTextures(INPUT_COUNT, textures, 0);
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, textures[i], 0, this);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[i]);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            // The videos are scaled, e.g. down to the picture in picture
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            inputTextures[i] = new SurfaceTexture(textures[i]);
+            GlResourceTracker.trackSurface(GlResourceTracker.SURFACE_TEXTURE, inputTextures[i], this);
+            inputTextures[i].setOnFrameAvailableListener(this);
+        }
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+
+        List<Runnable> callbacks;
+        synchronized (this) {
+            inputsReady = true;
+            callbacks = new ArrayList<>(inputsReadyCallbacks);
+            inputsReadyCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private void loadShaders() {
+        program = eglCore.getProgramCache().getProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        textureCoordinateHandle = GLES20.glGetAttribLocation(program, "vTexCoordinate");
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            inputHandles[i] = GLES20.glGetUniformLocation(program, "u_input" + i);
+            textureTransformHandles[i] = GLES20.glGetUniformLocation(program, "textureTransform" + i);
+            boundsHandles[i] = GLES20.glGetUniformLocation(program, "bounds" + i);
+            clipHandles[i] = GLES20.glGetUniformLocation(program, "clip" + i);
+        }
+        alphaHandle = GLES20.glGetUniformLocation(program, "alpha");
+        backgroundHandle = GLES20.glGetUniformLocation(program, "background");
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (this) {
+            for (int i = 0; i < INPUT_COUNT; i++) {
+                if (inputTextures[i] == surfaceTexture) {
+                    frameAvailable[i] = true;
+                }
+            }
+        }
+        requestRender();
+    }
+
+    @Override
+    protected void onSurfaceReplaced() {
+        synchronized (this) {
+            contentInvalidated = true;
+        }
+    }
+
+    @Override
+    protected boolean draw() {
+        synchronized (this) {
+            boolean latched = false;
+            for (int i = 0; i < INPUT_COUNT; i++) {
+                if (frameAvailable[i]) {
+                    inputTextures[i].updateTexImage();
+                    inputTextures[i].getTransformMatrix(textureTransforms[i]);
+                    frameAvailable[i] = false;
+                    frameLatched[i] = true;
+                    latched = true;
+                }
+            }
+            if (!latched && !contentInvalidated) {
+                return false;
+            }
+            contentInvalidated = false;
+            updateLayout();
+        }
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width, height);
+        // Every pixel is written by the single pass, there is nothing to clear or blend with
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+
+        GLES20.glUseProgram(program);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
+        quad.bind(positionHandle, textureCoordinateHandle, QuadGeometry.TEXTURE_COORDS_UPRIGHT);
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[i]);
+            GLES20.glUniform1i(inputHandles[i], i);
+            GLES20.glUniformMatrix4fv(textureTransformHandles[i], 1, false, textureTransforms[i], 0);
+            GLES20.glUniform4fv(boundsHandles[i], 1, bounds, 4 * i);
+            GLES20.glUniform4fv(clipHandles[i], 1, clips, 4 * i);
+        }
+        GLES20.glUniform2fv(alphaHandle, 1, alphas, 0);
+        GLES20.glUniform4fv(backgroundHandle, 1, background, 0);
+        quad.draw();
+
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.unbind();
+        for (int i = INPUT_COUNT - 1; i >= 0; i--) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Computes the uniforms of the current layout, called with the lock held.
+     */
+    private void updateLayout() {
+        alphas[0] = 1f;
+        alphas[1] = 1f;
+        switch (layout) {
+            case SIDE_BY_SIDE:
+                fit(0, 0f, 0f, 0.5f, 1f);
+                fit(1, 0.5f, 0f, 1f, 1f);
+                break;
+            case PICTURE_IN_PICTURE:
+                fit(0, 0f, 0f, 1f, 1f);
+                // View coordinates have the origin at the top left
+                fit(1, pictureInPictureBounds.left, 1f - pictureInPictureBounds.bottom,
+                        pictureInPictureBounds.right, 1f - pictureInPictureBounds.top);
+                break;
+            case SPLIT:
+                fit(0, 0f, 0f, 1f, 1f);
+                fit(1, 0f, 0f, 1f, 1f);
+                clip(0, 0f, 0f, splitPosition, 1f);
+                clip(1, splitPosition, 0f, 1f, 1f);
+                break;
+            case BLEND:
+                fit(0, 0f, 0f, 1f, 1f);
+                fit(1, 0f, 0f, 1f, 1f);
+                alphas[1] = blendFactor;
+                break;
+        }
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            if (!frameLatched[i]) {
+                // The texture has no content yet
+                alphas[i] = 0f;
+            }
+        }
+        background[0] = Color.red(backgroundColor) / 255f;
+        background[1] = Color.green(backgroundColor) / 255f;
+        background[2] = Color.blue(backgroundColor) / 255f;
+        background[3] = Color.alpha(backgroundColor) / 255f;
+    }
+
+    private void fit(int index, float left, float bottom, float right, float top) {
+        fit(bounds, clips, 4 * index, left, bottom, right, top, videoWidths[index], videoHeights[index], width, height);
+    }
+
+    private void clip(int index, float left, float bottom, float right, float top) {
+        clip(clips, 4 * index, left, bottom, right, top);
+    }
+
+    /**
+     * Places a video centered in a rectangle of the output keeping its aspect ratio, and shows all of it. Coordinates
+     * are normalized with the origin at the bottom left, bounds are written as left, bottom, width, height and clips
+     * as left, bottom, right, top.
+     *
+     * @param videoWidth size of the video, or 0 if unknown to stretch it over the rectangle
+     * @param outputWidth size of the output in pixels, the aspect ratio of the rectangle depends on it
+     */
+    static void fit(float[] bounds, float[] clips, int offset, float left, float bottom, float right, float top,
+                    int videoWidth, int videoHeight, int outputWidth, int outputHeight) {
+        float cellWidth = right - left;
+        float cellHeight = top - bottom;
+        float fittedWidth = cellWidth;
+        float fittedHeight = cellHeight;
+        if (videoWidth > 0 && videoHeight > 0 && outputWidth > 0 && outputHeight > 0) {
+            float videoAspect = videoWidth / (float) videoHeight;
+            float cellAspect = cellWidth * outputWidth / (cellHeight * outputHeight);
+            if (videoAspect > cellAspect) {
+                fittedHeight = cellHeight * cellAspect / videoAspect;
+            } else {
+                fittedWidth = cellWidth * videoAspect / cellAspect;
+            }
+        }
+        bounds[offset] = left + (cellWidth - fittedWidth) / 2f;
+        bounds[offset + 1] = bottom + (cellHeight - fittedHeight) / 2f;
+        bounds[offset + 2] = fittedWidth;
+        bounds[offset + 3] = fittedHeight;
+        clips[offset] = bounds[offset];
+        clips[offset + 1] = bounds[offset + 1];
+        clips[offset + 2] = bounds[offset] + fittedWidth;
+        clips[offset + 3] = bounds[offset + 1] + fittedHeight;
+    }
+
+    /**
+     * Restricts the visible part of a video placed by {@link #fit} to a rectangle of the output.
+     */
+    static void clip(float[] clips, int offset, float left, float bottom, float right, float top) {
+        clips[offset] = Math.max(clips[offset], left);
+        clips[offset + 1] = Math.max(clips[offset + 1], bottom);
+        clips[offset + 2] = Math.min(clips[offset + 2], right);
+        clips[offset + 3] = Math.min(clips[offset + 3], top);
+    }
+
+    @Override
+    protected void deinitGLComponents() {
+        synchronized (this) {
+            inputsReady = false;
+            inputsReadyCallbacks.clear();
+        }
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            if (inputTextures[i] != null) {
+                inputTextures[i].setOnFrameAvailableListener(null);
+                GlResourceTracker.untrackSurface(inputTextures[i]);
+                inputTextures[i].release();
+                inputTextures[i] = null;
+            }
+            GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, textures[i]);
+        }
+        GLES20.glDeleteTextures(INPUT_COUNT, textures, 0);
+        // The program and the quad belong to the context
+        quad = null;
+    }
+}
@@ -0,0 +1,220 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Picks the EGL config of a rendering context.
+ *
+ * The video path draws a single opaque layer, so by default no depth or stencil buffer is requested. Lower memory
+ * formats can be asked for with {@link #FORMAT_RGB_888} (no alpha) and {@link #FORMAT_RGB_565} (half the bandwidth of
+ * RGBA8888). If the device has no config matching the requested format, the other formats are tried in order of
+ * preference, and finally the recordable flag is dropped so that at least playback works.
+ *
+ * A config for an OpenGL ES 3 context has to be renderable with ES3 as well, see
+ * {@link #chooseConfig(EGL10, EGLDisplay, int)}.
+ *
+ * The config found for a chooser is remembered by its EGL config id for the lifetime of the process, so later contexts
+ * with the same requirements skip the negotiation.
+ */
+public class EglConfigChooser {
+
+    public static final int FORMAT_RGBA_8888 = 0;
+    public static final int FORMAT_RGB_888 = 1;
+    public static final int FORMAT_RGB_565 = 2;
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
+    private static final int MAX_CONFIGS = 32;
+
+    private static final Map<String, Integer> chosenConfigIds = new HashMap<>();
+
+    private final int format;
+    private final int depthSize;
+    private final boolean recordable;
+
+    /**
+     * @param format one of {@link #FORMAT_RGBA_8888}, {@link #FORMAT_RGB_888} or {@link #FORMAT_RGB_565}
+     */
+    public EglConfigChooser(int format) {
+        this(format, 0, false);
+    }
+
+    /**
+     * @param format     one of {@link #FORMAT_RGBA_8888}, {@link #FORMAT_RGB_888} or {@link #FORMAT_RGB_565}
+     * @param depthSize  depth buffer bits of the window surfaces, 0 if nothing is drawn with depth testing
+     * @param recordable true if the surfaces have to be usable as MediaCodec / MediaRecorder input
+     */
+    public EglConfigChooser(int format, int depthSize, boolean recordable) {
+        this.format = format;
+        this.depthSize = depthSize;
+        this.recordable = recordable;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public boolean isRecordable() {
+        return recordable;
+    }
+
+    /**
+     * @return a key identifying the requirements of this chooser, renderers with the same key can share a context
+     */
+    public String getKey() {
+        return "format=" + format + ",depth=" + depthSize + ",recordable=" + recordable;
+    }
+
+    /**
+     * @return a config for an OpenGL ES 2 context
+     */
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+        EGLConfig config = chooseConfig(egl, display, 2);
+        if (config == null) {
+            throw new IllegalArgumentException("No EGL config for " + getKey() + ": "
+                    + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+        return config;
+    }
+
+    /**
+     * @param glesVersion major OpenGL ES version of the context the config is for, 2 or 3
+     * @return a config for a context of the version, or null if the device has none
+     */
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, int glesVersion) {
+        String key = getKey() + ",es=" + glesVersion;
+        Integer cachedId;
+        synchronized (chosenConfigIds) {
+            cachedId = chosenConfigIds.get(key);
+        }
+        if (cachedId != null) {
+            EGLConfig config = findById(egl, display, cachedId);
+            if (config != null) {
+                return config;
+            }
+        }
+
+        for (int[] spec : getFallbackChain(glesVersion)) {
+            EGLConfig config = findExact(egl, display, spec);
+            if (config != null) {
+                int[] value = new int[1];
+                egl.eglGetConfigAttrib(display, config, EGL10.EGL_CONFIG_ID, value);
+                synchronized (chosenConfigIds) {
+                    chosenConfigIds.put(key, value[0]);
+                }
+                return config;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the config specs to try, the requested one first
+     */
+    List<int[]> getFallbackChain(int glesVersion) {
+        // ES3 configs are renderable with ES2 as well, as both context versions share the same surfaces
+        int renderableType = glesVersion >= 3
+                ? TextureSurfaceRenderer.EGL_OPENGL_ES2_BIT | EGL_OPENGL_ES3_BIT_KHR
+                : TextureSurfaceRenderer.EGL_OPENGL_ES2_BIT;
+        int[] formats;
+        switch (format) {
+            case FORMAT_RGB_565:
+                formats = new int[]{FORMAT_RGB_565, FORMAT_RGB_888, FORMAT_RGBA_8888};
+                break;
+            case FORMAT_RGB_888:
+                formats = new int[]{FORMAT_RGB_888, FORMAT_RGBA_8888, FORMAT_RGB_565};
+                break;
+            default:
+                formats = new int[]{FORMAT_RGBA_8888, FORMAT_RGB_888, FORMAT_RGB_565};
+                break;
+        }
+        List<int[]> chain = new ArrayList<>();
+        for (int candidate : formats) {
+            chain.add(createSpec(candidate, recordable, renderableType));
+        }
+        if (recordable) {
+            chain.add(createSpec(format, false, renderableType));
+        }
+        return chain;
+    }
+
+    private int[] createSpec(int format, boolean recordable, int renderableType) {
+        int red = format == FORMAT_RGB_565 ? 5 : 8;
+        int green = format == FORMAT_RGB_565 ? 6 : 8;
+        int blue = format == FORMAT_RGB_565 ? 5 : 8;
+        int alpha = format == FORMAT_RGBA_8888 ? 8 : 0;
+        if (recordable) {
+            return new int[]{
+                    EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                    EGL10.EGL_RED_SIZE, red,
+                    EGL10.EGL_GREEN_SIZE, green,
+                    EGL10.EGL_BLUE_SIZE, blue,
+                    EGL10.EGL_ALPHA_SIZE, alpha,
+                    EGL10.EGL_DEPTH_SIZE, depthSize,
+                    EGL10.EGL_STENCIL_SIZE, 0,
+                    EGL_RECORDABLE_ANDROID, 1,
+                    EGL10.EGL_NONE
+            };
+        }
+        return new int[]{
+                EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                EGL10.EGL_RED_SIZE, red,
+                EGL10.EGL_GREEN_SIZE, green,
+                EGL10.EGL_BLUE_SIZE, blue,
+                EGL10.EGL_ALPHA_SIZE, alpha,
+                EGL10.EGL_DEPTH_SIZE, depthSize,
+                EGL10.EGL_STENCIL_SIZE, 0,
+                EGL10.EGL_NONE
+        };
+    }
+
+    /**
+     * eglChooseConfig returns configs with at least the requested sizes, sorted with the deepest color first. This
+     * picks the one matching the requested color and depth sizes exactly, so that asking for RGB565 or no depth buffer
+     * does not end up with RGBA8888 and a 24 bit depth buffer.
+     */
+    private EGLConfig findExact(EGL10 egl, EGLDisplay display, int[] spec) {
+        int[] count = new int[1];
+        EGLConfig[] configs = new EGLConfig[MAX_CONFIGS];
+        if (!egl.eglChooseConfig(display, spec, configs, MAX_CONFIGS, count) || count[0] == 0) {
+            return null;
+        }
+        int[] value = new int[1];
+        for (int i = 0; i < count[0]; i++) {
+            if (hasAttrib(egl, display, configs[i], EGL10.EGL_RED_SIZE, spec[3], value)
+                    && hasAttrib(egl, display, configs[i], EGL10.EGL_GREEN_SIZE, spec[5], value)
+                    && hasAttrib(egl, display, configs[i], EGL10.EGL_BLUE_SIZE, spec[7], value)
+                    && hasAttrib(egl, display, configs[i], EGL10.EGL_ALPHA_SIZE, spec[9], value)
+                    && hasAttrib(egl, display, configs[i], EGL10.EGL_DEPTH_SIZE, spec[11], value)) {
+                return configs[i];
+            }
+        }
+        Log.w(TextureSurfaceRenderer.LOG_TAG, "No exact EGL config match, using the closest one");
+        return configs[0];
+    }
+
+    private static boolean hasAttrib(EGL10 egl, EGLDisplay display, EGLConfig config, int attribute, int expected,
+                                     int[] value) {
+        return egl.eglGetConfigAttrib(display, config, attribute, value) && value[0] == expected;
+    }
+
+    private static EGLConfig findById(EGL10 egl, EGLDisplay display, int configId) {
+        int[] count = new int[1];
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] spec = {EGL10.EGL_CONFIG_ID, configId, EGL10.EGL_NONE};
+        if (egl.eglChooseConfig(display, spec, configs, 1, count) && count[0] > 0) {
+            return configs[0];
+        }
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+package com.malmstein.fenster.renderer;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
+import android.opengl.GLUtils;
+import android.os.Build;
+import android.util.Log;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * EGL display, config and OpenGL ES context shared by all renderers of a {@link RenderThread}.
+ *
+ * Each renderer owns its window surface and makes it current before drawing, the context and every GL object created
+ * in it (programs, textures, framebuffers) is shared. All methods have to be called on the owning rendering thread.
+ */
+public class EglCore {
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final String EXTENSION_PRESENTATION_TIME = "EGL_ANDROID_presentation_time";
+    private static final String EXTENSION_SURFACELESS_CONTEXT = "EGL_KHR_surfaceless_context";
+
+    private final EGL10 egl;
+    private final EGLDisplay eglDisplay;
+    private final EGLConfig eglConfig;
+    private final EGLContext eglContext;
+    private final boolean presentationTimeSupported;
+    private final boolean surfacelessContextSupported;
+    private final int glesVersion;
+    private QuadGeometry quadGeometry;
+    private ProgramCache programCache;
+    private FramebufferPool framebufferPool;
+
+    public EglCore(EglConfigChooser configChooser) {
+        egl = (EGL10) EGLContext.getEGL();
+        eglDisplay = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+
+        int[] version = new int[2];
+        if (!egl.eglInitialize(eglDisplay, version)) {
+            throw new RuntimeException("EGL initialize error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+
+        // OpenGL ES 3.0 is only needed for program binaries, the shaders themselves are ES 2.0
+        EGLConfig config = null;
+        EGLContext context = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            config = configChooser.chooseConfig(egl, eglDisplay, 3);
+            if (config != null) {
+                context = createContext(config, 3);
+            }
+        }
+        if (context != null) {
+            glesVersion = 3;
+        } else {
+            config = configChooser.chooseConfig(egl, eglDisplay);
+            context = createContext(config, 2);
+            glesVersion = 2;
+        }
+        eglConfig = config;
+        if (context == null) {
+            throw new RuntimeException("GL context error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+        eglContext = context;
+
+        String extensions = egl.eglQueryString(eglDisplay, EGL10.EGL_EXTENSIONS);
+        presentationTimeSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && extensions != null && extensions.contains(EXTENSION_PRESENTATION_TIME);
+        surfacelessContextSupported = extensions != null && extensions.contains(EXTENSION_SURFACELESS_CONTEXT);
+    }
+
+    private EGLContext createContext(EGLConfig config, int version) {
+        int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, version, EGL10.EGL_NONE};
+        EGLContext context = egl.eglCreateContext(eglDisplay, config, EGL10.EGL_NO_CONTEXT, attribList);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            return null;
+        }
+        return context;
+    }
+
+    /**
+     * @param nativeWindow a {@link android.graphics.SurfaceTexture}, {@link android.view.Surface} or
+     *                     {@link android.view.SurfaceHolder} to render to
+     */
+    public EGLSurface createWindowSurface(Object nativeWindow) {
+        EGLSurface surface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, nativeWindow, null);
+        if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+            throw new RuntimeException("GL Error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+        return surface;
+    }
+
+    public void makeCurrent(EGLSurface surface) {
+        if (!egl.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+            throw new RuntimeException("GL Make current error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+        }
+    }
+
+    /**
+     * Makes the context current without a surface, e.g. to delete GL objects once the surface of a renderer is gone.
+     *
+     * @return false if the device does not support EGL_KHR_surfaceless_context or the call failed, nothing is current
+     * then
+     */
+    public boolean makeCurrentWithoutSurface() {
+        if (surfacelessContextSupported
+                && egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, eglContext)) {
+            return true;
+        }
+        makeNothingCurrent();
+        return false;
+    }
+
+    public void makeNothingCurrent() {
+        egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+    }
+
+    public boolean swapBuffers(EGLSurface surface) {
+        return egl.eglSwapBuffers(eglDisplay, surface);
+    }
+
+    /**
+     * @return true if {@link #setPresentationTime(long)} has any effect on this device
+     */
+    public boolean isPresentationTimeSupported() {
+        return presentationTimeSupported;
+    }
+
+    /**
+     * Sets the time at which the next buffer swapped on the current draw surface should be shown, or the timestamp of
+     * the frame when the surface is an encoder input. Does nothing where EGL_ANDROID_presentation_time is missing.
+     *
+     * @param presentationTimeNanos time in the {@link System#nanoTime()} time base
+     */
+    public void setPresentationTime(long presentationTimeNanos) {
+        if (presentationTimeSupported) {
+            setPresentationTimeApi18(presentationTimeNanos);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void setPresentationTimeApi18(long presentationTimeNanos) {
+        // EGL10 and EGL14 wrap the same native objects, the surface made current through EGL10 is found through EGL14
+        EGLExt.eglPresentationTimeANDROID(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                presentationTimeNanos);
+    }
+
+    public void destroySurface(EGLSurface surface) {
+        egl.eglDestroySurface(eglDisplay, surface);
+    }
+
+    /**
+     * @return the quad shared by all renderers of this context, created on first use. A surface of this context has to
+     * be current.
+     */
+    public QuadGeometry getQuadGeometry() {
+        if (quadGeometry == null) {
+            quadGeometry = new QuadGeometry();
+        }
+        return quadGeometry;
+    }
+
+    /**
+     * @return the program cache of this context
+     */
+    public ProgramCache getProgramCache() {
+        if (programCache == null) {
+            programCache = new ProgramCache(glesVersion);
+        }
+        return programCache;
+    }
+
+    /**
+     * @return the framebuffers of this context, shared by all its renderers
+     */
+    public FramebufferPool getFramebufferPool() {
+        if (framebufferPool == null) {
+            framebufferPool = new FramebufferPool();
+        }
+        return framebufferPool;
+    }
+
+    /**
+     * @return major OpenGL ES version of the context, 3 where available and 2 otherwise
+     */
+    public int getGlesVersion() {
+        return glesVersion;
+    }
+
+    public void release() {
+        // Buffers, framebuffers and programs are deleted along with the context
+        GlResourceTracker.releaseContext(eglContext, quadGeometry, programCache, framebufferPool);
+        GlResourceTracker.logTotals();
+        quadGeometry = null;
+        programCache = null;
+        framebufferPool = null;
+        makeNothingCurrent();
+        egl.eglDestroyContext(eglDisplay, eglContext);
+        egl.eglTerminate(eglDisplay);
+        Log.d(TextureSurfaceRenderer.LOG_TAG, "OpenGL deinit OK.");
+    }
+
+    public EGL10 getEgl() {
+        return egl;
+    }
+
+    public EGLDisplay getDisplay() {
+        return eglDisplay;
+    }
+
+    public EGLConfig getConfig() {
+        return eglConfig;
+    }
+
+    public EGLContext getContext() {
+        return eglContext;
+    }
+}
@@ -0,0 +1,132 @@
+package com.malmstein.fenster.renderer;
+
+import android.content.Context;
+import android.view.Surface;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MoviePlayerTextureRenderer} drawing offline into an encoder input surface instead of on the display.
+ *
+ * The same filters and overlay are applied as when playing, but nothing is paced: the rendering loop does not wait for
+ * a vsync and every video frame is drawn as soon as it is latched, stamped with its own timestamp. The producer of the
+ * frames, e.g. a decoder, waits for each frame with {@link #awaitPresentedFrames(long, long)} before sending the next
+ * one, and the encoder blocks the swap while its input is full, so the work is paced by the codecs only.
+ */
+public class ExportTextureRenderer extends MoviePlayerTextureRenderer {
+
+    private final Surface outputSurface;
+    private final Object frameLock = new Object();
+    // Guarded by frameLock
+    private long presentedFrames;
+    private final CountDownLatch releaseLatch = new CountDownLatch(1);
+    // Only accessed on the rendering thread
+    private long lastLatchedFrameCount;
+
+    /**
+     * @param outputSurface surface the frames are drawn on, e.g. the input surface of an encoder
+     * @param width         size of the output surface
+     */
+    public ExportTextureRenderer(Context context, Surface outputSurface, int width, int height) {
+        super(context, null, width, height, null);
+        this.outputSurface = outputSurface;
+        setFrameScheduler(new UnthrottledFrameScheduler());
+    }
+
+    @Override
+    protected boolean isPaced() {
+        return false;
+    }
+
+    @Override
+    protected void initGL() {
+        eglSurface = eglCore.createWindowSurface(outputSurface);
+        eglCore.makeCurrent(eglSurface);
+    }
+
+    /**
+     * Also reached when OpenGL could not be initialized on the output, e.g. an encoder input which is already gone.
+     */
+    @Override
+    protected void onReleased() {
+        super.onReleased();
+        releaseLatch.countDown();
+    }
+
+    /**
+     * Only video frames are sent to the output, a redraw for the overlay alone would add a frame with the timestamp of
+     * the previous one.
+     */
+    @Override
+    protected void drawFrame() {
+        if (!draw() || getLatchedFrameCount() == lastLatchedFrameCount) {
+            return;
+        }
+        lastLatchedFrameCount = getLatchedFrameCount();
+        // Set even for a timestamp of 0, otherwise the encoder stamps the frame with the current time
+        eglCore.setPresentationTime(getPresentationTimeNanos());
+        egl.eglSwapBuffers(eglDisplay, eglSurface);
+        synchronized (frameLock) {
+            presentedFrames++;
+            frameLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until the passed number of video frames has been sent to the output surface.
+     *
+     * @return false if the timeout expired first, e.g. because a frame never reached the renderer
+     */
+    public boolean awaitPresentedFrames(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (frameLock) {
+            while (presentedFrames < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                frameLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of video frames sent to the output surface so far
+     */
+    public long getPresentedFrames() {
+        synchronized (frameLock) {
+            return presentedFrames;
+        }
+    }
+
+    /**
+     * Blocks until the renderer has been released and its EGL surface on the output destroyed, if it was ever created.
+     *
+     * @return false if the timeout expired first
+     */
+    public boolean awaitReleased(long timeout, TimeUnit unit) throws InterruptedException {
+        return releaseLatch.await(timeout, unit);
+    }
+
+    /**
+     * Lets the rendering loop run as fast as frames come in.
+     */
+    private static final class UnthrottledFrameScheduler implements FrameScheduler {
+
+        @Override
+        public long awaitNextFrame() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long getFrameIntervalNanos() {
+            return DEFAULT_FRAME_INTERVAL_NANOS;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.malmstein.fenster.renderer;
+
+/**
+ * Image filter applied to the video by a {@link FilterChain}.
+ *
+ * A filter is a piece of GLSL which the chain pastes into a generated fragment shader. Per-pixel filters (color
+ * matrix, LUT, custom color code) only read the input pixel they write, so any number of adjacent ones are fused into
+ * one shader and cost a single pass. Other filters (blur, sharpen) sample neighbouring pixels and start a new pass
+ * reading the output of the previous one; the per-pixel filters following them are fused into that pass.
+ *
+ * Setters may be called from any thread, the renderer redraws with the new values on its next frame. Everything else
+ * is called by the chain on the rendering thread.
+ */
+public abstract class Filter {
+
+    private FilterChain chain;
+
+    /**
+     * @return true if the output pixel only depends on the input pixel at the same position
+     */
+    public boolean isPerPixel() {
+        return true;
+    }
+
+    /**
+     * Returns the GLSL declarations of this filter: its uniforms, helpers and the function applying it. Every global
+     * name has to start with the passed prefix so that several filters can share a shader.
+     *
+     * Per-pixel filters declare {@code vec4 <prefix>apply(vec4 color)}. Other filters declare
+     * {@code vec4 <prefix>apply(vec2 uv)} and read their input through {@code vec4 sampleInput(vec2 uv)}, the size of an
+     * input pixel being available as {@code uniform vec2 texelSize}.
+     */
+    protected abstract String getShaderCode(String prefix);
+
+    /**
+     * Called on the rendering thread once the shader containing this filter has been linked, to look up the uniform
+     * handles.
+     */
+    protected abstract void onLinked(int program, String prefix);
+
+    /**
+     * Called on the rendering thread with the program in use, before each draw, to set the uniforms.
+     *
+     * @param textureUnit first texture unit free for this filter
+     * @return first texture unit left free after this filter
+     */
+    protected int onDraw(int textureUnit) {
+        return textureUnit;
+    }
+
+    /**
+     * Called on the rendering thread when the filter is removed from its chain or the chain is released, to delete
+     * the GL objects owned by the filter.
+     */
+    protected void onRelease() {
+    }
+
+    /**
+     * Asks the renderer showing this filter to redraw, call it whenever a parameter changes.
+     */
+    protected void invalidate() {
+        FilterChain current;
+        synchronized (this) {
+            current = chain;
+        }
+        if (current != null) {
+            current.invalidate();
+        }
+    }
+
+    synchronized void setChain(FilterChain chain) {
+        this.chain = chain;
+    }
+}
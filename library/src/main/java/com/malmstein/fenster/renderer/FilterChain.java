@@ -0,0 +1,329 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of {@link Filter}s applied to the video of a {@link VideoTextureRenderer}, see
+ * {@link VideoTextureRenderer#setFilterChain(FilterChain)}.
+ *
+ * The filters are compiled into as few passes as possible: adjacent per-pixel filters share one generated shader, and
+ * a new pass only starts at a filter sampling neighbouring pixels. The first pass reads the video texture directly and
+ * the last one writes to the output surface, so a chain of per-pixel filters costs no more than drawing the video
+ * without filters. Intermediate passes render into two framebuffers used in turn, taken from the
+ * {@link FramebufferPool} of the context.
+ *
+ * Filters can be added and removed from any thread, the passes are rebuilt on the rendering thread before the next
+ * frame.
+ */
+public class FilterChain {
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 vPosition;\n" +
+                    "attribute vec4 vTexCoordinate;\n" +
+                    "uniform mat4 textureTransform;\n" +
+                    "varying vec2 v_TexCoordinate;\n" +
+                    "void main() {\n" +
+                    "    v_TexCoordinate = (textureTransform * vTexCoordinate).xy;\n" +
+                    "    gl_Position = vPosition;\n" +
+                    "}\n";
+
+    private final List<Filter> filters = new ArrayList<>();
+    // Filters removed since the last frame, their GL objects are released on the rendering thread
+    private final List<Filter> removedFilters = new ArrayList<>();
+    private boolean changed = true;
+    private VideoTextureRenderer renderer;
+
+    // Only accessed on the rendering thread
+    private final List<Filter> activeFilters = new ArrayList<>();
+    private final List<Pass> passes = new ArrayList<>();
+    private final Framebuffer[] framebuffers = new Framebuffer[2];
+    private FramebufferPool framebufferPool;
+    private final float[] identityMatrix = new float[16];
+    private final int[] viewport = new int[4];
+
+    public FilterChain() {
+        Matrix.setIdentityM(identityMatrix, 0);
+    }
+
+    public FilterChain add(Filter filter) {
+        synchronized (this) {
+            filters.add(filter);
+            removedFilters.remove(filter);
+            changed = true;
+        }
+        filter.setChain(this);
+        invalidate();
+        return this;
+    }
+
+    public FilterChain remove(Filter filter) {
+        synchronized (this) {
+            if (!filters.remove(filter)) {
+                return this;
+            }
+            removedFilters.add(filter);
+            changed = true;
+        }
+        filter.setChain(null);
+        invalidate();
+        return this;
+    }
+
+    public void clear() {
+        synchronized (this) {
+            for (Filter filter : filters) {
+                filter.setChain(null);
+            }
+            removedFilters.addAll(filters);
+            filters.clear();
+            changed = true;
+        }
+        invalidate();
+    }
+
+    public synchronized boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    synchronized void setRenderer(VideoTextureRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    void invalidate() {
+        VideoTextureRenderer current;
+        synchronized (this) {
+            current = renderer;
+        }
+        if (current != null) {
+            current.invalidate();
+        }
+    }
+
+    /**
+     * Draws the video through all filters onto the window surface. The viewport has to be set.
+     *
+     * @param videoTexture     external texture holding the current video frame
+     * @param textureTransform transform from the flipped quad coordinates to the video texture
+     * @param inputWidth       size of the video, the intermediate passes are rendered at this size
+     */
+    void draw(EglCore eglCore, int videoTexture, float[] textureTransform, int inputWidth, int inputHeight) {
+        drawInto(eglCore, videoTexture, textureTransform, inputWidth, inputHeight, null, false);
+    }
+
+    /**
+     * @param output     framebuffer to draw into, or null for the window surface with the current viewport
+     * @param flipOutput true to draw the result upside down, e.g. so that it is read back top row first
+     * @return false if the chain turned out to be empty and nothing has been drawn
+     */
+    boolean drawInto(EglCore eglCore, int videoTexture, float[] textureTransform, int inputWidth, int inputHeight,
+                     Framebuffer output, boolean flipOutput) {
+        framebufferPool = eglCore.getFramebufferPool();
+        synchronized (this) {
+            if (changed) {
+                activeFilters.clear();
+                activeFilters.addAll(filters);
+                for (int i = 0; i < removedFilters.size(); i++) {
+                    removedFilters.get(i).onRelease();
+                }
+                removedFilters.clear();
+                buildPasses(eglCore.getProgramCache());
+                changed = false;
+            }
+        }
+        if (passes.isEmpty()) {
+            return false;
+        }
+
+        int[] viewport = this.viewport;
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+
+        QuadGeometry quad = eglCore.getQuadGeometry();
+        int inputTexture = videoTexture;
+        float[] transform = textureTransform;
+        // Swapping the quad coordinates of the first pass flips everything drawn after it
+        int textureCoords = flipOutput ? QuadGeometry.TEXTURE_COORDS_UPRIGHT : QuadGeometry.TEXTURE_COORDS_FLIPPED;
+        for (int i = 0; i < passes.size(); i++) {
+            boolean last = i == passes.size() - 1;
+            Framebuffer target = null;
+            if (last) {
+                if (output != null) {
+                    output.bind();
+                } else {
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+                }
+                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            } else {
+                target = getFramebuffer(i % 2, inputWidth, inputHeight);
+                target.bind();
+            }
+            passes.get(i).draw(quad, textureCoords, transform, inputTexture, inputWidth, inputHeight);
+            if (target != null) {
+                // Later passes read the framebuffer as it is
+                inputTexture = target.getTexture();
+                transform = identityMatrix;
+                textureCoords = QuadGeometry.TEXTURE_COORDS_UPRIGHT;
+            }
+        }
+        return true;
+    }
+
+    private Framebuffer getFramebuffer(int index, int width, int height) {
+        Framebuffer framebuffer = framebuffers[index];
+        if (framebuffer != null && !framebuffer.matches(width, height, FramebufferPool.FORMAT_RGBA)) {
+            framebufferPool.release(framebuffer);
+            framebuffer = null;
+        }
+        if (framebuffer == null) {
+            framebuffer = framebufferPool.acquire(width, height, FramebufferPool.FORMAT_RGBA);
+            framebuffer.setFilter(GLES20.GL_LINEAR);
+            framebuffers[index] = framebuffer;
+        }
+        return framebuffer;
+    }
+
+    private void buildPasses(ProgramCache programCache) {
+        passes.clear();
+        Pass pass = null;
+        for (int i = 0; i < activeFilters.size(); i++) {
+            Filter filter = activeFilters.get(i);
+            if (pass == null || !filter.isPerPixel()) {
+                pass = new Pass(passes.isEmpty());
+                passes.add(pass);
+            }
+            pass.filters.add(filter);
+        }
+        for (int i = 0; i < passes.size(); i++) {
+            passes.get(i).link(programCache);
+        }
+        // Only intermediate passes need framebuffers
+        releaseFramebuffers(Math.max(passes.size() - 1, 0));
+    }
+
+    private void releaseFramebuffers(int from) {
+        for (int i = from; i < framebuffers.length; i++) {
+            if (framebuffers[i] != null) {
+                framebufferPool.release(framebuffers[i]);
+                framebuffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Releases the GL objects of the chain and its filters, called on the rendering thread.
+     */
+    void release() {
+        synchronized (this) {
+            for (int i = 0; i < removedFilters.size(); i++) {
+                removedFilters.get(i).onRelease();
+            }
+            removedFilters.clear();
+            for (int i = 0; i < filters.size(); i++) {
+                filters.get(i).onRelease();
+            }
+            changed = true;
+        }
+        releaseFramebuffers(0);
+        passes.clear();
+    }
+
+    /**
+     * One draw call: reads the input, optionally through a neighbourhood filter, then applies per-pixel filters.
+     */
+    private static class Pass {
+        final boolean externalInput;
+        final List<Filter> filters = new ArrayList<>();
+
+        int positionHandle;
+        int textureCoordinateHandle;
+        int textureTransformHandle;
+        int inputHandle;
+        int texelSizeHandle;
+        int program;
+
+        Pass(boolean externalInput) {
+            this.externalInput = externalInput;
+        }
+
+        String getFragmentShader() {
+            StringBuilder code = new StringBuilder();
+            if (externalInput) {
+                code.append("#extension GL_OES_EGL_image_external : require\n");
+            }
+            code.append("precision mediump float;\n")
+                    .append("varying vec2 v_TexCoordinate;\n")
+                    .append(externalInput ? "uniform samplerExternalOES" : "uniform sampler2D").append(" u_input;\n")
+                    .append("uniform vec2 texelSize;\n")
+                    .append("vec4 sampleInput(vec2 uv) {\n")
+                    .append("    return texture2D(u_input, uv);\n")
+                    .append("}\n");
+            for (int i = 0; i < filters.size(); i++) {
+                code.append(filters.get(i).getShaderCode(prefix(i)));
+            }
+            code.append("void main() {\n");
+            int first = 0;
+            if (!filters.get(0).isPerPixel()) {
+                code.append("    vec4 color = ").append(prefix(0)).append("apply(v_TexCoordinate);\n");
+                first = 1;
+            } else {
+                code.append("    vec4 color = sampleInput(v_TexCoordinate);\n");
+            }
+            for (int i = first; i < filters.size(); i++) {
+                code.append("    color = ").append(prefix(i)).append("apply(color);\n");
+            }
+            code.append("    gl_FragColor = color;\n")
+                    .append("}\n");
+            return code.toString();
+        }
+
+        void link(ProgramCache programCache) {
+            program = programCache.getProgram(VERTEX_SHADER, getFragmentShader());
+            positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+            textureCoordinateHandle = GLES20.glGetAttribLocation(program, "vTexCoordinate");
+            textureTransformHandle = GLES20.glGetUniformLocation(program, "textureTransform");
+            inputHandle = GLES20.glGetUniformLocation(program, "u_input");
+            texelSizeHandle = GLES20.glGetUniformLocation(program, "texelSize");
+            for (int i = 0; i < filters.size(); i++) {
+                filters.get(i).onLinked(program, prefix(i));
+            }
+        }
+
+        void draw(QuadGeometry quad, int textureCoords, float[] textureTransform, int inputTexture,
+                  int inputWidth, int inputHeight) {
+            GLES20.glUseProgram(program);
+            GLES20.glEnableVertexAttribArray(positionHandle);
+            GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
+            quad.bind(positionHandle, textureCoordinateHandle, textureCoords);
+            GLES20.glUniformMatrix4fv(textureTransformHandle, 1, false, textureTransform, 0);
+            GLES20.glUniform2f(texelSizeHandle, 1f / inputWidth, 1f / inputHeight);
+
+            int target = externalInput ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(target, inputTexture);
+            GLES20.glUniform1i(inputHandle, 0);
+            int textureUnit = 1;
+            for (int i = 0; i < filters.size(); i++) {
+                textureUnit = filters.get(i).onDraw(textureUnit);
+            }
+
+            quad.draw();
+            GLES20.glDisableVertexAttribArray(positionHandle);
+            GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+            quad.unbind();
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(target, 0);
+        }
+
+        private static String prefix(int index) {
+            return "f" + index + "_";
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.malmstein.fenster.renderer;
+
+/**
+ * Decides on which vsync a video frame has to be presented, based on its media timestamp.
+ *
+ * Timestamps close to {@link System#nanoTime()} are treated as absolute presentation times, which is what the platform
+ * decoders set when they render ahead of time. Any other timestamp is mapped to the display clock through an anchor
+ * taken on the first frame and after every discontinuity (seek, loop, new clip). Playback resuming after a pause keeps
+ * contiguous timestamps, so the anchor is also taken again when a frame comes in far later than the anchor expects.
+ *
+ * Frames which are more than a frame interval late are dropped when a newer frame is already waiting, frames due
+ * after the next vsync are held back. The gaps between presented frames are counted as repeated vsyncs, which shows
+ * the cadence, e.g. a 3:2 pattern for 24 fps content on a 60 Hz display.
+ *
+ * This class has no Android dependency and is not thread safe, it is meant to be used from the rendering thread.
+ */
+public class FramePacer {
+
+    /**
+     * Draw the frame now, see {@link #getPresentationTimeNanos()}
+     */
+    public static final int PRESENT = 0;
+    /**
+     * The frame is late and a newer one is waiting, do not draw it
+     */
+    public static final int DROP = 1;
+    /**
+     * The frame is due after the next vsync, keep it and check again on the next one
+     */
+    public static final int WAIT = 2;
+
+    /**
+     * Timestamps further than this from the system clock are media times, not presentation times
+     */
+    private static final long ABSOLUTE_TIMESTAMP_WINDOW_NANOS = 1000000000L;
+    /**
+     * Gap between two frames above which the timeline is considered discontinuous
+     */
+    private static final long MAX_FRAME_GAP_NANOS = 1000000000L;
+    /**
+     * Lateness above which the player is assumed to have been paused or stalled rather than being slow, so the frames
+     * are paced from now on instead of being dropped against the old anchor
+     */
+    static final long MAX_LATE_NANOS = 250000000L;
+    /**
+     * Frames are never held back longer than this, in case the timestamps are bogus
+     */
+    private static final long MAX_WAIT_NANOS = 100000000L;
+
+    private boolean anchored;
+    private long anchorPtsNanos;
+    private long anchorTimeNanos;
+    private long lastPtsNanos = -1;
+    private long lastPresentationTimeNanos;
+    private long presentationTimeNanos;
+
+    private int presentedFrames;
+    private int droppedFrames;
+    private int repeatedFrames;
+
+    /**
+     * @param ptsNanos           timestamp of the latched frame, e.g. {@link android.graphics.SurfaceTexture#getTimestamp()}
+     * @param vsyncNanos         time of the vsync the rendering loop woke up on
+     * @param frameIntervalNanos current display refresh interval
+     * @param newerFrameQueued   true if another frame arrived after this one was latched
+     * @return {@link #PRESENT}, {@link #DROP} or {@link #WAIT}
+     */
+    public int schedule(long ptsNanos, long vsyncNanos, long frameIntervalNanos, boolean newerFrameQueued) {
+        // A frame swapped now is shown on the next vsync at the earliest
+        long earliestNanos = vsyncNanos + frameIntervalNanos;
+        long targetNanos;
+        if (Math.abs(ptsNanos - vsyncNanos) < ABSOLUTE_TIMESTAMP_WINDOW_NANOS) {
+            targetNanos = ptsNanos;
+        } else {
+            if (!anchored || ptsNanos < lastPtsNanos || ptsNanos - lastPtsNanos > MAX_FRAME_GAP_NANOS) {
+                anchored = true;
+                anchorPtsNanos = ptsNanos;
+                anchorTimeNanos = earliestNanos;
+                lastPresentationTimeNanos = 0;
+            }
+            targetNanos = anchorTimeNanos + (ptsNanos - anchorPtsNanos);
+            if (earliestNanos - targetNanos > MAX_LATE_NANOS) {
+                anchorPtsNanos = ptsNanos;
+                anchorTimeNanos = earliestNanos;
+                lastPresentationTimeNanos = 0;
+                targetNanos = earliestNanos;
+            }
+        }
+        lastPtsNanos = ptsNanos;
+
+        long targetVsyncNanos = snapToVsync(targetNanos, vsyncNanos, frameIntervalNanos);
+        if (earliestNanos - targetNanos > frameIntervalNanos && newerFrameQueued) {
+            droppedFrames++;
+            return DROP;
+        }
+        if (targetVsyncNanos > earliestNanos && targetVsyncNanos - earliestNanos < MAX_WAIT_NANOS) {
+            return WAIT;
+        }
+
+        presentationTimeNanos = Math.max(targetVsyncNanos, earliestNanos);
+        if (lastPresentationTimeNanos != 0) {
+            long shownFor = (presentationTimeNanos - lastPresentationTimeNanos + frameIntervalNanos / 2) / frameIntervalNanos;
+            if (shownFor > 1) {
+                repeatedFrames += shownFor - 1;
+            }
+        }
+        lastPresentationTimeNanos = presentationTimeNanos;
+        presentedFrames++;
+        return PRESENT;
+    }
+
+    private static long snapToVsync(long timeNanos, long vsyncNanos, long frameIntervalNanos) {
+        long delta = timeNanos - vsyncNanos;
+        long vsyncs = delta >= 0
+                ? (delta + frameIntervalNanos / 2) / frameIntervalNanos
+                : -((-delta + frameIntervalNanos / 2) / frameIntervalNanos);
+        return vsyncNanos + vsyncs * frameIntervalNanos;
+    }
+
+    /**
+     * @return the vsync time the last presented frame is meant for, in the {@link System#nanoTime()} time base
+     */
+    public long getPresentationTimeNanos() {
+        return presentationTimeNanos;
+    }
+
+    /**
+     * Forgets the timeline, the next frame is presented as soon as possible and becomes the new anchor.
+     */
+    public void reset() {
+        anchored = false;
+        lastPtsNanos = -1;
+        lastPresentationTimeNanos = 0;
+    }
+
+    public int getPresentedFrames() {
+        return presentedFrames;
+    }
+
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return number of vsyncs on which the previous frame had to be shown again because no new frame was due
+     */
+    public int getRepeatedFrames() {
+        return repeatedFrames;
+    }
+
+    public void resetStats() {
+        presentedFrames = 0;
+        droppedFrames = 0;
+        repeatedFrames = 0;
+    }
+}
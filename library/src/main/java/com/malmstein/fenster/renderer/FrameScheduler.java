@@ -0,0 +1,51 @@
+package com.malmstein.fenster.renderer;
+
+/**
+ * Paces the rendering loop of a {@link TextureSurfaceRenderer}.
+ *
+ * The rendering thread calls {@link #awaitNextFrame()} once per loop iteration and draws as soon as it returns.
+ * Implementations decide when that is: {@link VsyncFrameScheduler} follows the display vsync, {@link ClockFrameScheduler}
+ * follows a fixed interval on a (possibly fake) {@link Clock}.
+ */
+public interface FrameScheduler {
+
+    /**
+     * Source of time used by schedulers, can be replaced with a fake one to test pacing on the JVM.
+     */
+    interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        }
+    };
+
+    long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    /**
+     * Blocks the calling thread until the next frame should be drawn.
+     *
+     * @return the time of the frame in nanoseconds, in the {@link System#nanoTime()} time base
+     */
+    long awaitNextFrame() throws InterruptedException;
+
+    /**
+     * @return the current estimate of the time between two frames in nanoseconds
+     */
+    long getFrameIntervalNanos();
+
+    /**
+     * Called from the rendering thread when the loop ends, the scheduler must not be used afterwards.
+     */
+    void release();
+}
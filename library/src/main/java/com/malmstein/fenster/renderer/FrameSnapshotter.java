@@ -0,0 +1,306 @@
+package com.malmstein.fenster.renderer;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads frames rendered into framebuffers back into bitmaps without stalling the rendering thread, used by
+ * {@link VideoTextureRenderer#requestSnapshot(int, int, VideoTextureRenderer.OnSnapshotListener)}.
+ *
+ * In an OpenGL ES 3.0 context on API 24 and up the pixels are copied into one of two pixel buffer objects and a fence
+ * is inserted, the buffer is only mapped on a later frame once the fence has been signaled. Everywhere else
+ * glReadPixels is deferred to the next frame, by which time the GPU has usually finished drawing the snapshot. Bitmaps
+ * come from a {@link BitmapPool} and are handed to the listener on a background thread.
+ *
+ * Requests can be added from any thread, everything else has to be called on the rendering thread.
+ */
+class FrameSnapshotter {
+
+    private static final int PBO_COUNT = 2;
+    private static final int BITMAP_POOL_SIZE = 2;
+    // Build.VERSION_CODES.N, the first release with the pixel buffer variant of GLES30.glReadPixels
+    private static final int API_READ_PIXELS_OFFSET = 24;
+
+    private static Method readPixelsToPixelBuffer;
+    private static boolean readPixelsLookedUp;
+
+    private static ExecutorService deliveryExecutor;
+
+    static class Request {
+        final int width;
+        final int height;
+        final VideoTextureRenderer.OnSnapshotListener listener;
+        // Deferred read, the framebuffer holds the snapshot until it is read
+        Framebuffer framebuffer;
+
+        Request(int width, int height, VideoTextureRenderer.OnSnapshotListener listener) {
+            this.width = width;
+            this.height = height;
+            this.listener = listener;
+        }
+    }
+
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    private final List<Request> requests = new ArrayList<>();
+
+    // Only accessed on the rendering thread
+    private boolean pixelBuffersSupported;
+    private final int[] pixelBuffers = new int[PBO_COUNT];
+    private final int[] pixelBufferSizes = new int[PBO_COUNT];
+    private final long[] fences = new long[PBO_COUNT];
+    private final Request[] reading = new Request[PBO_COUNT];
+    private final List<Request> deferred = new ArrayList<>();
+    private ByteBuffer readBuffer;
+
+    void add(Request request) {
+        synchronized (requests) {
+            requests.add(request);
+        }
+    }
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * @return true if requests are waiting or reads are in flight, the renderer has to keep drawing until there are
+     * none left
+     */
+    boolean hasWork() {
+        synchronized (requests) {
+            if (!requests.isEmpty()) {
+                return true;
+            }
+        }
+        return isReading();
+    }
+
+    private boolean isReading() {
+        if (!deferred.isEmpty()) {
+            return true;
+        }
+        for (Request request : reading) {
+            if (request != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the next request to draw, or null if there is none or all pixel buffers are in use
+     */
+    Request poll(EglCore eglCore) {
+        pixelBuffersSupported = eglCore.getGlesVersion() >= 3 && getReadPixelsToPixelBuffer() != null;
+        if (pixelBuffersSupported && freePixelBuffer() < 0) {
+            return null;
+        }
+        synchronized (requests) {
+            return requests.isEmpty() ? null : requests.remove(0);
+        }
+    }
+
+    /**
+     * @return GLES30.glReadPixels(int, int, int, int, int, int, int), which is newer than the SDK the library is built
+     * against, or null below API 24
+     */
+    private static Method getReadPixelsToPixelBuffer() {
+        if (!readPixelsLookedUp) {
+            readPixelsLookedUp = true;
+            if (Build.VERSION.SDK_INT >= API_READ_PIXELS_OFFSET) {
+                try {
+                    readPixelsToPixelBuffer = GLES30.class.getMethod("glReadPixels", int.class, int.class, int.class,
+                            int.class, int.class, int.class, int.class);
+                } catch (NoSuchMethodException e) {
+                    readPixelsToPixelBuffer = null;
+                }
+            }
+        }
+        return readPixelsToPixelBuffer;
+    }
+
+    private int freePixelBuffer() {
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (reading[i] == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts reading a snapshot back, the framebuffer holding it is given back to the pool once it is not needed
+     * anymore.
+     */
+    void startRead(Request request, Framebuffer framebuffer, FramebufferPool framebufferPool) {
+        if (pixelBuffersSupported) {
+            int index = freePixelBuffer();
+            framebuffer.bind();
+            startPixelBufferRead(index, request.width, request.height);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            reading[index] = request;
+            // The copy into the pixel buffer is queued before anything drawn into the framebuffer by its next user
+            framebufferPool.release(framebuffer);
+        } else {
+            request.framebuffer = framebuffer;
+            deferred.add(request);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void startPixelBufferRead(int index, int width, int height) {
+        int size = width * height * 4;
+        if (pixelBuffers[index] == 0) {
+            GLES20.glGenBuffers(1, pixelBuffers, index);
+            GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, pixelBuffers[index], 0, this);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+        if (pixelBufferSizes[index] != size) {
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            pixelBufferSizes[index] = size;
+            GlResourceTracker.updateGlObject(GlResourceTracker.BUFFER, pixelBuffers[index], size);
+        }
+        try {
+            readPixelsToPixelBuffer.invoke(null, 0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("glReadPixels into pixel buffer failed", e);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        fences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /**
+     * Finishes the reads the GPU is done with and delivers their bitmaps.
+     */
+    void completeReads(FramebufferPool framebufferPool) {
+        for (int i = 0; i < deferred.size(); i++) {
+            Request request = deferred.get(i);
+            Bitmap bitmap = readFramebuffer(request);
+            framebufferPool.release(request.framebuffer);
+            request.framebuffer = null;
+            deliver(request, bitmap);
+        }
+        deferred.clear();
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (reading[i] != null && isFenceSignaled(i)) {
+                Request request = reading[i];
+                reading[i] = null;
+                deliver(request, mapPixelBuffer(i, request));
+            }
+        }
+    }
+
+    private Bitmap readFramebuffer(Request request) {
+        int size = request.width * request.height * 4;
+        if (readBuffer == null || readBuffer.capacity() < size) {
+            readBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        readBuffer.clear();
+        request.framebuffer.bind();
+        GLES20.glReadPixels(0, 0, request.width, request.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                readBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        readBuffer.limit(size);
+        Bitmap bitmap = bitmapPool.acquire(request.width, request.height);
+        bitmap.copyPixelsFromBuffer(readBuffer);
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean isFenceSignaled(int index) {
+        int status = GLES30.glClientWaitSync(fences[index], 0, 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            return false;
+        }
+        GLES30.glDeleteSync(fences[index]);
+        fences[index] = 0;
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private Bitmap mapPixelBuffer(int index, Request request) {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[index]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                pixelBufferSizes[index], GLES30.GL_MAP_READ_BIT);
+        Bitmap bitmap = null;
+        if (pixels != null) {
+            bitmap = bitmapPool.acquire(request.width, request.height);
+            bitmap.copyPixelsFromBuffer(pixels.order(ByteOrder.nativeOrder()));
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return bitmap;
+    }
+
+    private static void deliver(final Request request, final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        getDeliveryExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                request.listener.onSnapshot(bitmap);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getDeliveryExecutor() {
+        if (deliveryExecutor == null) {
+            deliveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FensterSnapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return deliveryExecutor;
+    }
+
+    /**
+     * Drops pending requests and deletes the pixel buffers, the listeners of unfinished snapshots are not called.
+     */
+    void release(FramebufferPool framebufferPool) {
+        synchronized (requests) {
+            requests.clear();
+        }
+        for (int i = 0; i < deferred.size(); i++) {
+            framebufferPool.release(deferred.get(i).framebuffer);
+        }
+        deferred.clear();
+        if (pixelBuffersSupported) {
+            releasePixelBuffers();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void releasePixelBuffers() {
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (fences[i] != 0) {
+                GLES30.glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+            if (pixelBuffers[i] != 0) {
+                GlResourceTracker.untrackGlObject(GlResourceTracker.BUFFER, pixelBuffers[i]);
+                GLES20.glDeleteBuffers(1, pixelBuffers, i);
+                pixelBuffers[i] = 0;
+                pixelBufferSizes[i] = 0;
+            }
+            reading[i] = null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+
+/**
+ * Offscreen RGBA render target: a framebuffer object with a color texture and an optional 16 bit depth buffer.
+ *
+ * Renderers get framebuffers from the {@link FramebufferPool} of their context instead of creating them, so that
+ * buffers of the same size are reused.
+ */
+public class Framebuffer {
+
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int[] framebuffers = new int[1];
+    private final int[] textures = new int[1];
+    private final int[] renderbuffers = new int[1];
+    private int filter = GLES20.GL_LINEAR;
+
+    // Managed by the pool
+    int refCount;
+
+    /**
+     * Creates the texture and framebuffer, has to be called on a thread with a current OpenGL context.
+     *
+     * @param format {@link FramebufferPool#FORMAT_RGBA} or {@link FramebufferPool#FORMAT_RGBA_DEPTH}
+     * @param owner  pool holding the framebuffer, for {@link GlResourceTracker}
+     */
+    Framebuffer(int width, int height, int format, Object owner) {
+        this(width, height, format);
+
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, textures[0], (long) width * height * 4, owner);
+
+        GLES20.glGenFramebuffers(1, framebuffers, 0);
+        GlResourceTracker.trackGlObject(GlResourceTracker.FRAMEBUFFER, framebuffers[0], 0, owner);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, textures[0], 0);
+        if (format == FramebufferPool.FORMAT_RGBA_DEPTH) {
+            GLES20.glGenRenderbuffers(1, renderbuffers, 0);
+            GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderbuffers[0]);
+            GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
+            GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+            GlResourceTracker.trackGlObject(GlResourceTracker.RENDERBUFFER, renderbuffers[0],
+                    (long) width * height * 2, owner);
+            GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                    GLES20.GL_RENDERBUFFER, renderbuffers[0]);
+        }
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            delete();
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+    }
+
+    /**
+     * Creates the framebuffer without any GL object, for testing the bookkeeping of the pool on the JVM.
+     */
+    Framebuffer(int width, int height, int format) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    /**
+     * Binds the framebuffer and sets the viewport to cover it.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    /**
+     * Sets the minification and magnification filter of the texture, {@link GLES20#GL_LINEAR} by default. Pooled
+     * framebuffers keep the filter of their previous user, so users needing a particular one set it after acquiring.
+     */
+    public void setFilter(int filter) {
+        if (this.filter == filter) {
+            return;
+        }
+        this.filter = filter;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    public int getTexture() {
+        return textures[0];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    boolean matches(int width, int height, int format) {
+        return this.width == width && this.height == height && this.format == format;
+    }
+
+    /**
+     * @return approximate GPU memory used by the buffers
+     */
+    long getSizeBytes() {
+        int bytesPerPixel = format == FramebufferPool.FORMAT_RGBA_DEPTH ? 6 : 4;
+        return (long) width * height * bytesPerPixel;
+    }
+
+    void delete() {
+        if (framebuffers[0] != 0) {
+            GlResourceTracker.untrackGlObject(GlResourceTracker.FRAMEBUFFER, framebuffers[0]);
+            GLES20.glDeleteFramebuffers(1, framebuffers, 0);
+            framebuffers[0] = 0;
+        }
+        if (renderbuffers[0] != 0) {
+            GlResourceTracker.untrackGlObject(GlResourceTracker.RENDERBUFFER, renderbuffers[0]);
+            GLES20.glDeleteRenderbuffers(1, renderbuffers, 0);
+            renderbuffers[0] = 0;
+        }
+        if (textures[0] != 0) {
+            GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, textures[0]);
+            GLES20.glDeleteTextures(1, textures, 0);
+            textures[0] = 0;
+        }
+    }
+}
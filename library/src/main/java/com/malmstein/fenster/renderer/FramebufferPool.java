@@ -0,0 +1,129 @@
+package com.malmstein.fenster.renderer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference counted framebuffers of one OpenGL context, reused by size and format.
+ *
+ * A released framebuffer stays allocated while it is idle, so that the next user asking for the same size, e.g. the
+ * next clip of the same resolution, gets it without allocating GPU memory. Idle framebuffers are deleted, least
+ * recently used first, when the memory of all framebuffers exceeds the budget. Framebuffers in use are never deleted,
+ * so the budget can be exceeded while they are held.
+ *
+ * All methods have to be called on the rendering thread owning the context, see {@link EglCore#getFramebufferPool()}.
+ */
+public class FramebufferPool {
+
+    /**
+     * Color texture only
+     */
+    public static final int FORMAT_RGBA = 0;
+    /**
+     * Color texture and 16 bit depth buffer
+     */
+    public static final int FORMAT_RGBA_DEPTH = 1;
+
+    public static final long DEFAULT_BUDGET_BYTES = 48 * 1024 * 1024;
+
+    private static final String TAG = "FramebufferPool";
+
+    // Least recently released first
+    private final List<Framebuffer> idle = new ArrayList<>();
+    private long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private long allocatedBytes;
+
+    FramebufferPool() {
+    }
+
+    /**
+     * @return a framebuffer with a reference count of one, to be given back with {@link #release(Framebuffer)}
+     */
+    public Framebuffer acquire(int width, int height, int format) {
+        for (int i = idle.size() - 1; i >= 0; i--) {
+            Framebuffer framebuffer = idle.get(i);
+            if (framebuffer.matches(width, height, format)) {
+                idle.remove(i);
+                framebuffer.refCount = 1;
+                return framebuffer;
+            }
+        }
+        Framebuffer framebuffer = create(width, height, format);
+        framebuffer.refCount = 1;
+        allocatedBytes += framebuffer.getSizeBytes();
+        trim();
+        return framebuffer;
+    }
+
+    /**
+     * Adds a reference to a framebuffer which has been acquired, for a second user of its content.
+     */
+    public void retain(Framebuffer framebuffer) {
+        if (framebuffer.refCount <= 0) {
+            throw new IllegalStateException("Framebuffer has already been released");
+        }
+        framebuffer.refCount++;
+    }
+
+    /**
+     * Removes a reference, the framebuffer becomes idle and can be handed out again once the last one is removed.
+     */
+    public void release(Framebuffer framebuffer) {
+        if (framebuffer.refCount <= 0) {
+            Log.w(TAG, "Framebuffer released more often than acquired");
+            return;
+        }
+        if (--framebuffer.refCount == 0) {
+            idle.add(framebuffer);
+            trim();
+        }
+    }
+
+    /**
+     * Sets the memory which may be used by all framebuffers of the context before idle ones are deleted.
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        trim();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return memory used by all framebuffers of the pool, idle or not
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Deletes all idle framebuffers, e.g. when the system is low on memory.
+     */
+    public void clear() {
+        while (!idle.isEmpty()) {
+            delete(idle.remove(0));
+        }
+    }
+
+    /**
+     * Creates the GL objects of a new framebuffer, replaced in tests.
+     */
+    Framebuffer create(int width, int height, int format) {
+        return new Framebuffer(width, height, format, this);
+    }
+
+    private void trim() {
+        while (allocatedBytes > budgetBytes && !idle.isEmpty()) {
+            delete(idle.remove(0));
+        }
+    }
+
+    private void delete(Framebuffer framebuffer) {
+        allocatedBytes -= framebuffer.getSizeBytes();
+        framebuffer.delete();
+    }
+}
@@ -0,0 +1,331 @@
+package com.malmstein.fenster.renderer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Debug accounting of the OpenGL objects and surfaces created by the renderers.
+ *
+ * While enabled every texture, framebuffer, renderbuffer, buffer and program created in this package is recorded with
+ * an estimate of the memory it holds, the object owning it and the stack it was created from, along with the
+ * {@link android.view.Surface}s and {@link android.graphics.SurfaceTexture}s handed to media players. Live totals are
+ * available at any time, and objects still held by a renderer when it deinitializes OpenGL are logged as leaks.
+ *
+ * Disabled by default, when disabled every call returns right away. Memory of surface buffer queues is owned by their
+ * producer and not included in the estimates.
+ */
+public final class GlResourceTracker {
+
+    public static final int TEXTURE = 0;
+    public static final int FRAMEBUFFER = 1;
+    public static final int RENDERBUFFER = 2;
+    public static final int BUFFER = 3;
+    public static final int PROGRAM = 4;
+    public static final int SURFACE = 5;
+    public static final int SURFACE_TEXTURE = 6;
+
+    private static final String[] TYPE_NAMES = {
+            "texture", "framebuffer", "renderbuffer", "buffer", "program", "surface", "surface texture"};
+
+    private static final String TAG = "GlResourceTracker";
+
+    private static volatile boolean enabled;
+
+    // GL objects are keyed by context and name, surfaces by identity
+    private static final Map<GlKey, Entry> glObjects = new HashMap<>();
+    private static final Map<Object, Entry> surfaces = new IdentityHashMap<>();
+
+    private GlResourceTracker() {
+    }
+
+    /**
+     * Starts or stops recording, objects created while disabled are not accounted for. Enable it before the first
+     * renderer starts to get complete totals.
+     */
+    public static void setEnabled(boolean enabled) {
+        GlResourceTracker.enabled = enabled;
+        if (!enabled) {
+            synchronized (GlResourceTracker.class) {
+                glObjects.clear();
+                surfaces.clear();
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a GL object created in the current context.
+     *
+     * @param type  {@link #TEXTURE}, {@link #FRAMEBUFFER}, {@link #RENDERBUFFER}, {@link #BUFFER} or {@link #PROGRAM}
+     * @param bytes estimated memory held by the object
+     * @param owner object responsible for deleting it
+     */
+    public static void trackGlObject(int type, int name, long bytes, Object owner) {
+        if (!enabled) {
+            return;
+        }
+        trackGlObject(type, name, bytes, owner, currentContext());
+    }
+
+    static void trackGlObject(int type, int name, long bytes, Object owner, Object context) {
+        if (!enabled) {
+            return;
+        }
+        GlKey key = new GlKey(type, name, context);
+        synchronized (GlResourceTracker.class) {
+            glObjects.put(key, new Entry(type, bytes, owner));
+        }
+    }
+
+    /**
+     * Updates the memory estimate of a GL object of the current context, e.g. after new storage has been allocated.
+     */
+    public static void updateGlObject(int type, int name, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        updateGlObject(type, name, bytes, currentContext());
+    }
+
+    static void updateGlObject(int type, int name, long bytes, Object context) {
+        if (!enabled) {
+            return;
+        }
+        GlKey key = new GlKey(type, name, context);
+        synchronized (GlResourceTracker.class) {
+            Entry entry = glObjects.get(key);
+            if (entry != null) {
+                entry.bytes = bytes;
+            }
+        }
+    }
+
+    public static void untrackGlObject(int type, int name) {
+        if (!enabled) {
+            return;
+        }
+        untrackGlObject(type, name, currentContext());
+    }
+
+    static void untrackGlObject(int type, int name, Object context) {
+        if (!enabled) {
+            return;
+        }
+        GlKey key = new GlKey(type, name, context);
+        synchronized (GlResourceTracker.class) {
+            glObjects.remove(key);
+        }
+    }
+
+    /**
+     * Records a {@link android.view.Surface} or {@link android.graphics.SurfaceTexture}.
+     *
+     * @param type {@link #SURFACE} or {@link #SURFACE_TEXTURE}
+     */
+    public static void trackSurface(int type, Object surface, Object owner) {
+        if (!enabled || surface == null) {
+            return;
+        }
+        synchronized (GlResourceTracker.class) {
+            surfaces.put(surface, new Entry(type, 0, owner));
+        }
+    }
+
+    public static void untrackSurface(Object surface) {
+        if (!enabled || surface == null) {
+            return;
+        }
+        synchronized (GlResourceTracker.class) {
+            surfaces.remove(surface);
+        }
+    }
+
+    /**
+     * @return number of live objects of a type, over all contexts
+     */
+    public static synchronized int getLiveCount(int type) {
+        int count = 0;
+        for (Entry entry : glObjects.values()) {
+            if (entry.type == type) {
+                count++;
+            }
+        }
+        for (Entry entry : surfaces.values()) {
+            if (entry.type == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return estimated memory held by live objects of a type, over all contexts
+     */
+    public static synchronized long getLiveBytes(int type) {
+        long bytes = 0;
+        for (Entry entry : glObjects.values()) {
+            if (entry.type == type) {
+                bytes += entry.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return estimated memory held by all live GL objects
+     */
+    public static synchronized long getLiveBytes() {
+        long bytes = 0;
+        for (Entry entry : glObjects.values()) {
+            bytes += entry.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Logs the number of live objects and their estimated memory per type.
+     */
+    public static void logTotals() {
+        if (!enabled) {
+            return;
+        }
+        StringBuilder totals = new StringBuilder("Live:");
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            totals.append(' ').append(TYPE_NAMES[type]).append("s=").append(getLiveCount(type));
+            long bytes = getLiveBytes(type);
+            if (bytes > 0) {
+                totals.append(" (").append(bytes / 1024).append(" KB)");
+            }
+        }
+        Log.d(TAG, totals.toString());
+    }
+
+    /**
+     * Logs the objects still recorded for an owner, called once the owner should have released all of them.
+     *
+     * @return number of leaked objects
+     */
+    public static int reportLeaks(Object owner) {
+        if (!enabled) {
+            return 0;
+        }
+        List<Entry> leaks = new ArrayList<>();
+        synchronized (GlResourceTracker.class) {
+            for (Entry entry : glObjects.values()) {
+                if (entry.owner == owner) {
+                    leaks.add(entry);
+                }
+            }
+            for (Entry entry : surfaces.values()) {
+                if (entry.owner == owner) {
+                    leaks.add(entry);
+                }
+            }
+        }
+        for (Entry entry : leaks) {
+            Log.w(TAG, "Leaked " + TYPE_NAMES[entry.type] + " of " + describe(owner) + ", " + entry.bytes + " bytes",
+                    entry.creation);
+        }
+        return leaks.size();
+    }
+
+    /**
+     * Forgets the GL objects of a context, which are deleted along with it. Objects owned by anything else than the
+     * context itself are logged as leaks first. The context is passed explicitly, none is current anymore by the time
+     * the context is destroyed.
+     *
+     * @param contextOwners owners whose objects live as long as the context, e.g. caches and pools
+     * @return number of objects leaked until the context was destroyed
+     */
+    static int releaseContext(Object context, Object... contextOwners) {
+        if (!enabled) {
+            return 0;
+        }
+        int leaks = 0;
+        synchronized (GlResourceTracker.class) {
+            for (Map.Entry<GlKey, Entry> object : new ArrayList<>(glObjects.entrySet())) {
+                if (!object.getKey().context.equals(context)) {
+                    continue;
+                }
+                Entry entry = object.getValue();
+                if (!isOneOf(entry.owner, contextOwners)) {
+                    leaks++;
+                    Log.w(TAG, "Leaked " + TYPE_NAMES[entry.type] + " of " + describe(entry.owner) + " until the "
+                            + "context was destroyed, " + entry.bytes + " bytes", entry.creation);
+                }
+                glObjects.remove(object.getKey());
+            }
+        }
+        return leaks;
+    }
+
+    private static boolean isOneOf(Object owner, Object[] owners) {
+        for (Object candidate : owners) {
+            if (candidate == owner) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static EGLContext currentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+
+    private static String describe(Object owner) {
+        return owner == null ? "unknown owner" : owner.getClass().getSimpleName() + "@"
+                + Integer.toHexString(System.identityHashCode(owner));
+    }
+
+    private static class Entry {
+        final int type;
+        final Object owner;
+        final Throwable creation;
+        long bytes;
+
+        Entry(int type, long bytes, Object owner) {
+            this.type = type;
+            this.bytes = bytes;
+            this.owner = owner;
+            this.creation = new Throwable("Created here");
+        }
+    }
+
+    private static class GlKey {
+        final int type;
+        final int name;
+        // An EGLContext, which wraps the native handle and compares by it
+        final Object context;
+
+        GlKey(int type, int name, Object context) {
+            this.type = type;
+            this.name = name;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GlKey)) {
+                return false;
+            }
+            GlKey other = (GlKey) o;
+            return type == other.type && name == other.name && context.equals(other.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * type + name) + context.hashCode();
+        }
+    }
+}
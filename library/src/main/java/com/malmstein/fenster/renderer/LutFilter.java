@@ -0,0 +1,117 @@
+package com.malmstein.fenster.renderer;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+/**
+ * Maps colors through a 3D lookup table, the usual way to apply a color grade ("look") designed in an image editor.
+ *
+ * The table is a 512x512 image of 8x8 tiles, each tile being a 64x64 red / green slice for one of the 64 blue
+ * values, the layout used by most LUT tools and GPUImage.
+ */
+public class LutFilter extends Filter {
+
+    private Bitmap lut;
+    private boolean lutChanged;
+    private float intensity = 1f;
+
+    private final int[] lutTexture = new int[1];
+    private int lutHandle;
+    private int intensityHandle;
+
+    /**
+     * @param lut 512x512 lookup table, the bitmap is uploaded on the rendering thread and can be recycled afterwards by
+     *            passing a new one or releasing the chain
+     */
+    public LutFilter(Bitmap lut) {
+        setLut(lut);
+    }
+
+    public void setLut(Bitmap lut) {
+        synchronized (this) {
+            this.lut = lut;
+            lutChanged = true;
+        }
+        invalidate();
+    }
+
+    /**
+     * @param intensity mix between the original (0) and the mapped (1) color
+     */
+    public void setIntensity(float intensity) {
+        synchronized (this) {
+            this.intensity = intensity;
+        }
+        invalidate();
+    }
+
+    @Override
+    protected String getShaderCode(String prefix) {
+        return "uniform sampler2D " + prefix + "lut;\n" +
+                "uniform float " + prefix + "intensity;\n" +
+                "vec4 " + prefix + "apply(vec4 color) {\n" +
+                "    float blue = color.b * 63.0;\n" +
+                "    vec2 quad1;\n" +
+                "    quad1.y = floor(floor(blue) / 8.0);\n" +
+                "    quad1.x = floor(blue) - quad1.y * 8.0;\n" +
+                "    vec2 quad2;\n" +
+                "    quad2.y = floor(ceil(blue) / 8.0);\n" +
+                "    quad2.x = ceil(blue) - quad2.y * 8.0;\n" +
+                "    vec2 rg = 0.5 / 512.0 + (0.125 - 1.0 / 512.0) * color.rg;\n" +
+                "    vec4 color1 = texture2D(" + prefix + "lut, quad1 * 0.125 + rg);\n" +
+                "    vec4 color2 = texture2D(" + prefix + "lut, quad2 * 0.125 + rg);\n" +
+                "    vec4 mapped = mix(color1, color2, fract(blue));\n" +
+                "    return vec4(mix(color.rgb, mapped.rgb, " + prefix + "intensity), color.a);\n" +
+                "}\n";
+    }
+
+    @Override
+    protected void onLinked(int program, String prefix) {
+        lutHandle = GLES20.glGetUniformLocation(program, prefix + "lut");
+        intensityHandle = GLES20.glGetUniformLocation(program, prefix + "intensity");
+    }
+
+    @Override
+    protected synchronized int onDraw(int textureUnit) {
+        if (lutChanged) {
+            uploadLut();
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, lutTexture[0]);
+        GLES20.glUniform1i(lutHandle, textureUnit);
+        GLES20.glUniform1f(intensityHandle, intensity);
+        return textureUnit + 1;
+    }
+
+    private void uploadLut() {
+        if (lutTexture[0] == 0) {
+            GLES20.glGenTextures(1, lutTexture, 0);
+            GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, lutTexture[0], 0, this);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, lutTexture[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, lutTexture[0]);
+        }
+        if (lut != null && !lut.isRecycled()) {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, lut, 0);
+            GlResourceTracker.updateGlObject(GlResourceTracker.TEXTURE, lutTexture[0],
+                    (long) lut.getWidth() * lut.getHeight() * 4);
+        }
+        lutChanged = false;
+    }
+
+    @Override
+    protected synchronized void onRelease() {
+        if (lutTexture[0] != 0) {
+            GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, lutTexture[0]);
+            GLES20.glDeleteTextures(1, lutTexture, 0);
+            lutTexture[0] = 0;
+        }
+        // Uploaded again if the filter is added to a chain later on
+        lutChanged = true;
+    }
+}
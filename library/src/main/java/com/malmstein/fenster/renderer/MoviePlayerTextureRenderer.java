@@ -7,14 +7,18 @@ import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 
-import javax.microedition.khronos.egl.EGL10;
+import com.malmstein.fenster.recording.EncoderCapabilities;
+import com.malmstein.fenster.recording.MediaCodecEncoderCapabilities;
+import com.malmstein.fenster.recording.RecordingSizePolicy;
+import com.malmstein.fenster.recording.VideoEncoder;
+
+import java.io.File;
+import java.io.IOException;
+
 import javax.microedition.khronos.egl.EGLSurface;
 
 /**
@@ -23,13 +27,14 @@ import javax.microedition.khronos.egl.EGLSurface;
 public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
 
     public interface Listener {
+        /**
+         * Called on the encoder thread once the recording has been written, see {@link #getPreviousOutputPath()}.
+         */
         public void onFinishRecording(MoviePlayerTextureRenderer renderer);
 
         public void onGLInitialized(MoviePlayerTextureRenderer renderer);
     }
 
-    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
-
     private static final String vertexShaderCode =
             "attribute vec4 vPosition;" +
                     "attribute vec4 vTexCoordinate;" +
@@ -62,49 +67,34 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
                     "    gl_FragColor = texture2D(s_Texture, v_TexCoordinate);\n" +
                     "}\n";
 
-
-    private static float squareSize = 1.0f;
-    private static float squareCoords[] = {
-            -squareSize, squareSize, 0f,   // top left
-            -squareSize, -squareSize, 0f,   // bottom left
-            squareSize, -squareSize, 0f,   // bottom right
-            squareSize, squareSize, 0f}; // top right
-
-    private static short drawOrder[] = {0, 1, 2, 0, 2, 3};
-
     private Context ctx;
 
-    // Texture to be shown in backgrund
-    private FloatBuffer textureBuffer;
-    private float textureCoords[] = {0.0f, 1.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 0.0f, 1.0f,
-            1.0f, 0.0f, 0.0f, 1.0f,
-            1.0f, 1.0f, 0.0f, 1.0f};
     private int[] textures = new int[1];
 
-    private int vertexShaderHandle;
-    private int fragmentShaderHandle;
-    private int shaderProgram;
-    private int shaderProgram2D;
-
-    private FloatBuffer vertexBuffer;
-    private ShortBuffer drawListBuffer;
+    private TextureProgram overlayProgram;
+    private TextureProgram blitProgram;
+    private QuadGeometry quad;
 
     private SurfaceTexture canvasTexture;
     private float[] videoTextureTransform = new float[16];
     private float[] projectionMatrix = new float[16];
     private float[] modelViewMatrix = new float[16];
+    private final float[] identityMatrix = new float[16];
     private boolean frameAvailable = false;
     private Surface canvasSurface;
+    private OverlayCanvas overlayCanvas;
+    // True while the overlay framebuffer holds the latest overlay frame
+    private boolean overlayFramebufferValid;
+    private final Rect overlayScissor = new Rect();
+    private final int[] outputViewport = new int[4];
+    // Video and overlay composited once per frame while recording, then presented on the display and the encoder
+    private Framebuffer compositeFramebuffer;
 
     private int videoWidth;
     private int videoHeight;
     private boolean adjustViewport = false;
 
-    private int[] frameBuffers = new int[1];
-    private int[] renderBuffers = new int[1];
-    private int[] offScreenTextures = new int[1];
-    private boolean frameBufferPrepared;
+    private Framebuffer overlayFramebuffer;
 
     protected boolean recording;
 
@@ -114,13 +104,42 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
     protected String previousOutputPath;
     protected Listener mListener;
 
+    private String recordingOutputPath;
+    private String recordingMimeType = VideoEncoder.MIME_TYPE_AVC;
+    private RecordingSizePolicy recordingSizePolicy = new RecordingSizePolicy();
+    // Guarded by this, handed over to the rendering thread which owns the encoder once attached
+    private boolean recordingRequested;
+    private VideoEncoder pendingEncoder;
+    private boolean stopRecordingRequested;
+    // Only accessed on the rendering thread
+    private VideoEncoder encoder;
+    private long lastEncodedTimeNanos;
+
+    private final VideoEncoder.Callback encoderCallback = new VideoEncoder.Callback() {
+        @Override
+        public void onEncoderFinished(VideoEncoder finishedEncoder, boolean success) {
+            synchronized (MoviePlayerTextureRenderer.this) {
+                previousOutputPath = success ? finishedEncoder.getOutputPath() : null;
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onFinishRecording(MoviePlayerTextureRenderer.this);
+            }
+        }
+    };
+
 
     public MoviePlayerTextureRenderer(Context context, SurfaceTexture texture, int width, int height, OnVideoTextureAvailableListener onVideoTextureAvailableListener) {
         super(context, texture, width, height,  onVideoTextureAvailableListener);
+        this.ctx = context;
+        Matrix.setIdentityM(identityMatrix, 0);
     }
 
+    /**
+     * Removes everything from the overlay, see {@link OverlayCanvas#clear()}.
+     */
     public void clearOverlay() {
-        canvasSurface.unlockCanvasAndPost(canvasSurface.lockCanvas(new Rect()));
+        overlayCanvas.clear();
     }
 
     private void drawToFrameBuffer() {
@@ -128,47 +147,18 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
         // Draw texture
-        GLES20.glUseProgram(shaderProgram);
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         GLES20.glDepthFunc(GLES20.GL_LEQUAL);
         GLES20.glDepthMask(true);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        int textureParamHandle = GLES20.glGetUniformLocation(shaderProgram, "b_texture");
-        int textureCoordinateHandle = GLES20.glGetAttribLocation(shaderProgram, "vTexCoordinate");
-        int positionHandle = GLES20.glGetAttribLocation(shaderProgram, "vPosition");
-        int textureTransformHandle = GLES20.glGetUniformLocation(shaderProgram, "textureTransform");
-        int projectionHandler = GLES20.glGetUniformLocation(shaderProgram, "projection");
-        int modelViewHandler = GLES20.glGetUniformLocation(shaderProgram, "modelView");
-
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 4 * 3, vertexBuffer);
-        GLES20.glUniformMatrix4fv(projectionHandler, 1, false, projectionMatrix, 0);
-        GLES20.glUniformMatrix4fv(modelViewHandler, 1, false, modelViewMatrix, 0);
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
-        GLES20.glUniform1i(textureParamHandle, 1);
-
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 4, GLES20.GL_FLOAT, false, 0, textureBuffer);
+        overlayProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_UPRIGHT, projectionMatrix, modelViewMatrix, identityMatrix, 1);
 
-        float[] identity = new float[16];
-        Matrix.setIdentityM(identity, 0);
-        GLES20.glUniformMatrix4fv(textureTransformHandle, 1, false, identity, 0);
-
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.draw();
+        overlayProgram.unbind(quad);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
     }
 
@@ -177,161 +167,122 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
 //        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
         // Draw texture
-        GLES20.glUseProgram(shaderProgram2D);
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         GLES20.glDepthFunc(GLES20.GL_LEQUAL);
         GLES20.glDepthMask(true);
         GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        int textureParamHandle = GLES20.glGetUniformLocation(shaderProgram2D, "s_Texture");
-        int textureCoordinateHandle = GLES20.glGetAttribLocation(shaderProgram2D, "vTexCoordinate");
-        int positionHandle = GLES20.glGetAttribLocation(shaderProgram2D, "vPosition");
-        int textureTranformHandle = GLES20.glGetUniformLocation(shaderProgram2D, "textureTransform");
-        int projectionHandler = GLES20.glGetUniformLocation(shaderProgram2D, "projection");
-        int modelViewHandler = GLES20.glGetUniformLocation(shaderProgram2D, "modelView");
-
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 4 * 3, vertexBuffer);
-        GLES20.glUniformMatrix4fv(projectionHandler, 1, false, projectionMatrix, 0);
-        GLES20.glUniformMatrix4fv(modelViewHandler, 1, false, modelViewMatrix, 0);
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offScreenTextures[0]);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
-        GLES20.glUniform1i(textureParamHandle, 1);
-
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 4, GLES20.GL_FLOAT, false, 0, textureBuffer);
-
-        float[] identity = new float[16];
-        Matrix.setIdentityM(identity, 0);
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, videoTextureTransform, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, overlayFramebuffer.getTexture());
+        blitProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_UPRIGHT, projectionMatrix, modelViewMatrix, videoTextureTransform, 1);
 
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.draw();
+        blitProgram.unbind(quad);
     }
 
     @Override
     protected boolean draw() {
-        boolean res = super.draw();
-//        if (true)return super.draw();
-        if (frameAvailable) {
-            canvasTexture.updateTexImage();
-            canvasTexture.getTransformMatrix(videoTextureTransform);
-//            Matrix.translateM(videoTextureTransform, 0, 0, 0, 0.5f);
-            frameAvailable = false;
+        if (!super.draw()) {
+            return false;
         }
-
-        if (!frameBufferPrepared) {
-            prepareFramebuffer(videoWidth, videoHeight);
+        boolean overlayChanged = false;
+        synchronized (this) {
+            if (frameAvailable) {
+                canvasTexture.updateTexImage();
+                canvasTexture.getTransformMatrix(videoTextureTransform);
+                frameAvailable = false;
+                overlayChanged = true;
+            }
         }
-        if (!frameBufferPrepared) {
-            return false;
+        if (overlayChanged) {
+            overlayCanvas.onFrameLatched();
+            overlayFramebufferValid = false;
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
-        GLES20.glViewport(0, 0, videoWidth, videoHeight);
-        drawToFrameBuffer();
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        if (blitToEncoderInput) {
-            adjustViewportForRecordingInput();
-        } else {
-            GLES20.glViewport(0, 0, width, height);
+        if (overlayCanvas.isEmpty()) {
+            // Nothing to blend, the video has been drawn already
+            releaseOverlayFramebuffer();
+            return true;
+        }
+
+        if (!prepareOverlayFramebuffer()) {
+            return true;
         }
+        if (!overlayFramebufferValid) {
+            // The overlay is only copied when it changes, every other frame just blends the copy
+            overlayFramebuffer.bind();
+            drawToFrameBuffer();
+            overlayFramebufferValid = true;
+        }
+        bindOutput();
+        getOutputViewport(outputViewport);
+        setOverlayScissor(outputViewport[0], outputViewport[1], outputViewport[2], outputViewport[3]);
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glScissor(overlayScissor.left, overlayScissor.top, overlayScissor.width(), overlayScissor.height());
         blitToScreen();
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
         return true;
+    }
 
+    /**
+     * Maps the content bounds of the overlay to the window coordinates of the passed viewport, so that the blend only
+     * touches the pixels the overlay covers. The top of the rect is the bottom edge in GL window coordinates.
+     */
+    private void setOverlayScissor(int viewportX, int viewportY, int viewportWidth, int viewportHeight) {
+        Rect bounds = overlayCanvas.getContentBounds();
+        float scaleX = (float) viewportWidth / videoWidth;
+        float scaleY = (float) viewportHeight / videoHeight;
+        // One pixel of margin for the linear filtering at the edges
+        int left = (int) Math.floor(bounds.left * scaleX) - 1;
+        int right = (int) Math.ceil(bounds.right * scaleX) + 1;
+        int bottom = (int) Math.floor((videoHeight - bounds.bottom) * scaleY) - 1;
+        int top = (int) Math.ceil((videoHeight - bounds.top) * scaleY) + 1;
+        overlayScissor.set(viewportX + Math.max(left, 0), viewportY + Math.max(bottom, 0),
+                viewportX + Math.min(right, viewportWidth), viewportY + Math.min(top, viewportHeight));
     }
 
 
     private void loadShaders() {
-        vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-        GLES20.glCompileShader(vertexShaderHandle);
-        checkGlError("Vertex shader compile");
-
-        fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-        GLES20.glCompileShader(fragmentShaderHandle);
-        checkGlError("Pixel shader compile");
-
-        shaderProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(shaderProgram, vertexShaderHandle);
-        GLES20.glAttachShader(shaderProgram, fragmentShaderHandle);
-        GLES20.glLinkProgram(shaderProgram);
+        ProgramCache programCache = eglCore.getProgramCache();
+        overlayProgram = programCache.getTextureProgram(vertexShaderCode, fragmentShaderCode, "b_texture");
         checkGlError("Shader program compile");
-
-        int[] status = new int[1];
-        GLES20.glGetProgramiv(shaderProgram, GLES20.GL_LINK_STATUS, status, 0);
-        if (status[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(shaderProgram);
-            Log.e("SurfaceTest", "Error while linking program:\n" + error);
-        }
-
-        int fragmentShaderHandle2D = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle2D, fragmentShaderCode2D);
-        GLES20.glCompileShader(fragmentShaderHandle2D);
-
-        shaderProgram2D = GLES20.glCreateProgram();
-        GLES20.glAttachShader(shaderProgram2D, vertexShaderHandle);
-        GLES20.glAttachShader(shaderProgram2D, fragmentShaderHandle2D);
-        GLES20.glLinkProgram(shaderProgram2D);
-
-    }
-
-
-    private void setupVertexBuffer() {
-        // Draw list buffer
-        ByteBuffer dlb = ByteBuffer.allocateDirect(drawOrder.length * 2);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
-        drawListBuffer.position(0);
-
-        // Initialize the texture holder
-        ByteBuffer bb = ByteBuffer.allocateDirect(squareCoords.length * 4);
-        bb.order(ByteOrder.nativeOrder());
-
-        vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.put(squareCoords);
-        vertexBuffer.position(0);
+        blitProgram = programCache.getTextureProgram(vertexShaderCode, fragmentShaderCode2D, "s_Texture");
     }
 
 
     private void setupTexture(Context context) {
-        ByteBuffer texturebb = ByteBuffer.allocateDirect(textureCoords.length * 4);
-        texturebb.order(ByteOrder.nativeOrder());
-
-        textureBuffer = texturebb.asFloatBuffer();
-        textureBuffer.put(textureCoords);
-        textureBuffer.position(0);
-
         // Generate the actual texture
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glGenTextures(1, textures, 0);
         checkGlError("Texture generate");
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, textures[0], 0, this);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 
         canvasTexture = new SurfaceTexture(textures[0]);
         canvasTexture.setOnFrameAvailableListener(this);
         canvasSurface = new Surface(canvasTexture);
-
+        overlayCanvas = new OverlayCanvas(canvasSurface);
+        GlResourceTracker.trackSurface(GlResourceTracker.SURFACE_TEXTURE, canvasTexture, this);
+        GlResourceTracker.trackSurface(GlResourceTracker.SURFACE, canvasSurface, this);
     }
 
     @Override
     protected void initGLComponents() {
         super.initGLComponents();
-        setupVertexBuffer();
+        quad = eglCore.getQuadGeometry();
         setupTexture(ctx);
         loadShaders();
-        clearOverlay();
+        // A new surface is empty already. Clearing it would lock its canvas, which fixes the hardware acceleration
+        // choice before the listener had a chance to make it.
         Matrix.orthoM(projectionMatrix, 0, -1, 1, -1, 1, -1, 1);
         Matrix.setIdentityM(modelViewMatrix, 0);
         Matrix.translateM(modelViewMatrix, 0, 0, 0, -.5f);
@@ -343,8 +294,12 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
     @Override
     protected void deinitGLComponents() {
         super.deinitGLComponents();
+        GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, textures[0]);
         GLES20.glDeleteTextures(1, textures, 0);
-        GLES20.glDeleteProgram(shaderProgram);
+        releaseOverlayFramebuffer();
+        GlResourceTracker.untrackSurface(canvasSurface);
+        canvasSurface.release();
+        GlResourceTracker.untrackSurface(canvasTexture);
         canvasTexture.release();
         canvasTexture.setOnFrameAvailableListener(null);
     }
@@ -356,6 +311,7 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
         this.videoWidth = width;
         this.videoHeight = height;
         canvasTexture.setDefaultBufferSize(width, height);
+        overlayCanvas.setSize(width, height);
         adjustViewport = true;
     }
 
@@ -375,313 +331,354 @@ public class MoviePlayerTextureRenderer extends VideoTextureRenderer {
             synchronized (this) {
                 frameAvailable = true;
             }
+            invalidate();
         }
     }
 
 
+    /**
+     * @return the overlay drawn over the video, at video size. Available from
+     * {@link Listener#onGLInitialized(MoviePlayerTextureRenderer)} on, before anything has been drawn on it.
+     */
+    public OverlayCanvas getOverlayCanvas() {
+        return overlayCanvas;
+    }
+
+    /**
+     * @return the surface behind the overlay. Prefer {@link #getOverlayCanvas()}, content drawn directly on the surface
+     * cannot be tracked and makes the whole overlay blended on every frame.
+     */
     public Surface getCanvasSurface() {
         return canvasSurface;
     }
 
 
+    @Override
     public void releaseFramebuffer() {
-        if (offScreenTextures[0] > 0) {
-            GLES20.glDeleteTextures(1, offScreenTextures, 0);
-            offScreenTextures[0] = -1;
-        }
-        if (renderBuffers[0] > 0) {
-            GLES20.glDeleteRenderbuffers(1, renderBuffers, 0);
-            renderBuffers[0] = -1;
-
-        }
-        if (frameBuffers[0] > 0) {
-            GLES20.glDeleteFramebuffers(1, frameBuffers, 0);
-            frameBuffers[0] = -1;
-        }
-        frameBufferPrepared = false;
-    }
-
-    private void prepareFramebuffer(int width, int height) {
-        if (width == 0 || height == 0) return;
-        // Create a texture object and bind it.  This will be the color buffer.
-        GLES20.glGenTextures(1, offScreenTextures, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offScreenTextures[0]);
-        checkGlError("genTexture");
-        // Create texture storage.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        checkGlError("texImage");
-
-        // Set parameters.  We're probably using non-power-of-two dimensions, so
-        // some values may not be available for use.
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
-                GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
-                GLES20.GL_CLAMP_TO_EDGE);
-
-        // Create framebuffer object and bind it.
-        GLES20.glGenFramebuffers(1, frameBuffers, 0);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
-        checkGlError("genFramebuffer");
-
-        // Create a depth buffer and bind it.
-        GLES20.glGenRenderbuffers(1, renderBuffers, 0);
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        checkGlError("genRenderbuffer");
-
-        // Allocate storage for the depth buffer.
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
-                width, height);
-        checkGlError("renderbufferStorage");
-
-        // Attach the depth buffer and the texture (color buffer) to the framebuffer object.
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, offScreenTextures[0], 0);
-
-        // See if GLES is happy with all this.
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Framebuffer not complete, status=" + status);
-        }
-
-        // Switch back to the default framebuffer.
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        super.releaseFramebuffer();
+        releaseOverlayFramebuffer();
+        releaseCompositeFramebuffer();
+    }
 
-        frameBufferPrepared = true;
+    private void releaseOverlayFramebuffer() {
+        if (overlayFramebuffer != null) {
+            eglCore.getFramebufferPool().release(overlayFramebuffer);
+            overlayFramebuffer = null;
+        }
     }
 
-    public void startRecordingWithOrientationHint(int degrees) {
+    /**
+     * @return false if the video size is not known yet
+     */
+    private boolean prepareOverlayFramebuffer() {
+        if (overlayFramebuffer != null && !overlayFramebuffer.matches(videoWidth, videoHeight,
+                FramebufferPool.FORMAT_RGBA_DEPTH)) {
+            releaseOverlayFramebuffer();
+        }
+        if (overlayFramebuffer == null) {
+            if (videoWidth == 0 || videoHeight == 0) {
+                return false;
+            }
+            overlayFramebufferValid = false;
+            overlayFramebuffer = eglCore.getFramebufferPool().acquire(videoWidth, videoHeight,
+                    FramebufferPool.FORMAT_RGBA_DEPTH);
+            checkGlError("Overlay framebuffer");
+        }
+        overlayFramebuffer.setFilter(GLES20.GL_NEAREST);
+        return true;
     }
 
-    enum ARTaget {
-        _9_16,
-        _3_4,
-        _3_5,
+    /**
+     * @param path file the next recording is written to, by default a new file in the cache directory
+     */
+    public void setRecordingOutputPath(String path) {
+        this.recordingOutputPath = path;
     }
 
-    public void generateRecordingVideoSizeForSourceVideoSize(int sourceWidth, int sourceHeight) {
-        float sourceAR = (float) sourceWidth / sourceHeight;
-        ARTaget arTaget = ARTaget._3_4;
-        boolean isPortrait = sourceAR < 1;
-        final int _9_16_base16Landscape = 320;
-        final int _9_16_base9Landscape = 180;
-        final int _3_4_base4Landscape = 320;
-        final int _3_4_base3Landscape = 240;
-        final int _3_5_base5Landscape = 320;
-        final int _3_5_base3Landscape = 192;
-        final int _9_16_base16Portrait = 560;
-        final int _9_16_base9Portrait = 320;
-        final int _3_4_base4Portrait = 426;
-        final int _3_4_base3Portrait = 320;
-        final int _3_5_base5Portrait = 532;
-        final int _3_5_base3Portrait = 320;
-
-
-        final float threshold1 = 1.44f;//= 4.0 / 3.0 <--- 1.444444.. ----> 5.0 / 3.0
-        final float threshold2 = 1.72f; //= 5.0 /3.0 <--- 1.72...    ----> 16.0 / 9.0
-        final float centerThreshold = 1.55f; //= 4.0 / 3.0 <--- 1.555... ----> 16.0 / 9.0
-        double centerThresholdDiff = isPortrait ? sourceAR - 1.0 / centerThreshold : sourceAR -
-                centerThreshold;
-        double threshold1diff = isPortrait ? sourceAR - 1.0 / threshold1 : sourceAR - threshold1;
-        double threshold2diff = isPortrait ? sourceAR - 1.0 / threshold2 : sourceAR - threshold2;
-        if (isPortrait) {
-            if (centerThresholdDiff > 0) {
-                if (threshold1diff > 0) {
-                    arTaget = ARTaget._3_4;
-                } else {
-                    arTaget = ARTaget._3_5;
-                }
-            } else {
-                if (threshold2diff > 0) {
-                    arTaget = ARTaget._3_5;
-                } else {
-                    arTaget = ARTaget._9_16;
-                }
-            }
-        } else {
-            if (centerThresholdDiff < 0) {
-                if (threshold1diff < 0) {
-                    arTaget = ARTaget._3_4;
-                } else {
-                    arTaget = ARTaget._3_5;
-                }
-            } else {
-                if (threshold2diff < 0) {
-                    arTaget = ARTaget._3_5;
-                } else {
-                    arTaget = ARTaget._9_16;
-                }
-            }
+    /**
+     * @param mimeType {@link VideoEncoder#MIME_TYPE_AVC} (default) or {@link VideoEncoder#MIME_TYPE_HEVC}, which falls
+     *                 back to H.264 where it is not supported
+     */
+    public void setRecordingMimeType(String mimeType) {
+        this.recordingMimeType = mimeType;
+    }
+
+    /**
+     * Starts recording the video with its overlay, at the recording size, see
+     * {@link #generateRecordingVideoSizeForSourceVideoSize(int, int)}. The frames shown from now on are encoded until
+     * {@link #stopRecording()}, the listener is told once the file is complete.
+     *
+     * @param degrees clockwise rotation players apply when showing the recording: 0, 90, 180 or 270
+     * @throws IOException if the encoder or the output file cannot be created
+     */
+    public void startRecordingWithOrientationHint(int degrees) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new UnsupportedOperationException("Recording requires API 18");
         }
-        if (arTaget == ARTaget._9_16) {
-            // 9 : 16
-            if (isPortrait) {
-                int i = (int) Math.ceil((float) sourceWidth / _9_16_base9Portrait);
-                int j = (int) Math.ceil((float) sourceHeight / _9_16_base16Portrait);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _9_16_base9Portrait * k;
-                recordingVideoHeight = _9_16_base16Portrait * k;
-            }
-            // 16 : 9
-            else {
-                int i = (int) Math.ceil((float) sourceWidth / _9_16_base16Landscape);
-                int j = (int) Math.ceil((float) sourceHeight / _9_16_base9Landscape);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _9_16_base16Landscape * k;
-                recordingVideoHeight = _9_16_base9Landscape * k;
-            }
-        } else if (arTaget == ARTaget._3_4) {
-            // 3 : 4
-            if (isPortrait) {
-                int i = (int) Math.ceil((float) sourceWidth / _3_4_base3Portrait);
-                int j = (int) Math.ceil((float) sourceHeight / _3_4_base4Portrait);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _3_4_base3Portrait * k;
-                recordingVideoHeight = _3_4_base4Portrait * k;
+        synchronized (this) {
+            if (recordingRequested) {
+                throw new IllegalStateException("Already recording");
             }
-            // 4 : 3
-            else {
-                int i = (int) Math.ceil((float) sourceWidth / _3_4_base4Landscape);
-                int j = (int) Math.ceil((float) sourceHeight / _3_4_base3Landscape);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _3_4_base4Landscape * k;
-                recordingVideoHeight = _3_4_base3Landscape * k;
+        }
+        if (recordingVideoWidth == 0 || recordingVideoHeight == 0) {
+            if (videoWidth == 0 || videoHeight == 0) {
+                throw new IllegalStateException("Video size unknown");
             }
-        } else if (arTaget == ARTaget._3_5) {
-            // 3 : 5
-            if (isPortrait) {
-                int i = (int) Math.ceil((float) sourceWidth / _3_5_base3Portrait);
-                int j = (int) Math.ceil((float) sourceHeight / _3_5_base5Portrait);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _3_5_base3Portrait * k;
-                recordingVideoHeight = _3_5_base5Portrait * k;
+            generateRecordingVideoSizeForSourceVideoSize(videoWidth, videoHeight);
+        }
+        String path = recordingOutputPath;
+        if (path == null) {
+            path = new File(ctx.getCacheDir(), "fenster_recording_" + System.currentTimeMillis() + ".mp4").getPath();
+        }
+        VideoEncoder newEncoder = new VideoEncoder(path, recordingVideoWidth, recordingVideoHeight);
+        newEncoder.setMimeType(recordingMimeType);
+        newEncoder.setFrameRate(recordingSizePolicy.getFrameRate());
+        newEncoder.setOrientationHint(degrees);
+        newEncoder.setCallback(encoderCallback);
+        Surface surface = newEncoder.start();
+        synchronized (this) {
+            recordingRequested = true;
+            pendingEncoder = newEncoder;
+            encoderInputSurface = surface;
+        }
+        invalidate();
+    }
+
+    /**
+     * Stops recording after the current frame. Does not wait for the encoder, the listener is told once the file is
+     * complete.
+     */
+    public void stopRecording() {
+        VideoEncoder unattached;
+        synchronized (this) {
+            if (!recordingRequested) {
+                return;
             }
-            // 5 : 3
-            else {
-                int i = (int) Math.ceil((float) sourceWidth / _3_5_base5Landscape);
-                int j = (int) Math.ceil((float) sourceHeight / _3_5_base3Landscape);
-                int k = Math.max(i, j);
-                recordingVideoWidth = _3_5_base5Landscape * k;
-                recordingVideoHeight = _3_5_base3Landscape * k;
+            recordingRequested = false;
+            unattached = pendingEncoder;
+            pendingEncoder = null;
+            if (unattached == null) {
+                stopRecordingRequested = true;
+            } else {
+                encoderInputSurface = null;
             }
         }
-        Log.i("MoviePlayerTextureRende", "sourceVideoSize(" + sourceWidth + ", " +
-                "" + sourceHeight + ")");
-        if (isPortrait) {
-//            switch (arTaget) {
-//                case _3_4:
-//                    if (recordingVideoWidth > 960) {
-//                        recordingVideoWidth = 960;
-//                        recordingVideoHeight = 1280;
-//                    }
-//                    break;
-//                case _3_5:
-//                    if (recordingVideoWidth> 768) {
-//                        recordingVideoWidth = 768;
-//                        recordingVideoHeight = 1280;
-//                    }
-//                    break;
-//                case _9_16:
-//                    if (recordingVideoWidth > 720) {
-//                        recordingVideoWidth = 720;
-//                        recordingVideoHeight = 1280;
-//                    }
-//                    break;
-//            }
-
+        if (unattached != null) {
+            // Nothing has been drawn on it yet
+            unattached.stop();
         } else {
-            if (recordingVideoWidth > 1280) {
-                recordingVideoWidth = 1280;
-                switch (arTaget) {
-                    case _3_4:
-                        recordingVideoHeight = 960;
-                        break;
-                    case _3_5:
-                        recordingVideoHeight = 768;
-                        break;
-                    case _9_16:
-                        recordingVideoHeight = 720;
-                        break;
-                }
+            requestRender();
+        }
+    }
+
+    public synchronized boolean isRecording() {
+        return recordingRequested;
+    }
+
+    /**
+     * Applies recording requests on the rendering thread: the encoder surface is destroyed before a new one is
+     * created for the next recording.
+     */
+    private void updateRecording() {
+        VideoEncoder attach;
+        Surface surface;
+        boolean stop;
+        synchronized (this) {
+            attach = pendingEncoder;
+            pendingEncoder = null;
+            surface = encoderInputSurface;
+            stop = stopRecordingRequested;
+            stopRecordingRequested = false;
+        }
+        if (stop) {
+            finishRecording();
+        }
+        if (attach == null) {
+            return;
+        }
+        finishRecording();
+        try {
+            encoderInputWindowSurface = eglCore.createWindowSurface(surface);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot render to the encoder", e);
+            attach.stop();
+            synchronized (this) {
+                recordingRequested = false;
             }
+            return;
+        }
+        encoder = attach;
+        lastEncodedTimeNanos = 0;
+        resetAdjustedViewportRect();
+        recording = true;
+    }
+
+    /**
+     * Detaches the encoder from the rendering thread and lets it write the frames drawn so far.
+     */
+    private void finishRecording() {
+        recording = false;
+        releaseCompositeFramebuffer();
+        if (encoderInputWindowSurface != null) {
+            eglCore.destroySurface(encoderInputWindowSurface);
+            encoderInputWindowSurface = null;
+        }
+        if (encoder != null) {
+            encoder.stop();
+            encoder = null;
         }
-        Log.i("MoviePlayerTextureRende", "recordingVideoSize(" + recordingVideoWidth + ", " +
-                "" + recordingVideoHeight + ")");
+    }
+
+    /**
+     * Replaces the policy choosing the recording size, e.g. to change the pixel or bit rate budget.
+     */
+    public void setRecordingSizePolicy(RecordingSizePolicy policy) {
+        this.recordingSizePolicy = policy;
+    }
+
+    public RecordingSizePolicy getRecordingSizePolicy() {
+        return recordingSizePolicy;
+    }
 
+    /**
+     * Picks the recording size for a source of the passed size with the {@link RecordingSizePolicy}, within the limits
+     * of the encoder used for the recording mime type.
+     *
+     * @throws IllegalStateException if the encoder supports no size for the source
+     */
+    public void generateRecordingVideoSizeForSourceVideoSize(int sourceWidth, int sourceHeight) {
+        EncoderCapabilities capabilities = MediaCodecEncoderCapabilities.forVideoEncoder(recordingMimeType);
+        if (!recordingSizePolicy.select(sourceWidth, sourceHeight, capabilities)) {
+            throw new IllegalStateException("No recording size supported for " + sourceWidth + "x" + sourceHeight);
+        }
+        recordingVideoWidth = recordingSizePolicy.getWidth();
+        recordingVideoHeight = recordingSizePolicy.getHeight();
+        Log.i(TAG, "sourceVideoSize(" + sourceWidth + ", " + sourceHeight + "), recordingVideoSize("
+                + recordingVideoWidth + ", " + recordingVideoHeight + ")");
     }
 
     @Override
-    public void run() {
-        initGL();
-        initGLComponents();
-        Log.d(LOG_TAG, "OpenGL init OK.");
+    protected void drawFrame() {
+        updateRecording();
+        if (!recording || encoderInputWindowSurface == null || !prepareCompositeFramebuffer()) {
+            super.drawFrame();
+            return;
+        }
+        // The frame is drawn once, both surfaces only get a copy scaled to their viewport
+        setOutputFramebuffer(compositeFramebuffer);
+        boolean drawn = draw();
+        setOutputFramebuffer(null);
+        if (!drawn) {
+            return;
+        }
+        long presentationTimeNanos = getPresentationTimeNanos();
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        presentComposite(0, 0, width, height);
+        if (presentationTimeNanos > 0) {
+            eglCore.setPresentationTime(presentationTimeNanos);
+        }
+        egl.eglSwapBuffers(eglDisplay, eglSurface);
+
+        eglCore.makeCurrent(encoderInputWindowSurface);
+        presentComposite(adjustedOffsetXForRecordingInput, adjustedOffsetYForRecordingInput,
+                adjustedViewportWidthForRecordingInput, adjustedViewportHeightForRecordingInput);
+        eglCore.setPresentationTime(nextEncodedTimeNanos(presentationTimeNanos));
+        egl.eglSwapBuffers(eglDisplay, encoderInputWindowSurface);
+        eglCore.makeCurrent(eglSurface);
+    }
 
-        while (running) {
-            long loopStart = System.currentTimeMillis();
-            pingFps();
+    /**
+     * Encoded frames get the time they are shown at, which keeps them in step with the display. A redraw for the
+     * overlay alone has no video timestamp and gets the current time instead. Either way the time is kept increasing,
+     * the muxer rejects samples going back in time.
+     */
+    private long nextEncodedTimeNanos(long presentationTimeNanos) {
+        long timeNanos = presentationTimeNanos > 0 ? presentationTimeNanos : System.nanoTime();
+        // The encoder works in microseconds
+        lastEncodedTimeNanos = Math.max(timeNanos, lastEncodedTimeNanos + 1000);
+        return lastEncodedTimeNanos;
+    }
 
-            if (draw()) {
-                egl.eglSwapBuffers(eglDisplay, eglSurface);
-            }
-            if (recording && encoderInputWindowSurface != null) {
-                blitToEncoderInput = true;
-                egl.eglMakeCurrent(eglDisplay, encoderInputWindowSurface, encoderInputWindowSurface,
-                        eglContext);
-                draw();
-                egl.eglSwapBuffers(eglDisplay, encoderInputWindowSurface);
-                egl.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
-                blitToEncoderInput = false;
-            }
+    /**
+     * Draws the composited frame into the passed viewport of the current surface, the rest of the surface is cleared
+     * to black.
+     */
+    private void presentComposite(int x, int y, int viewportWidth, int viewportHeight) {
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glViewport(x, y, viewportWidth, viewportHeight);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, compositeFramebuffer.getTexture());
+        blitProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_UPRIGHT, projectionMatrix, modelViewMatrix, identityMatrix, 0);
+        quad.draw();
+        blitProgram.unbind(quad);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
 
-            long waitDelta = 16 - (System.currentTimeMillis() - loopStart);    // Targeting 60
-            // fps, no need for faster
-            if (waitDelta > 0) {
-                try {
-                    Thread.sleep(waitDelta);
-                } catch (InterruptedException e) {
-                    continue;
-                }
+    /**
+     * @return false if the video size is not known yet
+     */
+    private boolean prepareCompositeFramebuffer() {
+        if (compositeFramebuffer != null && !compositeFramebuffer.matches(videoWidth, videoHeight,
+                FramebufferPool.FORMAT_RGBA)) {
+            releaseCompositeFramebuffer();
+        }
+        if (compositeFramebuffer == null) {
+            if (videoWidth == 0 || videoHeight == 0) {
+                return false;
             }
+            compositeFramebuffer = eglCore.getFramebufferPool().acquire(videoWidth, videoHeight,
+                    FramebufferPool.FORMAT_RGBA);
+            checkGlError("Composite framebuffer");
+            // The letterbox of the recording follows the video size
+            resetAdjustedViewportRect();
         }
+        // Scaled to the display and to the recording size
+        compositeFramebuffer.setFilter(GLES20.GL_LINEAR);
+        return true;
+    }
 
-        deinitGLComponents();
-        deinitGL();
+    private void releaseCompositeFramebuffer() {
+        if (compositeFramebuffer != null) {
+            eglCore.getFramebufferPool().release(compositeFramebuffer);
+            compositeFramebuffer = null;
+        }
     }
 
 
     @Override
-    protected int[] getConfig() {
-        return new int[]{
-                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
-                EGL10.EGL_RED_SIZE, 8,
-                EGL10.EGL_GREEN_SIZE, 8,
-                EGL10.EGL_BLUE_SIZE, 8,
-                EGL10.EGL_ALPHA_SIZE, 8,
-                EGL10.EGL_DEPTH_SIZE, 8,
-                EGL10.EGL_STENCIL_SIZE, 0,
-                EGL_RECORDABLE_ANDROID, 1,
-                EGL10.EGL_NONE
-        };
-    }
-
-    public String getPreviousOutputPath() {
+    protected EglConfigChooser createConfigChooser() {
+        // The same config is used for the encoder input surface
+        return new EglConfigChooser(EglConfigChooser.FORMAT_RGBA_8888, 0, true);
+    }
+
+    /**
+     * @return file of the last finished recording, null if it failed
+     */
+    public synchronized String getPreviousOutputPath() {
         return previousOutputPath;
     }
 
     @Override
     protected void deinitGL() {
-        if (encoderInputWindowSurface != null) {
-            egl.eglDestroySurface(eglDisplay, encoderInputWindowSurface);
+        VideoEncoder unattached;
+        synchronized (this) {
+            recordingRequested = false;
+            stopRecordingRequested = false;
+            unattached = pendingEncoder;
+            pendingEncoder = null;
+            encoderInputSurface = null;
         }
-        if (encoderInputSurface != null) {
-            encoderInputSurface.release();
+        if (unattached != null) {
+            unattached.stop();
         }
+        // The encoder releases its input surface once it has written the file
+        finishRecording();
         super.deinitGL();
     }
 
@@ -0,0 +1,171 @@
+package com.malmstein.fenster.renderer;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.Surface;
+
+/**
+ * Canvas drawn over the video by {@link MoviePlayerTextureRenderer}, see
+ * {@link MoviePlayerTextureRenderer#getOverlayCanvas()}.
+ *
+ * Drawing goes through {@link #lockCanvas(Rect)} and {@link #unlockCanvasAndPost(Canvas)}, which keep track of the part
+ * of the overlay holding content. The renderer only blends that part over the video, skips the blend entirely while the
+ * overlay is empty, and only copies the overlay on the GPU when a new one has been posted.
+ *
+ * On API 23 and up the canvas is hardware accelerated. A hardware canvas does not keep the previous content, so
+ * everything has to be redrawn on each lock and the dirty rectangle only tells which part has been drawn into. The
+ * software canvas used before API 23 keeps the content outside of the dirty rectangle. A surface cannot go back to
+ * software drawing once it has been drawn with hardware acceleration, so the choice is fixed by the first lock.
+ */
+public class OverlayCanvas {
+
+    private final Surface surface;
+    private final Object lock = new Object();
+    private boolean hardwareAccelerated = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    private boolean locked;
+
+    // Guarded by lock
+    private int width;
+    private int height;
+    private final Rect lockedBounds = new Rect();
+    // Content drawn in the frames posted since the renderer last latched one
+    private final Rect postedBounds = new Rect();
+    private boolean postedFrameTracked;
+    // True if the posted frames replace the previous content instead of adding to it
+    private boolean postedReplaces;
+
+    // Only accessed on the rendering thread
+    private final Rect contentBounds = new Rect();
+
+    OverlayCanvas(Surface surface) {
+        this.surface = surface;
+    }
+
+    /**
+     * Turns hardware acceleration of the canvas off, e.g. for drawing operations not supported by it. Has no effect
+     * below API 23, and has to be called before the overlay is drawn or cleared for the first time, e.g. from
+     * {@link MoviePlayerTextureRenderer.Listener#onGLInitialized(MoviePlayerTextureRenderer)}.
+     */
+    public void setHardwareAccelerated(boolean hardwareAccelerated) {
+        synchronized (lock) {
+            if (locked) {
+                throw new IllegalStateException("The overlay has already been drawn");
+            }
+            this.hardwareAccelerated = hardwareAccelerated && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        }
+    }
+
+    public boolean isHardwareAccelerated() {
+        synchronized (lock) {
+            return hardwareAccelerated;
+        }
+    }
+
+    /**
+     * @param dirty part of the overlay about to be drawn, in video pixels, or null for all of it
+     * @return canvas of the size of the video
+     */
+    public Canvas lockCanvas(Rect dirty) {
+        synchronized (lock) {
+            if (dirty != null) {
+                lockedBounds.set(dirty);
+                if (!lockedBounds.intersect(0, 0, width, height)) {
+                    lockedBounds.setEmpty();
+                }
+            } else {
+                lockedBounds.set(0, 0, width, height);
+            }
+            locked = true;
+            if (hardwareAccelerated) {
+                return lockHardwareCanvas();
+            }
+            // The software canvas may enlarge the dirty rectangle
+            Rect softwareDirty = new Rect(lockedBounds);
+            Canvas canvas = surface.lockCanvas(softwareDirty);
+            lockedBounds.union(softwareDirty);
+            return canvas;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private Canvas lockHardwareCanvas() {
+        return surface.lockHardwareCanvas();
+    }
+
+    public void unlockCanvasAndPost(Canvas canvas) {
+        synchronized (lock) {
+            // Frames are latched by the renderer one at a time, so the bounds of all frames posted in between are kept
+            postedBounds.union(lockedBounds);
+            if (hardwareAccelerated) {
+                // Nothing survives from the previous frame
+                postedReplaces = true;
+            }
+            postedFrameTracked = true;
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Removes everything from the overlay, the renderer stops blending it until something is drawn again.
+     */
+    public void clear() {
+        synchronized (lock) {
+            Canvas canvas = lockCanvas(null);
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            lockedBounds.setEmpty();
+            postedReplaces = true;
+            unlockCanvasAndPost(canvas);
+        }
+    }
+
+    void setSize(int width, int height) {
+        synchronized (lock) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Called on the rendering thread when an overlay frame has been latched, updates the content bounds.
+     */
+    void onFrameLatched() {
+        synchronized (lock) {
+            if (postedFrameTracked) {
+                if (postedReplaces) {
+                    contentBounds.set(postedBounds);
+                } else {
+                    contentBounds.union(postedBounds);
+                }
+            } else {
+                // Drawn directly on the surface, the content can be anywhere
+                contentBounds.set(0, 0, width, height);
+            }
+            postedBounds.setEmpty();
+            postedFrameTracked = false;
+            postedReplaces = false;
+        }
+    }
+
+    /**
+     * @return true if the overlay has no content and does not have to be drawn, only valid on the rendering thread
+     */
+    boolean isEmpty() {
+        return contentBounds.isEmpty();
+    }
+
+    /**
+     * @return part of the overlay holding content, in video pixels with the origin at the top left. Only valid on the
+     * rendering thread.
+     */
+    Rect getContentBounds() {
+        return contentBounds;
+    }
+
+    Surface getSurface() {
+        return surface;
+    }
+}
@@ -0,0 +1,217 @@
+package com.malmstein.fenster.renderer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shader programs of one OpenGL context, linked once and shared by every renderer of that context.
+ *
+ * In an OpenGL ES 3.0 context the linked program binaries are also written to app storage, keyed by a hash of the
+ * shader sources, and loaded back with glProgramBinary in later processes instead of compiling the shaders again. A
+ * binary is only reused with the same GPU and driver version, anything else falls back to compiling from source.
+ *
+ * Programs handed out by the cache belong to it and are deleted along with the context, renderers must not release
+ * them. All methods have to be called on the rendering thread owning the context.
+ */
+public class ProgramCache {
+
+    private static final String DIRECTORY_NAME = "fenster_programs";
+    private static final int FILE_MAGIC = 0x46505243;
+
+    private static volatile File cacheDirectory;
+
+    private final Map<String, Integer> programs = new HashMap<>();
+    private final Map<String, TextureProgram> texturePrograms = new HashMap<>();
+    private final boolean binariesSupported;
+    private String driverVersion;
+
+    /**
+     * Enables persisting program binaries in the cache directory of the app. Renderers call this when they are
+     * created, it only has to be called explicitly to warm the cache before the first renderer.
+     */
+    public static void initialize(Context context) {
+        if (cacheDirectory == null && context != null) {
+            cacheDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        }
+    }
+
+    /**
+     * @param glesVersion major OpenGL ES version of the context, binaries are only used from 3 on
+     */
+    ProgramCache(int glesVersion) {
+        binariesSupported = glesVersion >= 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * @return the program made of the passed sources, with the handles of the textured quad attributes and uniforms,
+     * linked or loaded on first use. A surface of the context has to be current.
+     */
+    public TextureProgram getTextureProgram(String vertexShaderCode, String fragmentShaderCode, String samplerName) {
+        int program = getProgram(vertexShaderCode, fragmentShaderCode);
+        String programKey = program + "/" + samplerName;
+        TextureProgram textureProgram = texturePrograms.get(programKey);
+        if (textureProgram == null) {
+            textureProgram = new TextureProgram(program, samplerName);
+            texturePrograms.put(programKey, textureProgram);
+        }
+        return textureProgram;
+    }
+
+    /**
+     * @return the program made of the passed sources, linked or loaded on first use. A surface of the context has to
+     * be current.
+     */
+    public int getProgram(String vertexShaderCode, String fragmentShaderCode) {
+        String key = hash(vertexShaderCode + '\0' + fragmentShaderCode);
+        Integer program = programs.get(key);
+        if (program == null) {
+            program = getProgram(key, vertexShaderCode, fragmentShaderCode);
+            programs.put(key, program);
+            GlResourceTracker.trackGlObject(GlResourceTracker.PROGRAM, program, 0, this);
+        }
+        return program;
+    }
+
+    private int getProgram(String key, String vertexShaderCode, String fragmentShaderCode) {
+        File directory = cacheDirectory;
+        if (!binariesSupported || directory == null) {
+            return TextureProgram.link(vertexShaderCode, fragmentShaderCode, false);
+        }
+        File file = new File(directory, key);
+        int program = loadBinary(file);
+        if (program != 0) {
+            return program;
+        }
+        program = TextureProgram.link(vertexShaderCode, fragmentShaderCode, true);
+        saveBinary(program, file);
+        return program;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private int loadBinary(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_MAGIC || !getDriverVersion().equals(in.readUTF())) {
+                return 0;
+            }
+            int format = in.readInt();
+            byte[] binary = new byte[in.readInt()];
+            in.readFully(binary);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+            buffer.put(binary);
+            buffer.position(0);
+            int program = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(program, format, buffer, binary.length);
+
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] != GLES20.GL_TRUE) {
+                // The driver may reject binaries at any time, e.g. after an update with the same version string
+                GLES20.glDeleteProgram(program);
+                return 0;
+            }
+            return program;
+        } catch (IOException e) {
+            Log.w(TextureSurfaceRenderer.LOG_TAG, "Could not read program binary " + file, e);
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void saveBinary(int program, File file) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return;
+        }
+        byte[] binary = new byte[length[0]];
+        buffer.get(binary);
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        // Written to a temporary file first, so that a crash never leaves a truncated binary behind
+        File temporary = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temporary));
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(getDriverVersion());
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TextureSurfaceRenderer.LOG_TAG, "Could not write program binary " + file, e);
+            temporary.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private String getDriverVersion() {
+        if (driverVersion == null) {
+            driverVersion = GLES20.glGetString(GLES20.GL_RENDERER) + ' ' + GLES20.glGetString(GLES20.GL_VERSION);
+        }
+        return driverVersion;
+    }
+
+    private static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Both are guaranteed to exist on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Full screen quad stored in a vertex buffer object, drawn as a triangle strip.
+ *
+ * The geometry never changes, so it is uploaded once per OpenGL context and shared by every renderer and program of
+ * that context, see {@link EglCore#getQuadGeometry()}. Two sets of texture coordinates are kept: upright, where the
+ * texture origin is at the bottom left of the quad, and flipped, where it is at the top left.
+ */
+public class QuadGeometry {
+
+    public static final int TEXTURE_COORDS_UPRIGHT = 0;
+    public static final int TEXTURE_COORDS_FLIPPED = 1;
+
+    private static final int FLOAT_SIZE = 4;
+    private static final int POSITION_COMPONENTS = 3;
+    private static final int TEXTURE_COORD_COMPONENTS = 4;
+    private static final int VERTEX_COUNT = 4;
+
+    // Bottom left, bottom right, top left, top right
+    private static final float[] VERTICES = {
+            // Positions
+            -1f, -1f, 0f,
+            1f, -1f, 0f,
+            -1f, 1f, 0f,
+            1f, 1f, 0f,
+            // Upright texture coordinates
+            0f, 0f, 0f, 1f,
+            1f, 0f, 0f, 1f,
+            0f, 1f, 0f, 1f,
+            1f, 1f, 0f, 1f,
+            // Flipped texture coordinates
+            0f, 1f, 0f, 1f,
+            1f, 1f, 0f, 1f,
+            0f, 0f, 0f, 1f,
+            1f, 0f, 0f, 1f};
+
+    private static final int UPRIGHT_OFFSET = VERTEX_COUNT * POSITION_COMPONENTS * FLOAT_SIZE;
+    private static final int FLIPPED_OFFSET = UPRIGHT_OFFSET + VERTEX_COUNT * TEXTURE_COORD_COMPONENTS * FLOAT_SIZE;
+
+    private final int[] buffers = new int[1];
+
+    /**
+     * Uploads the geometry, has to be called on a thread with a current OpenGL context.
+     */
+    public QuadGeometry() {
+        FloatBuffer data = ByteBuffer.allocateDirect(VERTICES.length * FLOAT_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        data.put(VERTICES);
+        data.position(0);
+
+        GLES20.glGenBuffers(1, buffers, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTICES.length * FLOAT_SIZE, data, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, buffers[0], VERTICES.length * FLOAT_SIZE, this);
+    }
+
+    /**
+     * Binds the buffer and points the passed attributes at it. The attributes have to be enabled by the caller.
+     *
+     * @param textureCoords {@link #TEXTURE_COORDS_UPRIGHT} or {@link #TEXTURE_COORDS_FLIPPED}
+     */
+    public void bind(int positionHandle, int textureCoordinateHandle, int textureCoords) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glVertexAttribPointer(positionHandle, POSITION_COMPONENTS, GLES20.GL_FLOAT, false,
+                POSITION_COMPONENTS * FLOAT_SIZE, 0);
+        GLES20.glVertexAttribPointer(textureCoordinateHandle, TEXTURE_COORD_COMPONENTS, GLES20.GL_FLOAT, false,
+                TEXTURE_COORD_COMPONENTS * FLOAT_SIZE,
+                textureCoords == TEXTURE_COORDS_FLIPPED ? FLIPPED_OFFSET : UPRIGHT_OFFSET);
+    }
+
+    public void draw() {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
+    }
+
+    public void unbind() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    public void release() {
+        GlResourceTracker.untrackGlObject(GlResourceTracker.BUFFER, buffers[0]);
+        GLES20.glDeleteBuffers(1, buffers, 0);
+    }
+}
@@ -0,0 +1,143 @@
+package com.malmstein.fenster.renderer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread running one OpenGL context and one rendering loop for any number of {@link TextureSurfaceRenderer}s.
+ *
+ * Every renderer gets its own window surface in the shared {@link EglCore}. On each tick of the frame scheduler the
+ * renderers which requested a frame are drawn one after the other, so a screen with several videos costs one thread,
+ * one context and one vsync wait per frame. The thread quits once its last renderer has been released.
+ */
+public class RenderThread extends Thread {
+
+    private final EglConfigChooser configChooser;
+    private final FrameScheduler frameScheduler;
+
+    private final Object lock = new Object();
+    private final List<TextureSurfaceRenderer> renderers = new ArrayList<>();
+    // Snapshot of renderers used by the loop, reused to avoid allocating every frame
+    private final List<TextureSurfaceRenderer> active = new ArrayList<>();
+    private boolean quitting;
+
+    private EglCore eglCore;
+
+    /**
+     * @param configChooser  chooser of the EGL config shared by all renderers of this thread
+     * @param frameScheduler scheduler pacing the loop, released when the thread quits
+     */
+    public RenderThread(String name, EglConfigChooser configChooser, FrameScheduler frameScheduler) {
+        super(name);
+        this.configChooser = configChooser;
+        this.frameScheduler = frameScheduler;
+    }
+
+    /**
+     * Adds a renderer to this thread, its GL components are initialized on the next loop iteration.
+     *
+     * @return false if the thread is quitting and cannot accept renderers anymore
+     */
+    boolean attach(TextureSurfaceRenderer renderer) {
+        synchronized (lock) {
+            if (quitting) {
+                return false;
+            }
+            renderers.add(renderer);
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Wakes up the loop so that it checks its renderers for new frames or lifecycle changes.
+     */
+    void wake() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public int getRendererCount() {
+        synchronized (lock) {
+            return renderers.size();
+        }
+    }
+
+    public FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    @Override
+    public void run() {
+        eglCore = new EglCore(configChooser);
+        try {
+            while (awaitWork()) {
+                boolean frameNeeded = false;
+                for (int i = 0; i < active.size(); i++) {
+                    TextureSurfaceRenderer renderer = active.get(i);
+                    if (renderer.runLifecycle(eglCore)) {
+                        synchronized (lock) {
+                            renderers.remove(renderer);
+                        }
+                    } else if (renderer.wantsFrame()) {
+                        frameNeeded = true;
+                    }
+                }
+                if (!frameNeeded) {
+                    continue;
+                }
+
+                long frameTimeNanos = frameScheduler.awaitNextFrame();
+                long frameIntervalNanos = frameScheduler.getFrameIntervalNanos();
+                for (int i = 0; i < active.size(); i++) {
+                    active.get(i).renderFrameIfRequested(frameTimeNanos, frameIntervalNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Forced stop, release what is left below
+        } finally {
+            releaseRemaining();
+            frameScheduler.release();
+            eglCore.release();
+        }
+    }
+
+    /**
+     * Blocks until a renderer needs a frame or a lifecycle change, and copies the renderers to {@link #active}.
+     *
+     * @return false if there are no renderers left and the thread has to quit
+     */
+    private boolean awaitWork() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (renderers.isEmpty()) {
+                    quitting = true;
+                    return false;
+                }
+                for (int i = 0; i < renderers.size(); i++) {
+                    if (renderers.get(i).hasPendingWork()) {
+                        active.clear();
+                        active.addAll(renderers);
+                        return true;
+                    }
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void releaseRemaining() {
+        synchronized (lock) {
+            quitting = true;
+            active.clear();
+            active.addAll(renderers);
+            renderers.clear();
+        }
+        for (int i = 0; i < active.size(); i++) {
+            active.get(i).release();
+            active.get(i).runLifecycle(eglCore);
+        }
+        active.clear();
+    }
+}
@@ -0,0 +1,54 @@
+package com.malmstein.fenster.renderer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out shared {@link RenderThread}s, one per EGL config, so that every renderer started with
+ * {@link TextureSurfaceRenderer#start(RenderThreadPool)} is drawn from the same thread, context and vsync tick.
+ *
+ * Threads are created on demand and quit by themselves once their last renderer is released.
+ */
+public class RenderThreadPool {
+
+    private static RenderThreadPool defaultPool;
+
+    private final Map<String, RenderThread> threads = new HashMap<>();
+    private int createdThreads;
+
+    public static synchronized RenderThreadPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new RenderThreadPool();
+        }
+        return defaultPool;
+    }
+
+    synchronized void attach(TextureSurfaceRenderer renderer) {
+        EglConfigChooser configChooser = renderer.getConfigChooser();
+        String key = configChooser.getKey();
+        RenderThread thread = threads.get(key);
+        if (thread != null && renderer.attachTo(thread)) {
+            return;
+        }
+        // No thread for this config yet, or the previous one quit after its last renderer was released
+        thread = new RenderThread("FensterRenderPool-" + (++createdThreads), configChooser, createFrameScheduler());
+        threads.put(key, thread);
+        renderer.attachTo(thread);
+        thread.start();
+    }
+
+    protected FrameScheduler createFrameScheduler() {
+        return new VsyncFrameScheduler();
+    }
+
+    /**
+     * @return number of renderers currently attached to threads of this pool
+     */
+    public synchronized int getRendererCount() {
+        int count = 0;
+        for (RenderThread thread : threads.values()) {
+            count += thread.getRendererCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,55 @@
+package com.malmstein.fenster.renderer;
+
+import android.opengl.GLES20;
+
+/**
+ * Sharpens edges by subtracting the four direct neighbours of each pixel.
+ */
+public class SharpenFilter extends Filter {
+
+    private float amount;
+
+    private int amountHandle;
+
+    /**
+     * @param amount strength of the effect, 0 leaves the image untouched
+     */
+    public SharpenFilter(float amount) {
+        this.amount = amount;
+    }
+
+    public void setAmount(float amount) {
+        synchronized (this) {
+            this.amount = amount;
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean isPerPixel() {
+        return false;
+    }
+
+    @Override
+    protected String getShaderCode(String prefix) {
+        return "uniform float " + prefix + "amount;\n" +
+                "vec4 " + prefix + "apply(vec2 uv) {\n" +
+                "    vec4 center = sampleInput(uv);\n" +
+                "    vec4 neighbours = sampleInput(uv + vec2(texelSize.x, 0.0)) + sampleInput(uv - vec2(texelSize.x, 0.0))\n" +
+                "            + sampleInput(uv + vec2(0.0, texelSize.y)) + sampleInput(uv - vec2(0.0, texelSize.y));\n" +
+                "    vec3 sharpened = center.rgb * (1.0 + 4.0 * " + prefix + "amount) - neighbours.rgb * " + prefix + "amount;\n" +
+                "    return vec4(clamp(sharpened, 0.0, 1.0), center.a);\n" +
+                "}\n";
+    }
+
+    @Override
+    protected void onLinked(int program, String prefix) {
+        amountHandle = GLES20.glGetUniformLocation(program, prefix + "amount");
+    }
+
+    @Override
+    protected synchronized int onDraw(int textureUnit) {
+        GLES20.glUniform1f(amountHandle, amount);
+        return textureUnit;
+    }
+}
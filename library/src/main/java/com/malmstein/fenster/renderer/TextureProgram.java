@@ -0,0 +1,133 @@
+package com.malmstein.fenster.renderer;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Linked shader program drawing a {@link QuadGeometry}, with its attribute and uniform handles resolved once at link
+ * time.
+ *
+ * The vertex shader has to declare the attributes vPosition and vTexCoordinate and the uniforms projection, modelView
+ * and textureTransform, the fragment shader a single sampler whose name is passed to the constructor. Binding the
+ * program for a draw call does not allocate and does not query GL for any location.
+ */
+public class TextureProgram {
+
+    private final int program;
+    private final int positionHandle;
+    private final int textureCoordinateHandle;
+    private final int projectionHandle;
+    private final int modelViewHandle;
+    private final int textureTransformHandle;
+    private final int samplerHandle;
+
+    /**
+     * Compiles and links the program, has to be called on a thread with a current OpenGL context.
+     */
+    public TextureProgram(String vertexShaderCode, String fragmentShaderCode, String samplerName) {
+        this(link(vertexShaderCode, fragmentShaderCode, false), samplerName);
+        GlResourceTracker.trackGlObject(GlResourceTracker.PROGRAM, program, 0, this);
+    }
+
+    /**
+     * @param program an already linked program, e.g. loaded by {@link ProgramCache}
+     */
+    TextureProgram(int program, String samplerName) {
+        this.program = program;
+        positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        textureCoordinateHandle = GLES20.glGetAttribLocation(program, "vTexCoordinate");
+        projectionHandle = GLES20.glGetUniformLocation(program, "projection");
+        modelViewHandle = GLES20.glGetUniformLocation(program, "modelView");
+        textureTransformHandle = GLES20.glGetUniformLocation(program, "textureTransform");
+        samplerHandle = GLES20.glGetUniformLocation(program, samplerName);
+    }
+
+    /**
+     * @param retrievable true if the binary of the program will be read back with glGetProgramBinary, only allowed in
+     *                    an OpenGL ES 3.0 context
+     * @return the linked program
+     */
+    static int link(String vertexShaderCode, String fragmentShaderCode, boolean retrievable) {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        if (retrievable) {
+            setRetrievableHint(program);
+        }
+        GLES20.glLinkProgram(program);
+        // The program keeps the compiled code, the shader objects are not needed anymore
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String error = GLES20.glGetProgramInfoLog(program);
+            Log.e("SurfaceTest", "Error while linking program:\n" + error);
+        }
+        return program;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void setRetrievableHint(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    private static int compileShader(int type, String code) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, code);
+        GLES20.glCompileShader(shader);
+
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            Log.e("SurfaceTest", "Error while compiling shader:\n" + GLES20.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+
+    /**
+     * Uses the program and sets up everything needed to draw the quad. The texture has to be bound to the passed
+     * texture unit by the caller.
+     *
+     * @param textureCoords {@link QuadGeometry#TEXTURE_COORDS_UPRIGHT} or {@link QuadGeometry#TEXTURE_COORDS_FLIPPED}
+     * @param textureUnit   index of the texture unit, e.g. 0 for GL_TEXTURE0
+     */
+    public void bind(QuadGeometry quad, int textureCoords, float[] projectionMatrix, float[] modelViewMatrix,
+                     float[] textureTransform, int textureUnit) {
+        GLES20.glUseProgram(program);
+
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
+        quad.bind(positionHandle, textureCoordinateHandle, textureCoords);
+
+        GLES20.glUniformMatrix4fv(projectionHandle, 1, false, projectionMatrix, 0);
+        GLES20.glUniformMatrix4fv(modelViewHandle, 1, false, modelViewMatrix, 0);
+        GLES20.glUniformMatrix4fv(textureTransformHandle, 1, false, textureTransform, 0);
+        GLES20.glUniform1i(samplerHandle, textureUnit);
+    }
+
+    /**
+     * Disables the vertex attributes enabled by {@link #bind}.
+     */
+    public void unbind(QuadGeometry quad) {
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.unbind();
+    }
+
+    public int getProgram() {
+        return program;
+    }
+
+    public void release() {
+        GlResourceTracker.untrackGlObject(GlResourceTracker.PROGRAM, program);
+        GLES20.glDeleteProgram(program);
+    }
+}
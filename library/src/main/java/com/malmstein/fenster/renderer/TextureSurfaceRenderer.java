@@ -1,11 +1,12 @@
 package com.malmstein.fenster.renderer;
 
 import android.graphics.SurfaceTexture;
-import android.opengl.GLUtils;
 import android.util.Log;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.egl.EGLSurface;
@@ -13,13 +14,59 @@ import javax.microedition.khronos.egl.EGLSurface;
 /**
  * Renderer which initializes OpenGL 2.0 context on a passed surface and starts a rendering thread
  *
- * This class has to be subclassed to be used properly
+ * This class has to be subclassed to be used properly. The rendering thread is started by {@link #start()}, which has
+ * to be called once the renderer (including subclasses) is fully constructed. The renderer then moves through
+ * {@link State#CREATED} -> {@link State#GL_READY} -> {@link State#RENDERING} <-> {@link State#PAUSED} ->
+ * {@link State#RELEASED}.
+ *
+ * By default every renderer gets its own {@link RenderThread}. Screens showing several videos should use
+ * {@link #start(RenderThreadPool)} instead, so that all of them are drawn by one thread in one OpenGL context.
  */
-public abstract class TextureSurfaceRenderer implements Runnable {
+public abstract class TextureSurfaceRenderer {
     protected static final int EGL_OPENGL_ES2_BIT = 4;
-    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
     protected static final String LOG_TAG = "SurfaceTest.GL";
+
+    /**
+     * The loop only draws when {@link #requestRender()} has been called, and blocks without using any CPU otherwise
+     */
+    public static final int RENDERMODE_WHEN_DIRTY = 0;
+    /**
+     * The loop draws on every tick of the frame scheduler
+     */
+    public static final int RENDERMODE_CONTINUOUSLY = 1;
+
+    public enum State {
+        /**
+         * Constructed, OpenGL has not been initialized yet
+         */
+        CREATED,
+        /**
+         * OpenGL surface and components are initialized, the renderer is about to draw its first frame
+         */
+        GL_READY,
+        /**
+         * The renderer draws whenever a frame is requested
+         */
+        RENDERING,
+        /**
+         * The renderer does not draw, OpenGL resources are kept
+         */
+        PAUSED,
+        /**
+         * The renderer has been asked to stop, OpenGL resources are (being) released
+         */
+        RELEASED
+    }
+
+    /**
+     * Called on the rendering thread once OpenGL has been initialized, before the first frame is drawn
+     */
+    public interface OnGLReadyListener {
+        void onGLReady(TextureSurfaceRenderer renderer);
+    }
+
     protected SurfaceTexture texture;
+    protected EglCore eglCore;
     protected EGL10 egl;
     protected EGLDisplay eglDisplay;
     protected EGLContext eglContext;
@@ -27,7 +74,26 @@ public abstract class TextureSurfaceRenderer implements Runnable {
 
     protected int width;
     protected int height;
-    protected boolean running;
+    private FrameScheduler frameScheduler;
+    private EglConfigChooser configChooser;
+
+    private final Object renderLock = new Object();
+    private RenderThread renderThread;
+    private int renderMode = RENDERMODE_WHEN_DIRTY;
+    private boolean renderRequested = true;
+    private State state = State.CREATED;
+    private boolean started;
+    private boolean pauseRequested;
+    private boolean releaseRequested;
+    private boolean shouldReInit;
+    private final CountDownLatch glReadyLatch = new CountDownLatch(1);
+    private OnGLReadyListener onGLReadyListener;
+
+    // Only accessed on the rendering thread
+    private boolean surfaceInitialized;
+    private boolean glInitialized;
+    private long frameTimeNanos;
+    private long frameIntervalNanos = FrameScheduler.DEFAULT_FRAME_INTERVAL_NANOS;
 
     /**
      * @param texture Surface texture on which to render. This has to be called AFTER the texture became available
@@ -38,52 +104,348 @@ public abstract class TextureSurfaceRenderer implements Runnable {
         this.texture = texture;
         this.width = width;
         this.height = height;
-        this.running = true;
-        Thread thrd = new Thread(this);
-        thrd.start();
     }
 
-    @Override
-    public void run() {
-        try {
-            //Waiting for subclass constructor
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
+    /**
+     * Starts rendering on a dedicated thread. Call this once after construction.
+     */
+    public void start() {
+        markStarted();
+        RenderThread thread = new RenderThread("FensterRenderer", getConfigChooser(), getFrameScheduler());
+        attachTo(thread);
+        thread.start();
+    }
+
+    /**
+     * Starts rendering on a thread of the passed pool, shared with the other renderers using the same EGL config. Call
+     * this once after construction. The frame scheduler of the pool thread is used.
+     */
+    public void start(RenderThreadPool pool) {
+        markStarted();
+        pool.attach(this);
+    }
+
+    private void markStarted() {
+        synchronized (renderLock) {
+            if (started || state != State.CREATED) {
+                throw new IllegalStateException("Renderer already started, state: " + state);
+            }
+            started = true;
+        }
+    }
 
+    boolean attachTo(RenderThread thread) {
+        synchronized (renderLock) {
+            renderThread = thread;
         }
-        initGL();
-        initGLComponents();
-        Log.d(LOG_TAG, "OpenGL init OK.");
+        return thread.attach(this);
+    }
 
-        while (running) {
-            long loopStart = System.currentTimeMillis();
-            pingFps();
+    private void wakeRenderThread() {
+        RenderThread thread;
+        synchronized (renderLock) {
+            thread = renderThread;
+        }
+        if (thread != null) {
+            thread.wake();
+        }
+    }
 
-            if (draw()) {
-                egl.eglSwapBuffers(eglDisplay, eglSurface);
-            }
+    /**
+     * Called by the rendering thread to check whether this renderer needs to be visited by the loop.
+     */
+    boolean hasPendingWork() {
+        synchronized (renderLock) {
+            return releaseRequested || shouldReInit || state == State.CREATED || wantsFrameLocked();
+        }
+    }
 
-            long waitDelta = 16 - (System.currentTimeMillis() - loopStart);    // Targeting 60 fps, no need for faster
-            if (waitDelta > 0) {
+    boolean wantsFrame() {
+        synchronized (renderLock) {
+            return wantsFrameLocked();
+        }
+    }
+
+    private boolean wantsFrameLocked() {
+        return state == State.RENDERING && (renderMode == RENDERMODE_CONTINUOUSLY || renderRequested);
+    }
+
+    /**
+     * Runs pending initialization, re-initialization or release on the rendering thread.
+     *
+     * @return true if the renderer has been released and has to be removed from the rendering thread
+     */
+    boolean runLifecycle(EglCore core) {
+        boolean release;
+        boolean reinit;
+        synchronized (renderLock) {
+            release = releaseRequested;
+            reinit = shouldReInit;
+            shouldReInit = false;
+        }
+        if (release) {
+            if (surfaceInitialized) {
                 try {
-                    Thread.sleep(waitDelta);
-                } catch (InterruptedException e) {
-                    continue;
+                    releaseGL();
+                } catch (RuntimeException e) {
+                    // Same as a failed init, the other renderers sharing the thread keep running
+                    Log.e(LOG_TAG, "OpenGL deinit failed", e);
                 }
+                eglSurface = null;
+                surfaceInitialized = false;
+                glInitialized = false;
+            }
+            moveToReleased();
+            return true;
+        }
+        try {
+            if (!glInitialized) {
+                eglCore = core;
+                egl = core.getEgl();
+                eglDisplay = core.getDisplay();
+                eglContext = core.getContext();
+                initGL();
+                surfaceInitialized = true;
+                initGLComponents();
+                glInitialized = true;
+                Log.d(LOG_TAG, "OpenGL init OK.");
+                onGLReady();
+            } else if (reinit) {
+                replaceSurface();
             }
+        } catch (RuntimeException e) {
+            // A broken surface must not take down the other renderers sharing the thread
+            Log.e(LOG_TAG, "OpenGL init failed", e);
+            release();
+            return runLifecycle(core);
         }
+        return false;
+    }
 
-        deinitGLComponents();
-        deinitGL();
-        if (shouldReInit) {
-            shouldReInit = false;
-            run();
+    /**
+     * Deinitializes the components and destroys the window surface. Without a usable surface, e.g. when replacing it
+     * failed, the context is made current without one where supported. Otherwise the GL objects of the components are
+     * left to the destruction of the context, the components still release everything else.
+     */
+    private void releaseGL() {
+        boolean current = false;
+        if (eglSurface != null) {
+            try {
+                eglCore.makeCurrent(eglSurface);
+                current = true;
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Surface lost before release", e);
+            }
+        }
+        if (!current && !eglCore.makeCurrentWithoutSurface()) {
+            Log.w(LOG_TAG, "No surface to release the GL objects on, they are deleted along with the context");
+        }
+        try {
+            releaseGLComponents();
+        } finally {
+            deinitGL();
+        }
+    }
+
+    /**
+     * Deinitializes the components, also after {@link #initGLComponents()} failed halfway: whatever it created before
+     * failing is released, the rest is left to the leak report of {@link #deinitGL()}.
+     */
+    private void releaseGLComponents() {
+        if (glInitialized) {
+            deinitGLComponents();
+            return;
+        }
+        try {
+            deinitGLComponents();
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Components only partly initialized, releasing what was created", e);
+        }
+    }
+
+    /**
+     * Swaps the window surface for one on the current {@link #texture}. Only the EGL surface is recreated, the context,
+     * programs, textures, framebuffers and the video surface texture stay alive.
+     */
+    private void replaceSurface() {
+        // The old surface has to be released before a new one can connect to the same native window
+        eglCore.makeNothingCurrent();
+        eglCore.destroySurface(eglSurface);
+        // Not left pointing to the destroyed surface if the new one cannot be created
+        eglSurface = null;
+        eglSurface = eglCore.createWindowSurface(texture);
+        eglCore.makeCurrent(eglSurface);
+        Log.d(LOG_TAG, "OpenGL surface replaced.");
+        onSurfaceReplaced();
+        requestRender();
+    }
+
+    /**
+     * Called on the rendering thread after the window surface has been replaced by {@link #reinitGL(SurfaceTexture)},
+     * with the new surface current. The new surface is empty, so subclasses have to redraw their current content.
+     */
+    protected void onSurfaceReplaced() {
+    }
+
+    /**
+     * Called by the rendering thread once per tick, draws a frame if one has been requested.
+     *
+     * @param frameTimeNanos     time of the vsync the loop woke up on
+     * @param frameIntervalNanos current display refresh interval
+     */
+    void renderFrameIfRequested(long frameTimeNanos, long frameIntervalNanos) {
+        synchronized (renderLock) {
+            if (!wantsFrameLocked()) {
+                return;
+            }
+            // Clearing the request before drawing makes sure that a request made while drawing triggers another frame
+            renderRequested = false;
         }
+        this.frameTimeNanos = frameTimeNanos;
+        this.frameIntervalNanos = frameIntervalNanos;
+        eglCore.makeCurrent(eglSurface);
+        pingFps();
+        drawFrame();
+    }
+
+    /**
+     * @return time of the vsync the frame being drawn belongs to, in the {@link System#nanoTime()} time base. Only
+     * valid on the rendering thread while drawing.
+     */
+    protected long getFrameTimeNanos() {
+        return frameTimeNanos;
     }
 
     /**
-     * Main draw function, subclass this and add custom drawing code here. The rendering thread will attempt to limit
-     * FPS to 60 to keep CPU usage low.
+     * @return display refresh interval measured by the frame scheduler. Only valid on the rendering thread.
+     */
+    protected long getFrameIntervalNanos() {
+        return frameIntervalNanos;
+    }
+
+    private void onGLReady() {
+        OnGLReadyListener listener;
+        synchronized (renderLock) {
+            state = State.GL_READY;
+            listener = onGLReadyListener;
+        }
+        glReadyLatch.countDown();
+        if (listener != null) {
+            listener.onGLReady(this);
+        }
+        synchronized (renderLock) {
+            if (state == State.GL_READY) {
+                state = pauseRequested ? State.PAUSED : State.RENDERING;
+            }
+            renderRequested = true;
+        }
+    }
+
+    private void moveToReleased() {
+        synchronized (renderLock) {
+            if (state == State.RELEASED) {
+                return;
+            }
+            state = State.RELEASED;
+        }
+        onReleased();
+    }
+
+    /**
+     * Called once the renderer reached {@link State#RELEASED}, whether OpenGL had been initialized or not. Called on
+     * the rendering thread, or on the thread calling {@link #release()} if the renderer was never started.
+     */
+    protected void onReleased() {
+    }
+
+    public State getState() {
+        synchronized (renderLock) {
+            return state;
+        }
+    }
+
+    /**
+     * @return true if the renderer has been started and not released yet
+     */
+    public boolean isStarted() {
+        synchronized (renderLock) {
+            return started && state != State.RELEASED;
+        }
+    }
+
+    /**
+     * Blocks until OpenGL has been initialized on the rendering thread.
+     *
+     * @return true if OpenGL is ready, false if the timeout elapsed first
+     */
+    public boolean awaitGLReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return glReadyLatch.await(timeout, unit);
+    }
+
+    /**
+     * Sets a listener called on the rendering thread once OpenGL is ready. If it already is, the listener is called
+     * right away on the calling thread.
+     */
+    public void setOnGLReadyListener(OnGLReadyListener listener) {
+        synchronized (renderLock) {
+            onGLReadyListener = listener;
+        }
+        if (listener != null && glReadyLatch.getCount() == 0) {
+            listener.onGLReady(this);
+        }
+    }
+
+    /**
+     * Asks the rendering thread to draw a frame. Call this whenever something shown by the renderer changes, e.g. when
+     * a new video frame is available, an overlay has been updated or the surface has been resized.
+     */
+    public void requestRender() {
+        synchronized (renderLock) {
+            renderRequested = true;
+        }
+        wakeRenderThread();
+    }
+
+    public int getRenderMode() {
+        synchronized (renderLock) {
+            return renderMode;
+        }
+    }
+
+    /**
+     * @param renderMode {@link #RENDERMODE_WHEN_DIRTY} (default) or {@link #RENDERMODE_CONTINUOUSLY}
+     */
+    public void setRenderMode(int renderMode) {
+        synchronized (renderLock) {
+            this.renderMode = renderMode;
+        }
+        wakeRenderThread();
+    }
+
+    /**
+     * Draws a single frame and presents it on the surface. Subclasses can override this to present the frame on
+     * additional surfaces.
+     */
+    protected void drawFrame() {
+        if (draw()) {
+            long presentationTimeNanos = getPresentationTimeNanos();
+            if (presentationTimeNanos > 0) {
+                eglCore.setPresentationTime(presentationTimeNanos);
+            }
+            egl.eglSwapBuffers(eglDisplay, eglSurface);
+        }
+    }
+
+    /**
+     * @return the time at which the frame just drawn has to be shown, or 0 to show it as soon as possible
+     */
+    protected long getPresentationTimeNanos() {
+        return 0;
+    }
+
+    /**
+     * Main draw function, subclass this and add custom drawing code here. The rendering thread is paced by the
+     * {@link FrameScheduler}, by default once per display vsync.
      */
     protected abstract boolean draw();
 
@@ -112,89 +474,132 @@ public abstract class TextureSurfaceRenderer implements Runnable {
     }
 
 
+    public synchronized FrameScheduler getFrameScheduler() {
+        if (frameScheduler == null) {
+            frameScheduler = new VsyncFrameScheduler();
+        }
+        return frameScheduler;
+    }
+
     /**
-     * Call when activity pauses. This stops the rendering thread and deinitializes OpenGL.
+     * Replaces the scheduler pacing the dedicated rendering thread, has to be called before {@link #start()}.
      */
-    public void onPause() {
-        running = false;
+    public synchronized void setFrameScheduler(FrameScheduler frameScheduler) {
+        this.frameScheduler = frameScheduler;
     }
 
+    /**
+     * Stops drawing while keeping the rendering thread and OpenGL resources alive, see {@link #resume()}.
+     */
+    public void pause() {
+        synchronized (renderLock) {
+            if (state == State.RENDERING) {
+                state = State.PAUSED;
+            } else if (state == State.CREATED || state == State.GL_READY) {
+                pauseRequested = true;
+            }
+        }
+    }
 
-    protected void initGL() {
-        egl = (EGL10) EGLContext.getEGL();
-        eglDisplay = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-
-        int[] version = new int[2];
-        egl.eglInitialize(eglDisplay, version);
-
-        EGLConfig eglConfig = chooseEglConfig();
-        eglContext = createContext(egl, eglDisplay, eglConfig);
-
-        eglSurface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, texture, null);
-
-        if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
-            throw new RuntimeException("GL Error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+    public void resume() {
+        synchronized (renderLock) {
+            pauseRequested = false;
+            if (state == State.PAUSED) {
+                state = State.RENDERING;
+                renderRequested = true;
+            }
         }
+        wakeRenderThread();
+    }
 
-        if (!egl.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-            throw new RuntimeException("GL Make current error: " + GLUtils.getEGLErrorString(egl.eglGetError()));
+    /**
+     * Stops rendering and deinitializes OpenGL on the rendering thread. The renderer cannot be restarted afterwards.
+     */
+    public void release() {
+        boolean notStarted;
+        synchronized (renderLock) {
+            notStarted = !started;
+            releaseRequested = true;
+        }
+        if (notStarted) {
+            moveToReleased();
         }
+        wakeRenderThread();
     }
 
-    protected void deinitGL() {
-        egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-        egl.eglDestroySurface(eglDisplay, eglSurface);
-        egl.eglDestroyContext(eglDisplay, eglContext);
-        egl.eglTerminate(eglDisplay);
-        Log.d(LOG_TAG, "OpenGL deinit OK.");
+    /**
+     * Call when activity pauses. This stops the rendering thread and deinitializes OpenGL, same as {@link #release()}.
+     */
+    public void onPause() {
+        release();
     }
 
-    boolean shouldReInit = false;
+    /**
+     * Creates the window surface of this renderer in the shared context and makes it current.
+     */
+    protected void initGL() {
+        eglSurface = eglCore.createWindowSurface(texture);
+        eglCore.makeCurrent(eglSurface);
+    }
 
-    public void reinitGL(SurfaceTexture surfaceTexture) {
-        if (surfaceTexture != null) {
-            texture = surfaceTexture;
+    /**
+     * Destroys the window surface of this renderer, the context stays alive for the other renderers of the thread.
+     */
+    protected void deinitGL() {
+        eglCore.makeNothingCurrent();
+        if (eglSurface != null) {
+            eglCore.destroySurface(eglSurface);
+            eglSurface = null;
         }
-        shouldReInit = true;
-        running = false;
+        GlResourceTracker.reportLeaks(this);
     }
 
-    private EGLContext createContext(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig) {
-        int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
-        return egl.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attribList);
+    /**
+     * Moves rendering to a new surface texture, e.g. after the TextureView has been re-attached. Only the EGL surface
+     * is recreated, everything else is kept.
+     *
+     * @param surfaceTexture new surface texture to render on, or null to recreate the surface on the current one
+     */
+    public void reinitGL(SurfaceTexture surfaceTexture) {
+        synchronized (renderLock) {
+            if (surfaceTexture != null) {
+                texture = surfaceTexture;
+            }
+            shouldReInit = true;
+        }
+        wakeRenderThread();
     }
 
-    protected EGLConfig chooseEglConfig() {
-        int[] configsCount = new int[1];
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] configSpec = getConfig();
-
-        if (!egl.eglChooseConfig(eglDisplay, configSpec, configs, 1, configsCount)) {
-            throw new IllegalArgumentException("Failed to choose config: " + GLUtils.getEGLErrorString(egl.eglGetError()));
-        } else if (configsCount[0] > 0) {
-            return configs[0];
+    /**
+     * @return the chooser of the EGL config of this renderer, renderers sharing a pooled thread have choosers with the
+     * same {@link EglConfigChooser#getKey() key}
+     */
+    public synchronized EglConfigChooser getConfigChooser() {
+        if (configChooser == null) {
+            configChooser = createConfigChooser();
         }
+        return configChooser;
+    }
 
-        return null;
+    /**
+     * Replaces the EGL config requirements of this renderer, e.g. with {@link EglConfigChooser#FORMAT_RGB_565} on low
+     * memory devices. Has to be called before the renderer is started.
+     */
+    public synchronized void setConfigChooser(EglConfigChooser configChooser) {
+        this.configChooser = configChooser;
     }
 
-    protected int[] getConfig() {
-        return new int[]{
-                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
-                EGL10.EGL_RED_SIZE, 8,
-                EGL10.EGL_GREEN_SIZE, 8,
-                EGL10.EGL_BLUE_SIZE, 8,
-                EGL10.EGL_ALPHA_SIZE, 8,
-                EGL10.EGL_DEPTH_SIZE, 8,
-                EGL10.EGL_STENCIL_SIZE, 0,
-                EGL10.EGL_NONE
-        };
+    /**
+     * @return the default config chooser of this renderer: RGBA8888 without depth and stencil buffers
+     */
+    protected EglConfigChooser createConfigChooser() {
+        return new EglConfigChooser(EglConfigChooser.FORMAT_RGBA_8888);
     }
 
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
-        running = false;
+        release();
     }
 
 }
@@ -2,6 +2,7 @@ package com.malmstein.fenster.renderer;
 
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
@@ -9,10 +10,9 @@ import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class VideoTextureRenderer extends TextureSurfaceRenderer implements SurfaceTexture.OnFrameAvailableListener {
     protected static final String TAG = "VideoTextureRenderer";
@@ -56,56 +56,61 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
 
     private OnRenderFrameListener onRenderFrameListener;
 
+    public interface OnSnapshotListener {
+        /**
+         * Called on a background thread with the snapshot, which can be given back with
+         * {@link VideoTextureRenderer#releaseSnapshot(Bitmap)} once it is not needed anymore.
+         */
+        void onSnapshot(Bitmap snapshot);
+    }
+
     public interface OnVideoTextureAvailableListener {
         void onVideoTextureAvailable(VideoTextureRenderer videoTextureRenderer, SurfaceTexture surfaceTexture);
     }
 
     protected OnVideoTextureAvailableListener onVideoTextureAvailableListener;
 
-    private static float squareSize = 1.0f;
-    private static float squareCoords[] = {
-            -squareSize, -squareSize, 0f,   // top left
-            squareSize, -squareSize, 0f,   // bottom left
-            -squareSize, squareSize, 0f,   // bottom right
-            squareSize, squareSize, 0f}; // top right
-
-    private static short drawOrder[] = {0, 1, 2, 0, 2, 3};
+    // Column major, maps texture coordinate (s, t) to (s, 1 - t)
+    private static final float[] FLIP_VERTICAL = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f};
 
     private Context ctx;
 
-    // Texture to be shown in backgrund
-    private FloatBuffer textureBuffer;
-    private float textureCoords[] = {0.0f, 1.0f, 0.0f, 1.0f,
-            1.0f, 1.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 0.0f, 1.0f,
-            1.0f, 0.0f, 0.0f, 1.0f};
     private int[] textures = new int[1];
 
-    private int vertexShaderHandle;
-    private int fragmentShaderHandle;
-    private int shaderProgram;
-    private int shaderProgram2D;
-    private FloatBuffer vertexBuffer;
-    private ShortBuffer drawListBuffer;
+    private TextureProgram videoProgram;
+    private TextureProgram blitProgram;
+    private QuadGeometry quad;
 
     private SurfaceTexture videoTexture;
     private float[] videoTextureTransform;
     private boolean frameAvailable = false;
+    private boolean contentInvalidated = false;
+    // Latched frame which has not been presented yet, only accessed on the rendering thread
+    private boolean framePending = false;
+    private long presentationTimeNanos;
+    private final FramePacer framePacer = new FramePacer();
+    private final FrameSnapshotter snapshotter = new FrameSnapshotter();
+    // True once a video frame has been latched into the texture, only accessed on the rendering thread
+    private boolean frameLatched;
+    private long latchedFrameCount;
     private float[] projectionMatrix = new float[16];
     private float[] modelViewMatrix = new float[16];
+    private final float[] identityMatrix = new float[16];
+    private final float[] directTextureTransform = new float[16];
     private int videoWidth;
     private int videoHeight;
+    private FilterChain filterChain;
+    // Chains replaced since the last frame, their GL objects are released on the rendering thread
+    private final List<FilterChain> releasedFilterChains = new ArrayList<>();
     private boolean adjustViewport = false;
-    protected boolean blitToEncoderInput;
+    // Target of the final pass instead of the window surface, only accessed on the rendering thread
+    private Framebuffer outputFramebuffer;
 
-    private int[] frameBuffers = new int[1];
-    private int[] renderBuffers = new int[1];
-    private int[] recordingFramebuffers = new int[1];
-    private int[] recordingRenderbuffers = new int[1];
-    private int[] offScreenTextures = new int[1];
-    protected int[] recordingTextures = new int[1];
-    private boolean frameBufferPrepared;
-    private boolean recordingFramebufferPrepared;
+    private Framebuffer offscreenFramebuffer;
 
     protected int recordingVideoWidth;
     protected int recordingVideoHeight;
@@ -116,82 +121,44 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
     public VideoTextureRenderer(Context context, SurfaceTexture texture, int width, int height, OnVideoTextureAvailableListener onVideoTextureAvailableListener) {
         super(texture, width, height);
         this.ctx = context;
+        ProgramCache.initialize(context);
         this.onVideoTextureAvailableListener = onVideoTextureAvailableListener;
         videoTextureTransform = new float[16];
+        Matrix.setIdentityM(identityMatrix, 0);
     }
 
     protected int getShaderProgram() {
-        return shaderProgram;
+        return videoProgram.getProgram();
     }
 
     private void loadShaders() {
-        vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-        GLES20.glCompileShader(vertexShaderHandle);
-        checkGlError("Vertex shader compile");
-
-        fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-        GLES20.glCompileShader(fragmentShaderHandle);
-        checkGlError("Pixel shader compile");
-
-        shaderProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(shaderProgram, vertexShaderHandle);
-        GLES20.glAttachShader(shaderProgram, fragmentShaderHandle);
-        GLES20.glLinkProgram(shaderProgram);
+        ProgramCache programCache = eglCore.getProgramCache();
+        videoProgram = programCache.getTextureProgram(vertexShaderCode, fragmentShaderCode, "a_texture");
         checkGlError("Shader program compile");
-
-        int[] status = new int[1];
-        GLES20.glGetProgramiv(shaderProgram, GLES20.GL_LINK_STATUS, status, 0);
-        if (status[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(shaderProgram);
-            Log.e("SurfaceTest", "Error while linking program:\n" + error);
-        }
-
-        int fragmentShaderHandle2D = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle2D, fragmentShaderCode2D);
-        GLES20.glCompileShader(fragmentShaderHandle2D);
-
-        shaderProgram2D = GLES20.glCreateProgram();
-        GLES20.glAttachShader(shaderProgram2D, vertexShaderHandle);
-        GLES20.glAttachShader(shaderProgram2D, fragmentShaderHandle2D);
-        GLES20.glLinkProgram(shaderProgram2D);
-
-    }
-
-
-    private void setupVertexBuffer() {
-        // Draw list buffer
-        ByteBuffer dlb = ByteBuffer.allocateDirect(drawOrder.length * 2);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
-        drawListBuffer.position(0);
-
-        // Initialize the texture holder
-        ByteBuffer bb = ByteBuffer.allocateDirect(squareCoords.length * 4);
-        bb.order(ByteOrder.nativeOrder());
-
-        vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.put(squareCoords);
-        vertexBuffer.position(0);
+        blitProgram = programCache.getTextureProgram(vertexShaderCode, fragmentShaderCode2D, "s_Texture");
     }
 
 
     private void setupTexture(Context context) {
-        ByteBuffer texturebb = ByteBuffer.allocateDirect(textureCoords.length * 4);
-        texturebb.order(ByteOrder.nativeOrder());
-
-        textureBuffer = texturebb.asFloatBuffer();
-        textureBuffer.put(textureCoords);
-        textureBuffer.position(0);
-
         // Generate the actual texture
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glGenTextures(1, textures, 0);
         checkGlError("Texture generate");
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, textures[0], 0, this);
+        // Texture parameters are part of the texture object, they only have to be set once
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 
         videoTexture = new SurfaceTexture(textures[0]);
+        GlResourceTracker.trackSurface(GlResourceTracker.SURFACE_TEXTURE, videoTexture, this);
         videoTexture.setOnFrameAvailableListener(this);
         if (onVideoTextureAvailableListener != null) {
             onVideoTextureAvailableListener.onVideoTextureAvailable(this, videoTexture);
@@ -203,52 +170,22 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
         // Draw texture
-        GLES20.glUseProgram(shaderProgram);
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         GLES20.glDepthFunc(GLES20.GL_LEQUAL);
         GLES20.glDepthMask(true);
         GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        int textureParamHandle = GLES20.glGetUniformLocation(shaderProgram, "a_texture");
-        int textureCoordinateHandle = GLES20.glGetAttribLocation(shaderProgram, "vTexCoordinate");
-        int positionHandle = GLES20.glGetAttribLocation(shaderProgram, "vPosition");
-        int textureTranformHandle = GLES20.glGetUniformLocation(shaderProgram, "textureTransform");
-        int projectionHandler = GLES20.glGetUniformLocation(shaderProgram, "projection");
-        int modelViewHandler = GLES20.glGetUniformLocation(shaderProgram, "modelView");
-
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 4 * 3, vertexBuffer);
-        GLES20.glUniformMatrix4fv(projectionHandler, 1, false, projectionMatrix, 0);
-        GLES20.glUniformMatrix4fv(modelViewHandler, 1, false, modelViewMatrix, 0);
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
-                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
-        GLES20.glUniform1i(textureParamHandle, 0);
-
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 4, GLES20.GL_FLOAT, false, 0, textureBuffer);
-
-        float[] identity = new float[16];
-        Matrix.setIdentityM(identity, 0);
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, identity, 0);
+        videoProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_FLIPPED, projectionMatrix, modelViewMatrix, identityMatrix, 0);
 
         if (onRenderFrameListener != null) {
             onRenderFrameListener.onPreRender();
         }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-//        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.draw();
+        videoProgram.unbind(quad);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
     }
 
@@ -257,48 +194,18 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
         // Draw texture
-        GLES20.glUseProgram(shaderProgram2D);
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         GLES20.glDepthFunc(GLES20.GL_LEQUAL);
         GLES20.glDepthMask(true);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        int textureParamHandle = GLES20.glGetUniformLocation(shaderProgram2D, "s_Texture");
-        int textureCoordinateHandle = GLES20.glGetAttribLocation(shaderProgram2D, "vTexCoordinate");
-        int positionHandle = GLES20.glGetAttribLocation(shaderProgram2D, "vPosition");
-        int textureTranformHandle = GLES20.glGetUniformLocation(shaderProgram2D, "textureTransform");
-        int projectionHandler = GLES20.glGetUniformLocation(shaderProgram2D, "projection");
-        int modelViewHandler = GLES20.glGetUniformLocation(shaderProgram2D, "modelView");
-
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 4 * 3, vertexBuffer);
-        GLES20.glUniformMatrix4fv(projectionHandler, 1, false, projectionMatrix, 0);
-        GLES20.glUniformMatrix4fv(modelViewHandler, 1, false, modelViewMatrix, 0);
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offScreenTextures[0]);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
-                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
-        GLES20.glUniform1i(textureParamHandle, 0);
-
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 4, GLES20.GL_FLOAT, false, 0, textureBuffer);
-
-        float[] identity = new float[16];
-        Matrix.setIdentityM(identity, 0);
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, videoTextureTransform, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offscreenFramebuffer.getTexture());
+        blitProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_FLIPPED, projectionMatrix, modelViewMatrix, videoTextureTransform, 0);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-//        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        quad.draw();
+        blitProgram.unbind(quad);
     }
 
     void prepareDraw() {
@@ -309,36 +216,279 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
 
     @Override
     protected boolean draw() {
+        processSnapshots();
+        FilterChain chain;
         synchronized (this) {
+            chain = filterChain;
+            releaseReplacedFilterChains();
             if (frameAvailable) {
                 videoTexture.updateTexImage();
                 videoTexture.getTransformMatrix(videoTextureTransform);
                 frameAvailable = false;
-            } /*else {
+                framePending = true;
+                frameLatched = true;
+                latchedFrameCount++;
+            } else if (!contentInvalidated && !framePending) {
                 return false;
-            }*/
-
+            }
+            contentInvalidated = false;
+        }
+        presentationTimeNanos = 0;
+        if (framePending) {
+            if (!isPaced()) {
+                // Frames are drawn as they come, stamped with their own time
+                framePending = false;
+                presentationTimeNanos = videoTexture.getTimestamp();
+            } else if (!schedulePendingFrame()) {
+                return false;
+            }
+        }
+        if (chain != null && !chain.isEmpty()) {
+            releaseOffscreenFramebuffer();
+            bindOutput();
+            drawFiltered(chain);
+            return true;
         }
-        if (!frameBufferPrepared) {
-            prepareFramebuffer(videoWidth, videoHeight);
+        if (!needsOffscreenPass()) {
+            releaseOffscreenFramebuffer();
+            bindOutput();
+            drawDirect();
+            return true;
         }
-        if (!frameBufferPrepared) {
+        if (!prepareOffscreenFramebuffer()) {
             return false;
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
-        GLES20.glViewport(0, 0, videoWidth, videoHeight);
+        offscreenFramebuffer.bind();
         drawToFrameBuffer();
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        if (blitToEncoderInput) {
-            adjustViewportForRecordingInput();
+        bindOutput();
+        blitToScreen();
+
+        return true;
+    }
+
+    /**
+     * Makes {@link #draw()} render into the framebuffer instead of the window surface, e.g. so that the frame can be
+     * presented on several surfaces without being drawn again. Only valid on the rendering thread.
+     *
+     * @param framebuffer target of the final pass, null for the window surface
+     */
+    protected void setOutputFramebuffer(Framebuffer framebuffer) {
+        this.outputFramebuffer = framebuffer;
+    }
+
+    /**
+     * Binds the target of the final pass and sets the viewport to cover it.
+     */
+    protected void bindOutput() {
+        if (outputFramebuffer != null) {
+            outputFramebuffer.bind();
         } else {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
             GLES20.glViewport(0, 0, width, height);
         }
-        blitToScreen();
+    }
+
+    /**
+     * @param viewport receives x, y, width and height of the viewport set by {@link #bindOutput()}
+     */
+    protected void getOutputViewport(int[] viewport) {
+        viewport[0] = 0;
+        viewport[1] = 0;
+        viewport[2] = outputFramebuffer != null ? outputFramebuffer.getWidth() : width;
+        viewport[3] = outputFramebuffer != null ? outputFramebuffer.getHeight() : height;
+    }
+
+    /**
+     * @return true if the video has to be drawn into an offscreen framebuffer before being shown, false if it can be
+     * sampled straight onto the output surface
+     */
+    protected boolean needsOffscreenPass() {
+        // The listener may change GL state for the offscreen pass
+        return onRenderFrameListener != null;
+    }
+
+    /**
+     * Samples the video texture straight onto the output surface. The transform combines the surface texture transform
+     * with the flip of the offscreen pass, so that the result is the same as {@link #drawToFrameBuffer()} followed by
+     * {@link #blitToScreen()}, at half the fill rate and without the framebuffer.
+     */
+    private void drawDirect() {
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        // The video is opaque, blending would only cost bandwidth
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+
+        Matrix.multiplyMM(directTextureTransform, 0, FLIP_VERTICAL, 0, videoTextureTransform, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        videoProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_FLIPPED, projectionMatrix, modelViewMatrix, directTextureTransform, 0);
+
+        quad.draw();
+        videoProgram.unbind(quad);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    }
+
+    private void releaseReplacedFilterChains() {
+        for (int i = 0; i < releasedFilterChains.size(); i++) {
+            releasedFilterChains.get(i).release();
+        }
+        releasedFilterChains.clear();
+    }
+
+    /**
+     * Draws the video through the filter chain, the first pass samples the video texture with the same transform as
+     * {@link #drawDirect()}.
+     */
+    private void drawFiltered(FilterChain chain) {
+        Matrix.multiplyMM(directTextureTransform, 0, FLIP_VERTICAL, 0, videoTextureTransform, 0);
+        int inputWidth = videoWidth > 0 ? videoWidth : width;
+        int inputHeight = videoHeight > 0 ? videoHeight : height;
+        if (outputFramebuffer != null) {
+            chain.drawInto(eglCore, textures[0], directTextureTransform, inputWidth, inputHeight, outputFramebuffer,
+                    false);
+        } else {
+            chain.draw(eglCore, textures[0], directTextureTransform, inputWidth, inputHeight);
+        }
+    }
+
+    /**
+     * Asks for a copy of the video frame currently shown, scaled to the passed size and with the filters applied. The
+     * frame is drawn and read back on the rendering thread without waiting for the GPU, so playback is not disturbed.
+     * The listener is not called if the renderer is released first.
+     */
+    public void requestSnapshot(int width, int height, OnSnapshotListener listener) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid snapshot size " + width + "x" + height);
+        }
+        snapshotter.add(new FrameSnapshotter.Request(width, height, listener));
+        requestRender();
+    }
 
+    /**
+     * Gives a snapshot bitmap back for reuse by later snapshots, it must not be used by the caller afterwards.
+     */
+    public void releaseSnapshot(Bitmap snapshot) {
+        snapshotter.getBitmapPool().release(snapshot);
+    }
+
+    /**
+     * Finishes the snapshot reads the GPU is done with, then draws the requested snapshots of the latched frame.
+     */
+    private void processSnapshots() {
+        FramebufferPool framebufferPool = eglCore.getFramebufferPool();
+        snapshotter.completeReads(framebufferPool);
+        if (!frameLatched) {
+            return;
+        }
+        FrameSnapshotter.Request request;
+        while ((request = snapshotter.poll(eglCore)) != null) {
+            Framebuffer framebuffer = framebufferPool.acquire(request.width, request.height,
+                    FramebufferPool.FORMAT_RGBA);
+            framebuffer.setFilter(GLES20.GL_LINEAR);
+            drawSnapshot(framebuffer);
+            snapshotter.startRead(request, framebuffer, framebufferPool);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (snapshotter.hasWork()) {
+            // Reads in flight are finished on a later frame
+            requestRender();
+        }
+    }
+
+    /**
+     * Draws the latched frame upside down, so that glReadPixels returns the top row first as bitmaps expect.
+     */
+    private void drawSnapshot(Framebuffer framebuffer) {
+        Matrix.multiplyMM(directTextureTransform, 0, FLIP_VERTICAL, 0, videoTextureTransform, 0);
+        FilterChain chain;
+        synchronized (this) {
+            chain = filterChain;
+        }
+        int inputWidth = videoWidth > 0 ? videoWidth : framebuffer.getWidth();
+        int inputHeight = videoHeight > 0 ? videoHeight : framebuffer.getHeight();
+        if (chain != null && !chain.isEmpty() && chain.drawInto(eglCore, textures[0], directTextureTransform,
+                inputWidth, inputHeight, framebuffer, true)) {
+            return;
+        }
+        framebuffer.bind();
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        videoProgram.bind(quad, QuadGeometry.TEXTURE_COORDS_UPRIGHT, projectionMatrix, modelViewMatrix,
+                directTextureTransform, 0);
+        quad.draw();
+        videoProgram.unbind(quad);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    }
+
+    /**
+     * Decides whether the latched video frame is drawn on this vsync, based on its timestamp.
+     *
+     * @return false if the frame has been dropped or is due on a later vsync
+     */
+    private boolean schedulePendingFrame() {
+        boolean newerFrameQueued;
+        synchronized (this) {
+            newerFrameQueued = frameAvailable;
+        }
+        switch (framePacer.schedule(videoTexture.getTimestamp(), getFrameTimeNanos(), getFrameIntervalNanos(),
+                newerFrameQueued)) {
+            case FramePacer.DROP:
+                // The newer frame already requested a render
+                framePending = false;
+                return false;
+            case FramePacer.WAIT:
+                requestRender();
+                return false;
+            default:
+                framePending = false;
+                presentationTimeNanos = framePacer.getPresentationTimeNanos();
+                return true;
+        }
+    }
+
+    @Override
+    protected long getPresentationTimeNanos() {
+        return presentationTimeNanos;
+    }
+
+    /**
+     * @return false to draw every video frame as soon as it is latched, with its timestamp as presentation time,
+     * instead of pacing the frames to the display, e.g. when rendering offline
+     */
+    protected boolean isPaced() {
         return true;
     }
 
+    /**
+     * @return number of video frames latched so far, only valid on the rendering thread
+     */
+    protected long getLatchedFrameCount() {
+        return latchedFrameCount;
+    }
+
+    /**
+     * @return number of video frames which arrived too late and were not drawn
+     */
+    public int getDroppedFrameCount() {
+        return framePacer.getDroppedFrames();
+    }
+
+    /**
+     * @return number of vsyncs on which a video frame was shown again because the next one was not due yet
+     */
+    public int getRepeatedFrameCount() {
+        return framePacer.getRepeatedFrames();
+    }
+
+    public int getPresentedFrameCount() {
+        return framePacer.getPresentedFrames();
+    }
+
     protected void resetAdjustedViewportRect() {
         float videoAR = (float) videoWidth / videoHeight;
         float screenAR = (float) recordingVideoWidth / recordingVideoHeight;
@@ -362,7 +512,7 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
 
     @Override
     protected void initGLComponents() {
-        setupVertexBuffer();
+        quad = eglCore.getQuadGeometry();
         setupTexture(ctx);
         loadShaders();
         Matrix.orthoM(projectionMatrix, 0, -1, 1, -1, 1, -1, 1);
@@ -371,10 +521,17 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
 
     @Override
     protected void deinitGLComponents() {
+        snapshotter.release(eglCore.getFramebufferPool());
+        GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, textures[0]);
         GLES20.glDeleteTextures(1, textures, 0);
-        GLES20.glDeleteProgram(shaderProgram);
-        GLES20.glDeleteProgram(shaderProgram2D);
-        releaseFramebuffer();
+        releaseOffscreenFramebuffer();
+        synchronized (this) {
+            releaseReplacedFilterChains();
+            if (filterChain != null) {
+                filterChain.release();
+            }
+        }
+        GlResourceTracker.untrackSurface(videoTexture);
         videoTexture.release();
         videoTexture.setOnFrameAvailableListener(null);
     }
@@ -383,8 +540,25 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         this.videoWidth = width;
         this.videoHeight = height;
         adjustViewport = true;
+        invalidate();
+    }
+
+    /**
+     * Redraws the current video frame on the next frame even if the video did not produce a new one, e.g. because the
+     * output size or an overlay changed.
+     */
+    public void invalidate() {
+        markContentInvalidated();
+        requestRender();
+    }
 
+    protected synchronized void markContentInvalidated() {
+        contentInvalidated = true;
+    }
 
+    @Override
+    protected void onSurfaceReplaced() {
+        markContentInvalidated();
     }
 
     public void checkGlError(String op) {
@@ -403,6 +577,7 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         synchronized (this) {
             frameAvailable = true;
         }
+        requestRender();
     }
 
     public void setSize(int surfaceWidth, int surfaceHeight, int videoWidth, int videoHeight) {
@@ -411,76 +586,41 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         setVideoSize(videoWidth, videoHeight);
     }
 
+    /**
+     * Gives the offscreen framebuffer back to the pool of the context, has to be called on the rendering thread.
+     */
     public void releaseFramebuffer() {
-        if (offScreenTextures[0] > 0) {
-            GLES20.glDeleteTextures(1, offScreenTextures, 0);
-            offScreenTextures[0] = -1;
-        }
-        if (renderBuffers[0] > 0) {
-            GLES20.glDeleteRenderbuffers(1, renderBuffers, 0);
-            renderBuffers[0] = -1;
+        releaseOffscreenFramebuffer();
+    }
 
+    private void releaseOffscreenFramebuffer() {
+        if (offscreenFramebuffer != null) {
+            eglCore.getFramebufferPool().release(offscreenFramebuffer);
+            offscreenFramebuffer = null;
         }
-        if (frameBuffers[0] > 0) {
-            GLES20.glDeleteFramebuffers(1, frameBuffers, 0);
-            frameBuffers[0] = -1;
+    }
+
+    /**
+     * Makes sure the offscreen framebuffer matches the current video size, it is taken from the pool of the context
+     * and given back when the size changes.
+     *
+     * @return false if the video size is not known yet
+     */
+    private boolean prepareOffscreenFramebuffer() {
+        if (offscreenFramebuffer != null && !offscreenFramebuffer.matches(videoWidth, videoHeight,
+                FramebufferPool.FORMAT_RGBA_DEPTH)) {
+            releaseOffscreenFramebuffer();
         }
-        frameBufferPrepared = false;
-    }
-
-    private void prepareFramebuffer(int width, int height) {
-        if (width == 0 || height == 0) return;
-        // Create a texture object and bind it.  This will be the color buffer.
-        GLES20.glGenTextures(1, offScreenTextures, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offScreenTextures[0]);
-        checkGlError("genTexture");
-        // Create texture storage.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        checkGlError("texImage");
-
-        // Set parameters.  We're probably using non-power-of-two dimensions, so
-        // some values may not be available for use.
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
-                GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
-                GLES20.GL_CLAMP_TO_EDGE);
-
-        // Create framebuffer object and bind it.
-        GLES20.glGenFramebuffers(1, frameBuffers, 0);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
-        checkGlError("genFramebuffer");
-
-        // Create a depth buffer and bind it.
-        GLES20.glGenRenderbuffers(1, renderBuffers, 0);
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        checkGlError("genRenderbuffer");
-
-        // Allocate storage for the depth buffer.
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
-                width, height);
-        checkGlError("renderbufferStorage");
-
-        // Attach the depth buffer and the texture (color buffer) to the framebuffer object.
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER, renderBuffers[0]);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, offScreenTextures[0], 0);
-
-        // See if GLES is happy with all this.
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        if (offscreenFramebuffer == null) {
+            if (videoWidth == 0 || videoHeight == 0) {
+                return false;
+            }
+            offscreenFramebuffer = eglCore.getFramebufferPool().acquire(videoWidth, videoHeight,
+                    FramebufferPool.FORMAT_RGBA_DEPTH);
+            checkGlError("Offscreen framebuffer");
         }
-
-        // Switch back to the default framebuffer.
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
-        frameBufferPrepared = true;
+        offscreenFramebuffer.setFilter(GLES20.GL_NEAREST);
+        return true;
     }
 
     public OnVideoTextureAvailableListener getOnVideoTextureAvailableListener() {
@@ -498,4 +638,30 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
     public void setOnRenderFrameListener(OnRenderFrameListener onRenderFrameListener) {
         this.onRenderFrameListener = onRenderFrameListener;
     }
+
+    public synchronized FilterChain getFilterChain() {
+        return filterChain;
+    }
+
+    /**
+     * Applies the filters of the chain to the video, null shows the video unfiltered. While the chain has filters
+     * {@link OnRenderFrameListener#onPreRender()} is not called, as the video is not drawn by this renderer's program.
+     */
+    public void setFilterChain(FilterChain filterChain) {
+        synchronized (this) {
+            if (this.filterChain == filterChain) {
+                return;
+            }
+            if (this.filterChain != null) {
+                this.filterChain.setRenderer(null);
+                releasedFilterChains.add(this.filterChain);
+            }
+            this.filterChain = filterChain;
+            releasedFilterChains.remove(filterChain);
+            if (filterChain != null) {
+                filterChain.setRenderer(this);
+            }
+        }
+        invalidate();
+    }
 }
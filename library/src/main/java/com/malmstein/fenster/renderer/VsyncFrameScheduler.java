@@ -0,0 +1,166 @@
+package com.malmstein.fenster.renderer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+/**
+ * Frame scheduler driven by {@link Choreographer} vsync callbacks.
+ *
+ * Choreographer has to live on a looper thread while the rendering thread is a plain thread, so frame callbacks are
+ * posted on a looper shared by all vsync schedulers and the rendering thread waits for them. A callback is only
+ * requested while the rendering thread is waiting, so an idle loop does not receive vsync at all.
+ *
+ * The frame interval is measured from consecutive vsync timestamps, which makes the scheduler follow 90 Hz and 120 Hz
+ * panels as well as runtime refresh rate switches. The vsync timeout runs on a {@link FrameScheduler.Clock}, and tests
+ * replace Choreographer with a {@link VsyncSource} delivering vsync themselves.
+ */
+public class VsyncFrameScheduler implements FrameScheduler, Choreographer.FrameCallback {
+
+    /**
+     * Requests a single vsync callback, {@link Choreographer} outside of tests.
+     */
+    interface VsyncSource {
+        void requestVsync(Choreographer.FrameCallback callback);
+
+        void cancelVsync(Choreographer.FrameCallback callback);
+    }
+
+    /**
+     * Fallback in case vsync stops being delivered, e.g. while the display is off
+     */
+    static final long VSYNC_TIMEOUT_NANOS = 100 * 1000000L;
+    /**
+     * Number of vsync deltas used to estimate the frame interval
+     */
+    private static final int INTERVAL_WINDOW = 16;
+
+    private static HandlerThread vsyncThread;
+    private static Handler vsyncHandler;
+
+    private final Object lock = new Object();
+    private final Clock clock;
+    private final VsyncSource vsyncSource;
+
+    private boolean frameArrived;
+    private long lastVsyncNanos;
+    private long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+    private final long[] recentIntervals = new long[INTERVAL_WINDOW];
+    private int recentIntervalIndex;
+
+    public VsyncFrameScheduler() {
+        this(SYSTEM_CLOCK, new ChoreographerVsyncSource());
+    }
+
+    VsyncFrameScheduler(Clock clock, VsyncSource vsyncSource) {
+        this.clock = clock;
+        this.vsyncSource = vsyncSource;
+    }
+
+    private static synchronized Handler getVsyncHandler() {
+        if (vsyncHandler == null) {
+            vsyncThread = new HandlerThread("FensterVsync");
+            vsyncThread.start();
+            vsyncHandler = new Handler(vsyncThread.getLooper());
+        }
+        return vsyncHandler;
+    }
+
+    @Override
+    public long awaitNextFrame() throws InterruptedException {
+        synchronized (lock) {
+            frameArrived = false;
+            vsyncSource.requestVsync(this);
+            long deadline = clock.nanoTime() + VSYNC_TIMEOUT_NANOS;
+            while (!frameArrived) {
+                long now = clock.nanoTime();
+                long remaining = deadline - now;
+                if (remaining <= 0) {
+                    return now;
+                }
+                lock.wait(Math.max(remaining / 1000000L, 1));
+            }
+            return lastVsyncNanos;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (lock) {
+            onVsync(frameTimeNanos);
+            frameArrived = true;
+            lock.notifyAll();
+        }
+    }
+
+    void onVsync(long frameTimeNanos) {
+        if (lastVsyncNanos != 0 && frameTimeNanos > lastVsyncNanos) {
+            recentIntervals[recentIntervalIndex] = frameTimeNanos - lastVsyncNanos;
+            recentIntervalIndex = (recentIntervalIndex + 1) % recentIntervals.length;
+            // Deltas spanning skipped vsyncs (idle loop, slow frame) are multiples of the refresh interval, so the
+            // smallest recent delta is the best estimate and follows refresh rate switches within a few frames
+            long min = Long.MAX_VALUE;
+            for (long interval : recentIntervals) {
+                if (interval > 0 && interval < min) {
+                    min = interval;
+                }
+            }
+            frameIntervalNanos = min;
+        }
+        lastVsyncNanos = frameTimeNanos;
+    }
+
+    @Override
+    public long getFrameIntervalNanos() {
+        synchronized (lock) {
+            return frameIntervalNanos;
+        }
+    }
+
+    @Override
+    public void release() {
+        vsyncSource.cancelVsync(this);
+    }
+
+    /**
+     * Posts the vsync requests to {@link Choreographer} on the shared looper thread.
+     */
+    private static final class ChoreographerVsyncSource implements VsyncSource {
+
+        private Choreographer.FrameCallback pendingCallback;
+        private final Runnable postFrameCallback = new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.FrameCallback callback;
+                synchronized (ChoreographerVsyncSource.this) {
+                    callback = pendingCallback;
+                }
+                if (callback != null) {
+                    Choreographer.getInstance().postFrameCallback(callback);
+                }
+            }
+        };
+
+        @Override
+        public void requestVsync(Choreographer.FrameCallback callback) {
+            synchronized (this) {
+                pendingCallback = callback;
+            }
+            getVsyncHandler().post(postFrameCallback);
+        }
+
+        @Override
+        public void cancelVsync(final Choreographer.FrameCallback callback) {
+            synchronized (this) {
+                pendingCallback = null;
+            }
+            getVsyncHandler().removeCallbacks(postFrameCallback);
+            getVsyncHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().removeFrameCallback(callback);
+                }
+            });
+        }
+    }
+}
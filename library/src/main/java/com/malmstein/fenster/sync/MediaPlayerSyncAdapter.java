@@ -0,0 +1,108 @@
+package com.malmstein.fenster.sync;
+
+import android.annotation.TargetApi;
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * {@link MediaPlayer} synchronized by a {@link PlaybackSyncEngine}.
+ *
+ * The speed is changed through {@link PlaybackParams}, only available from API 23 on. From API 26 on seeks go to the
+ * exact frame instead of the previous key frame, otherwise a resync could land seconds away from the master position.
+ */
+public class MediaPlayerSyncAdapter implements PlaybackSyncEngine.Player {
+
+    private static final String TAG = "MediaPlayerSyncAdapter";
+    // Build.VERSION_CODES.O and MediaPlayer.SEEK_CLOSEST, newer than the SDK the library is built against
+    private static final int API_SEEK_MODE = 26;
+    private static final int SEEK_CLOSEST = 3;
+
+    private static Method seekToWithMode;
+    private static boolean seekToWithModeLookedUp;
+
+    private final MediaPlayer mediaPlayer;
+
+    public MediaPlayerSyncAdapter(MediaPlayer mediaPlayer) {
+        this.mediaPlayer = mediaPlayer;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return mediaPlayer.getDuration();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mediaPlayer.isPlaying();
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        Method method = getSeekToWithMode();
+        if (method != null) {
+            try {
+                method.invoke(mediaPlayer, (long) positionMs, SEEK_CLOSEST);
+                return;
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Log.w(TAG, "Exact seek failed", e);
+            }
+        }
+        mediaPlayer.seekTo(positionMs);
+    }
+
+    /**
+     * @return MediaPlayer.seekTo(long, int), or null below API 26
+     */
+    private static synchronized Method getSeekToWithMode() {
+        if (!seekToWithModeLookedUp) {
+            seekToWithModeLookedUp = true;
+            if (Build.VERSION.SDK_INT >= API_SEEK_MODE) {
+                try {
+                    seekToWithMode = MediaPlayer.class.getMethod("seekTo", long.class, int.class);
+                } catch (NoSuchMethodException e) {
+                    seekToWithMode = null;
+                }
+            }
+        }
+        return seekToWithMode;
+    }
+
+    @Override
+    public boolean setSpeed(float speed) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        return setSpeedApi23(speed);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean setSpeedApi23(float speed) {
+        try {
+            mediaPlayer.setPlaybackParams(mediaPlayer.getPlaybackParams().setSpeed(speed));
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "Cannot change the speed to " + speed, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.malmstein.fenster.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps several players in step with a master clock.
+ *
+ * All players are started together at the same position, after which the master position advances with the clock.
+ * Each call to {@link #correct()} measures how far every player is from the master position: small drifts are
+ * corrected by playing slightly faster or slower until the player has caught up, large ones by seeking to the master
+ * position. Players which cannot change their speed are only corrected by seeking.
+ *
+ * The master position keeps growing with the clock. Looping players, see {@link #setLooping(boolean)}, are compared to
+ * the master position wrapped around their own duration instead, so that they stay in sync across the loop point.
+ *
+ * The engine does not depend on Android and does not schedule anything itself, the owner calls {@link #correct()}
+ * periodically, e.g. every {@link #DEFAULT_CORRECTION_INTERVAL_MS}. Not thread safe.
+ */
+public class PlaybackSyncEngine {
+
+    public interface Player {
+        /**
+         * @return current position in milliseconds
+         */
+        int getCurrentPosition();
+
+        /**
+         * @return duration in milliseconds, or a value below 1 if unknown
+         */
+        int getDuration();
+
+        boolean isPlaying();
+
+        void start();
+
+        void pause();
+
+        void seekTo(int positionMs);
+
+        /**
+         * @param speed playback speed, 1 for normal speed
+         * @return false if the player cannot change its speed
+         */
+        boolean setSpeed(float speed);
+    }
+
+    public interface Clock {
+        /**
+         * @return monotonic time in milliseconds
+         */
+        long currentTimeMs();
+    }
+
+    public static final long DEFAULT_CORRECTION_INTERVAL_MS = 500;
+
+    // Drifts below this are not noticeable and left alone
+    static final int TOLERANCE_MS = 30;
+    // Drifts above this are not worth catching up through speed changes
+    static final int RESYNC_THRESHOLD_MS = 400;
+    // Without speed changes drifts are only corrected by seeking, which is visible, so a larger drift is accepted
+    static final int SEEK_ONLY_THRESHOLD_MS = 120;
+    // A drift is caught up over this time, bounded by MAX_SPEED_ADJUSTMENT
+    static final int CATCH_UP_MS = 2000;
+    static final float MAX_SPEED_ADJUSTMENT = 0.05f;
+    // Speed changes smaller than this are not applied, changing the speed costs the player some work
+    static final float MIN_SPEED_CHANGE = 0.005f;
+    // Positions reported right after a seek are not reliable
+    static final int SEEK_SETTLE_MS = 1000;
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMs() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    private final Clock clock;
+    private final List<SyncedPlayer> players = new ArrayList<>();
+    private boolean running;
+    private boolean looping;
+    private long masterStartTimeMs;
+    private int masterStartPositionMs;
+
+    public PlaybackSyncEngine() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public PlaybackSyncEngine(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Replaces the synchronized players, the previous ones are left as they are.
+     */
+    public void setPlayers(List<? extends Player> newPlayers) {
+        players.clear();
+        for (Player player : newPlayers) {
+            players.add(new SyncedPlayer(player));
+        }
+    }
+
+    /**
+     * @param looping true if the players start over when they reach their end
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * Seeks every player to the position and starts all of them, the master clock starts at the same time.
+     */
+    public void start(int positionMs) {
+        for (SyncedPlayer synced : players) {
+            synced.seekTo(synced.targetPosition(positionMs, looping), clock.currentTimeMs());
+        }
+        for (SyncedPlayer synced : players) {
+            synced.player.start();
+        }
+        masterStartPositionMs = positionMs;
+        masterStartTimeMs = clock.currentTimeMs();
+        running = true;
+    }
+
+    /**
+     * Pauses every player and stops the master clock.
+     */
+    public void pause() {
+        if (!running) {
+            return;
+        }
+        masterStartPositionMs = getMasterPosition();
+        running = false;
+        for (SyncedPlayer synced : players) {
+            // Before pausing, changing the speed of a paused player may start it again
+            synced.resetSpeed();
+            synced.player.pause();
+        }
+    }
+
+    /**
+     * Starts every player again from where the master clock was paused.
+     */
+    public void resume() {
+        if (running) {
+            return;
+        }
+        start(masterStartPositionMs);
+    }
+
+    /**
+     * Stops correcting, the players keep playing at normal speed.
+     */
+    public void stop() {
+        if (running) {
+            masterStartPositionMs = getMasterPosition();
+        }
+        running = false;
+        for (SyncedPlayer synced : players) {
+            synced.resetSpeed();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return position all players should be at, in milliseconds, before wrapping around the duration of looping
+     * players
+     */
+    public int getMasterPosition() {
+        if (!running) {
+            return masterStartPositionMs;
+        }
+        return (int) (masterStartPositionMs + clock.currentTimeMs() - masterStartTimeMs);
+    }
+
+    /**
+     * Measures the drift of every player and corrects it. Players which are not playing, e.g. buffering or completed,
+     * are skipped.
+     */
+    public void correct() {
+        if (!running) {
+            return;
+        }
+        long now = clock.currentTimeMs();
+        int masterPosition = getMasterPosition();
+        for (SyncedPlayer synced : players) {
+            if (!synced.player.isPlaying() || now < synced.settledAtMs) {
+                continue;
+            }
+            int target = synced.targetPosition(masterPosition, looping);
+            synced.correct(synced.drift(target, looping), target, now);
+        }
+    }
+
+    /**
+     * @return speed catching up with a drift over {@link #CATCH_UP_MS}, within {@link #MAX_SPEED_ADJUSTMENT} of normal
+     * speed
+     */
+    static float catchUpSpeed(int drift) {
+        float adjustment = -drift / (float) CATCH_UP_MS;
+        return 1f + Math.max(-MAX_SPEED_ADJUSTMENT, Math.min(MAX_SPEED_ADJUSTMENT, adjustment));
+    }
+
+    private static final class SyncedPlayer {
+        final Player player;
+        float speed = 1f;
+        boolean speedSupported = true;
+        long settledAtMs;
+
+        SyncedPlayer(Player player) {
+            this.player = player;
+        }
+
+        /**
+         * @return position the player should be at for a master position
+         */
+        int targetPosition(int masterPosition, boolean looping) {
+            int duration = player.getDuration();
+            if (looping && duration > 0) {
+                return masterPosition % duration;
+            }
+            return masterPosition;
+        }
+
+        /**
+         * @return distance from the target position, positive when the player is ahead. A looping player is measured
+         * the short way around the loop point, e.g. 100 ms ahead right after wrapping before the target wraps too.
+         */
+        int drift(int targetPosition, boolean looping) {
+            int drift = player.getCurrentPosition() - targetPosition;
+            int duration = player.getDuration();
+            if (looping && duration > 0) {
+                if (drift > duration / 2) {
+                    drift -= duration;
+                } else if (drift < -duration / 2) {
+                    drift += duration;
+                }
+            }
+            return drift;
+        }
+
+        void correct(int drift, int targetPosition, long now) {
+            int absoluteDrift = Math.abs(drift);
+            if (absoluteDrift >= RESYNC_THRESHOLD_MS || (!speedSupported && absoluteDrift >= SEEK_ONLY_THRESHOLD_MS)) {
+                seekTo(targetPosition, now);
+                setSpeed(1f);
+            } else if (absoluteDrift > TOLERANCE_MS) {
+                setSpeed(catchUpSpeed(drift));
+            } else {
+                setSpeed(1f);
+            }
+        }
+
+        void seekTo(int positionMs, long now) {
+            player.seekTo(positionMs);
+            settledAtMs = now + SEEK_SETTLE_MS;
+        }
+
+        void setSpeed(float newSpeed) {
+            // Going back to normal speed is always applied, so that no player keeps a small offset
+            if (!speedSupported || newSpeed == speed
+                    || (newSpeed != 1f && Math.abs(newSpeed - speed) < MIN_SPEED_CHANGE)) {
+                return;
+            }
+            if (player.setSpeed(newSpeed)) {
+                speed = newSpeed;
+            } else {
+                speedSupported = false;
+            }
+        }
+
+        void resetSpeed() {
+            if (speedSupported && speed != 1f && player.setSpeed(1f)) {
+                speed = 1f;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.malmstein.fenster.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * A preview frame, as a part of a sprite sheet built by {@link ThumbnailEngine}. Reused by the caller, see
+ * {@link ThumbnailEngine#getThumbnail(long, Thumbnail)}.
+ */
+public class Thumbnail {
+
+    private Bitmap sheet;
+    private final Rect bounds = new Rect();
+    private long timeMs;
+
+    void set(Bitmap sheet, int left, int top, int width, int height, long timeMs) {
+        this.sheet = sheet;
+        this.bounds.set(left, top, left + width, top + height);
+        this.timeMs = timeMs;
+    }
+
+    /**
+     * @return the sprite sheet holding the frame, shared with the cache of the engine and not to be modified
+     */
+    public Bitmap getSheet() {
+        return sheet;
+    }
+
+    /**
+     * @return part of the sheet holding the frame
+     */
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return time of the frame in the video, the nearest frame at or before the requested position
+     */
+    public long getTimeMs() {
+        return timeMs;
+    }
+}
@@ -0,0 +1,139 @@
+package com.malmstein.fenster.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sprite sheets stored as JPEG files in a directory, the least recently used ones are deleted once the directory
+ * grows over its budget. Only used on the worker thread of {@link ThumbnailEngine}.
+ */
+class ThumbnailDiskCache {
+
+    private static final String TAG = "ThumbnailDiskCache";
+    private static final String EXTENSION = ".jpg";
+    private static final int JPEG_QUALITY = 80;
+
+    private final File directory;
+    private final long maxBytes;
+    private long sizeBytes = -1;
+
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached sheet, or null if it is not on disk or cannot be decoded
+     */
+    Bitmap get(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            remove(file);
+            return null;
+        }
+        // Marks it as recently used
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    void put(String key, Bitmap sheet) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return;
+        }
+        File file = fileFor(key);
+        File temporary = new File(directory, key + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temporary);
+            sheet.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            store(key, temporary);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file, e);
+            temporary.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a file written for a key into the cache, in place of the previous one, and trims the cache to its budget.
+     *
+     * @param temporary file in the cache directory holding the new content
+     */
+    void store(String key, File temporary) {
+        File file = fileFor(key);
+        remove(file);
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            return;
+        }
+        if (sizeBytes >= 0) {
+            sizeBytes += file.length();
+        }
+        trim();
+    }
+
+    private void trim() {
+        if (sizeBytes < 0) {
+            sizeBytes = 0;
+            for (File file : listFiles()) {
+                sizeBytes += file.length();
+            }
+        }
+        if (sizeBytes <= maxBytes) {
+            return;
+        }
+        File[] files = listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && sizeBytes > maxBytes; i++) {
+            remove(files[i]);
+        }
+    }
+
+    private void remove(File file) {
+        long length = file.length();
+        if (file.delete() && sizeBytes >= 0) {
+            sizeBytes -= length;
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        return files;
+    }
+
+    File fileFor(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+}
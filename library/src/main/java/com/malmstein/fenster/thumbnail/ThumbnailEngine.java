@@ -0,0 +1,441 @@
+package com.malmstein.fenster.thumbnail;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Preview frames of a video for scrubbing, so that seeking does not have to wait for the player.
+ *
+ * Frames are taken at fixed intervals with {@link MediaMetadataRetriever}, from the key frame closest to each position
+ * since those do not need to be decoded from the previous ones, and drawn downscaled into sprite sheets of
+ * {@value #COLUMNS}x{@value #ROWS} frames. Sheets are built on a background thread when first needed, kept in a memory
+ * cache bounded to a share of the heap and stored as JPEG files in the cache directory of the app, so that the same
+ * video does not have to be decoded again.
+ *
+ * Everything but the background work happens on the main thread.
+ */
+public class ThumbnailEngine {
+
+    public interface Listener {
+        /**
+         * Called once a sheet has been loaded, thumbnails which were not available before may be now.
+         */
+        void onThumbnailsAvailable();
+    }
+
+    public static final long DEFAULT_INTERVAL_MS = 5000;
+    public static final int DEFAULT_TILE_WIDTH = 160;
+
+    private static final String TAG = "ThumbnailEngine";
+    static final int COLUMNS = 5;
+    static final int ROWS = 5;
+    static final int TILES_PER_SHEET = COLUMNS * ROWS;
+    // Older requests are dropped while scrubbing quickly, the latest position matters most
+    private static final int MAX_QUEUED_SHEETS = 3;
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 16;
+    private static final long DISK_CACHE_BYTES = 20 * 1024 * 1024;
+    private static final String DISK_CACHE_DIRECTORY = "fenster_thumbnails";
+
+    private final Context context;
+    private final long intervalMs;
+    private final int tileWidth;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ThumbnailDiskCache diskCache;
+    private final ExecutorService executor;
+
+    // Guarded by requests
+    private final LinkedList<SheetRequest> requests = new LinkedList<>();
+    private final Set<String> pending = new HashSet<>();
+    private final Set<String> unavailable = new HashSet<>();
+    private Source source;
+
+    private Listener listener;
+
+    // Only accessed on the background thread
+    private MediaMetadataRetriever retriever;
+    private Source retrieverSource;
+    private long durationMs;
+    private int tileHeight;
+
+    public ThumbnailEngine(Context context) {
+        this(context, DEFAULT_INTERVAL_MS, DEFAULT_TILE_WIDTH);
+    }
+
+    /**
+     * @param intervalMs time between two thumbnails
+     * @param tileWidth  width of a thumbnail in pixels, the height follows the aspect ratio of the video
+     */
+    public ThumbnailEngine(Context context, long intervalMs, int tileWidth) {
+        if (intervalMs <= 0 || tileWidth <= 0) {
+            throw new IllegalArgumentException("Invalid interval " + intervalMs + " or tile width " + tileWidth);
+        }
+        this.context = context.getApplicationContext();
+        this.intervalMs = intervalMs;
+        this.tileWidth = tileWidth;
+        int memoryCacheBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap sheet) {
+                return sheet.getByteCount();
+            }
+        };
+        diskCache = new ThumbnailDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY), DISK_CACHE_BYTES);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "FensterThumbnails");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the video to take thumbnails from and starts building its first sheet.
+     *
+     * @param headers HTTP headers sent along with requests for network videos, may be null
+     */
+    public void setDataSource(Uri uri, Map<String, String> headers) {
+        Source newSource = new Source(uri, headers);
+        synchronized (requests) {
+            requests.clear();
+            pending.clear();
+            unavailable.clear();
+            source = newSource;
+        }
+        request(newSource, 0);
+    }
+
+    /**
+     * Looks up the thumbnail of a position. If its sheet is not in memory it is loaded in the background and
+     * {@link Listener#onThumbnailsAvailable()} is called once it is.
+     *
+     * @param thumbnail filled with the thumbnail if it is available
+     * @return true if the thumbnail is available
+     */
+    public boolean getThumbnail(long positionMs, Thumbnail thumbnail) {
+        Source current = getSource();
+        if (current == null) {
+            return false;
+        }
+        long index = thumbnailIndexOf(positionMs, intervalMs);
+        int sheetIndex = sheetIndexOf(index);
+        int tile = tileOf(index);
+        Bitmap sheet = memoryCache.get(keyOf(current, sheetIndex));
+        if (sheet == null) {
+            request(current, sheetIndex);
+            return false;
+        }
+        int width = sheet.getWidth() / COLUMNS;
+        int height = sheet.getHeight() / ROWS;
+        thumbnail.set(sheet, tileLeft(tile, width), tileTop(tile, height), width, height, index * intervalMs);
+        if (isInLastRow(tile)) {
+            // Scrubbing is likely to reach the next sheet soon
+            request(current, sheetIndex + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Starts loading the sheet holding a position, e.g. when scrubbing starts.
+     */
+    public void prefetch(long positionMs) {
+        Source current = getSource();
+        if (current != null) {
+            request(current, sheetIndexOf(thumbnailIndexOf(positionMs, intervalMs)));
+        }
+    }
+
+    /**
+     * Stops the background work and drops the memory cache, the engine cannot be used anymore. Sheets stay on disk.
+     */
+    public void release() {
+        synchronized (requests) {
+            requests.clear();
+            pending.clear();
+            source = null;
+        }
+        memoryCache.evictAll();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeRetriever();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private Source getSource() {
+        synchronized (requests) {
+            return source;
+        }
+    }
+
+    private void request(Source requestSource, int sheetIndex) {
+        String key = keyOf(requestSource, sheetIndex);
+        if (memoryCache.get(key) != null) {
+            return;
+        }
+        synchronized (requests) {
+            if (requestSource != source || pending.contains(key) || unavailable.contains(key)) {
+                return;
+            }
+            pending.add(key);
+            requests.addFirst(new SheetRequest(requestSource, sheetIndex, key));
+            if (requests.size() > MAX_QUEUED_SHEETS) {
+                pending.remove(requests.removeLast().key);
+            }
+        }
+        executor.execute(loadNextSheet);
+    }
+
+    private final Runnable loadNextSheet = new Runnable() {
+        @Override
+        public void run() {
+            SheetRequest request;
+            synchronized (requests) {
+                // Latest first
+                request = requests.poll();
+            }
+            if (request == null) {
+                return;
+            }
+            boolean loaded = loadSheet(request);
+            synchronized (requests) {
+                pending.remove(request.key);
+                if (!loaded && request.source == source) {
+                    unavailable.add(request.key);
+                }
+            }
+            if (loaded) {
+                mainHandler.post(notifyAvailable);
+            }
+        }
+    };
+
+    private final Runnable notifyAvailable = new Runnable() {
+        @Override
+        public void run() {
+            if (listener != null) {
+                listener.onThumbnailsAvailable();
+            }
+        }
+    };
+
+    private boolean loadSheet(SheetRequest request) {
+        Bitmap sheet = diskCache.get(request.key);
+        if (sheet == null) {
+            sheet = buildSheet(request);
+            if (sheet == null) {
+                return false;
+            }
+            diskCache.put(request.key, sheet);
+        }
+        memoryCache.put(request.key, sheet);
+        return true;
+    }
+
+    private Bitmap buildSheet(SheetRequest request) {
+        if (!openRetriever(request.source)) {
+            return null;
+        }
+        long firstMs = sheetStartMs(request.sheetIndex, intervalMs);
+        if (durationMs > 0 && firstMs > durationMs) {
+            return null;
+        }
+        Bitmap sheet = Bitmap.createBitmap(COLUMNS * tileWidth, ROWS * tileHeight, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(sheet);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect tileBounds = new Rect();
+        for (int tile = 0; tile < TILES_PER_SHEET; tile++) {
+            long timeMs = firstMs + tile * intervalMs;
+            if (durationMs > 0 && timeMs > durationMs) {
+                break;
+            }
+            if (request.source != getSource()) {
+                // Not needed anymore
+                return null;
+            }
+            Bitmap frame = retriever.getFrameAtTime(timeMs * 1000, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame == null) {
+                continue;
+            }
+            int left = tileLeft(tile, tileWidth);
+            int top = tileTop(tile, tileHeight);
+            tileBounds.set(left, top, left + tileWidth, top + tileHeight);
+            canvas.drawBitmap(frame, null, tileBounds, paint);
+            frame.recycle();
+        }
+        return sheet;
+    }
+
+    /**
+     * @return index of the thumbnail at or before a position, counted from the start of the video
+     */
+    static long thumbnailIndexOf(long positionMs, long intervalMs) {
+        return Math.max(positionMs, 0) / intervalMs;
+    }
+
+    static int sheetIndexOf(long thumbnailIndex) {
+        return (int) (thumbnailIndex / TILES_PER_SHEET);
+    }
+
+    /**
+     * @return position of a thumbnail in its sheet, row by row
+     */
+    static int tileOf(long thumbnailIndex) {
+        return (int) (thumbnailIndex % TILES_PER_SHEET);
+    }
+
+    static int tileLeft(int tile, int tileWidth) {
+        return (tile % COLUMNS) * tileWidth;
+    }
+
+    static int tileTop(int tile, int tileHeight) {
+        return (tile / COLUMNS) * tileHeight;
+    }
+
+    static boolean isInLastRow(int tile) {
+        return tile >= TILES_PER_SHEET - COLUMNS;
+    }
+
+    /**
+     * @return time of the first thumbnail of a sheet
+     */
+    static long sheetStartMs(int sheetIndex, long intervalMs) {
+        return (long) sheetIndex * TILES_PER_SHEET * intervalMs;
+    }
+
+    private boolean openRetriever(Source retrieverSource) {
+        if (this.retrieverSource == retrieverSource) {
+            return retriever != null;
+        }
+        closeRetriever();
+        this.retrieverSource = retrieverSource;
+        retriever = new MediaMetadataRetriever();
+        try {
+            String scheme = retrieverSource.uri.getScheme();
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                retriever.setDataSource(retrieverSource.uri.toString(), retrieverSource.headers);
+            } else {
+                retriever.setDataSource(context, retrieverSource.uri);
+            }
+            durationMs = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            long width = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            long height = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            if (isRotatedSideways()) {
+                long swap = width;
+                width = height;
+                height = swap;
+            }
+            tileHeight = width > 0 && height > 0 ? (int) Math.max(1, tileWidth * height / width) : tileWidth * 9 / 16;
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot open " + retrieverSource.uri, e);
+            closeRetriever();
+            return false;
+        }
+    }
+
+    private boolean isRotatedSideways() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return false;
+        }
+        long rotation = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        return rotation == 90 || rotation == 270;
+    }
+
+    private void closeRetriever() {
+        if (retriever != null) {
+            retriever.release();
+            retriever = null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String keyOf(Source keySource, int sheetIndex) {
+        return keySource.hash + "_" + intervalMs + "_" + tileWidth + "_" + sheetIndex;
+    }
+
+    private static final class Source {
+        final Uri uri;
+        final Map<String, String> headers;
+        final String hash;
+
+        Source(Uri uri, Map<String, String> headers) {
+            this.uri = uri;
+            this.headers = headers != null ? headers : new HashMap<String, String>();
+            this.hash = hash(uri.toString());
+        }
+
+        private static String hash(String value) {
+            try {
+                byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+                StringBuilder hex = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+                return Integer.toHexString(value.hashCode());
+            }
+        }
+    }
+
+    private static final class SheetRequest {
+        final Source source;
+        final int sheetIndex;
+        final String key;
+
+        SheetRequest(Source source, int sheetIndex, String key) {
+            this.source = source;
+            this.sheetIndex = sheetIndex;
+            this.key = key;
+        }
+    }
+}
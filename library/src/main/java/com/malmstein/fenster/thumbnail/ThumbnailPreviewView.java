@@ -0,0 +1,58 @@
+package com.malmstein.fenster.thumbnail;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows a {@link Thumbnail} scaled to the size of the view, drawn straight from its sprite sheet.
+ */
+public class ThumbnailPreviewView extends View {
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private Bitmap sheet;
+
+    public ThumbnailPreviewView(Context context) {
+        this(context, null);
+    }
+
+    public ThumbnailPreviewView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public ThumbnailPreviewView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    /**
+     * @param thumbnail frame to show, or null to show nothing but the background
+     */
+    public void setThumbnail(Thumbnail thumbnail) {
+        Bitmap newSheet = thumbnail != null ? thumbnail.getSheet() : null;
+        if (newSheet == sheet && (newSheet == null || source.equals(thumbnail.getBounds()))) {
+            return;
+        }
+        sheet = newSheet;
+        if (newSheet != null) {
+            source.set(thumbnail.getBounds());
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (sheet == null || sheet.isRecycled()) {
+            return;
+        }
+        destination.set(getPaddingLeft(), getPaddingTop(), getWidth() - getPaddingRight(),
+                getHeight() - getPaddingBottom());
+        canvas.drawBitmap(sheet, source, destination, paint);
+    }
+}
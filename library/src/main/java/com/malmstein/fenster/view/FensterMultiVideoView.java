@@ -0,0 +1,1013 @@
+package com.malmstein.fenster.view;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.TypedArray;
+import android.graphics.SurfaceTexture;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.malmstein.fenster.R;
+import com.malmstein.fenster.controller.FensterPlayerController;
+import com.malmstein.fenster.play.FensterVideoStateListener;
+import com.malmstein.fenster.renderer.GlResourceTracker;
+import com.malmstein.fenster.sync.MediaPlayerSyncAdapter;
+import com.malmstein.fenster.sync.PlaybackSyncEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plays several videos at once in a single {@link TextureView}, e.g. a video wall.
+ *
+ * Every video is played by its own {@link MediaPlayer} in a slot addressed by its index. Without a {@link Renderer} the
+ * players decode straight into the view, so a renderer compositing their outputs is needed to show more than one
+ * video. Each slot owns its state and listens to its player itself, so player callbacks reach their slot without any
+ * lookup however many videos are played, and {@link #indexOf(MediaPlayer)} finds the slot of a player in constant time.
+ *
+ * The number of players is given by the playerCount attribute, 2 by default. Videos started with {@link #start()}
+ * play independently and drift apart over time, {@link #startInSync()} starts them together and keeps them in step.
+ */
+public class FensterMultiVideoView extends TextureView {
+
+    public interface Renderer {
+        void onPause();
+
+        boolean isStarted();
+
+        void setVideoSize(int index, int width, int height);
+
+        void setOutputSize(int width, int height);
+
+        void startRenderingToOutput(SurfaceTexture outputSurfaceTexture, Runnable callback);
+
+        /**
+         * @return one input per player, in slot order
+         */
+        SurfaceTexture[] getInputTextures();
+
+    }
+
+    public static final String TAG = "MultiTextureVideoView";
+    public static final int VIDEO_BEGINNING = 0;
+    public static final int DEFAULT_PLAYER_COUNT = 2;
+
+    // all possible internal states
+    private static final int STATE_ERROR = -1;
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+    private static final int STATE_PLAYING = 3;
+    private static final int STATE_PAUSED = 4;
+    private static final int STATE_PLAYBACK_COMPLETED = 5;
+    private static final int MILLIS_IN_SEC = 1000;
+
+    private final Slot[] slots;
+    private final Map<MediaPlayer, Slot> slotsByPlayer = new IdentityHashMap<>();
+
+    private SurfaceTexture mSurfaceTexture;
+    private FensterPlayerController fensterPlayerController;
+    private FensterVideoStateListener onPlayStateListener;
+
+    private AlertDialog errorDialog;
+
+    private Renderer mRenderer;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
+    private boolean mLooping;
+
+    private final Handler syncHandler = new Handler(Looper.getMainLooper());
+    private PlaybackSyncEngine syncEngine;
+    // Waiting for every video to be prepared before starting them together
+    private boolean syncStartPending;
+    private boolean syncPaused;
+
+    public FensterMultiVideoView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public FensterMultiVideoView(Context context, AttributeSet attrs, int defStyle) {
+        this(context, attrs, defStyle, readPlayerCount(context, attrs));
+    }
+
+    /**
+     * @param playerCount number of videos played at once
+     */
+    protected FensterMultiVideoView(Context context, AttributeSet attrs, int defStyle, int playerCount) {
+        super(context, attrs, defStyle);
+        if (playerCount < 1) {
+            throw new IllegalArgumentException("Invalid player count " + playerCount);
+        }
+        slots = new Slot[playerCount];
+        for (int i = 0; i < playerCount; ++i) {
+            slots[i] = new Slot(i);
+        }
+        initVideoView();
+    }
+
+    private static int readPlayerCount(Context context, AttributeSet attrs) {
+        TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.FensterMultiVideoView);
+        if (typedArray == null) {
+            return DEFAULT_PLAYER_COUNT;
+        }
+        try {
+            return typedArray.getInt(R.styleable.FensterMultiVideoView_playerCount, DEFAULT_PLAYER_COUNT);
+        } finally {
+            typedArray.recycle();
+        }
+    }
+
+    @Override
+    public void onInitializeAccessibilityEvent(final AccessibilityEvent event) {
+        super.onInitializeAccessibilityEvent(event);
+        event.setClassName(FensterVideoView.class.getName());
+    }
+
+    @Override
+    public void onInitializeAccessibilityNodeInfo(final AccessibilityNodeInfo info) {
+        super.onInitializeAccessibilityNodeInfo(info);
+        info.setClassName(FensterVideoView.class.getName());
+    }
+
+    public int resolveAdjustedSize(final int desiredSize, final int measureSpec) {
+        return getDefaultSize(desiredSize, measureSpec);
+    }
+
+    private void initVideoView() {
+        setSurfaceTextureListener(mSTListener);
+
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+        requestFocus();
+        for (Slot slot : slots) {
+            slot.videoSizeCalculator.setVideoSize(0, 0);
+            slot.currentState = STATE_IDLE;
+            slot.targetState = STATE_IDLE;
+            slot.onInfoListener = onInfoToPlayStateListener;
+        }
+    }
+
+    /**
+     * @return number of videos played by this view
+     */
+    public int getPlayerCount() {
+        return slots.length;
+    }
+
+    /**
+     * @return index of the slot playing with the passed player, or -1 if it is not one of the players of this view
+     */
+    public int indexOf(MediaPlayer mediaPlayer) {
+        Slot slot = slotsByPlayer.get(mediaPlayer);
+        return slot != null ? slot.index : -1;
+    }
+
+    /**
+     * @return the player of a slot, or null while it has no video open
+     */
+    protected MediaPlayer getMediaPlayer(int index) {
+        return slots[index].player;
+    }
+
+    public void setVideo(int index, final String path) {
+        slots[index].assetFileDescriptor = null;
+        setVideo(index, Uri.parse(path), VIDEO_BEGINNING);
+    }
+
+    public void setVideo(int index, final String url, final int seekInSeconds) {
+        slots[index].assetFileDescriptor = null;
+        setVideo(index, Uri.parse(url), seekInSeconds);
+    }
+
+    public void setVideo(int index, final Uri uri, final int seekInSeconds) {
+        slots[index].assetFileDescriptor = null;
+        setVideoURI(slots[index], uri, null, seekInSeconds);
+    }
+
+    public void setVideo(int index, final AssetFileDescriptor assetFileDescriptor) {
+        slots[index].assetFileDescriptor = assetFileDescriptor;
+        setVideoURI(slots[index], null, null, VIDEO_BEGINNING);
+    }
+
+    public void setVideo(int index, final AssetFileDescriptor assetFileDescriptor, final int seekInSeconds) {
+        slots[index].assetFileDescriptor = assetFileDescriptor;
+        setVideoURI(slots[index], null, null, seekInSeconds);
+    }
+
+    private void setVideoURI(Slot slot, final Uri uri, final Map<String, String> headers, final int seekInSeconds) {
+        Log.d(TAG, "start playing: " + uri);
+        slot.uri = uri;
+        slot.headers = headers;
+        slot.seekWhenPrepared = seekInSeconds * 1000;
+        openVideo(slot);
+        requestLayout();
+        invalidate();
+    }
+
+    public void stopPlayback(int index) {
+        Slot slot = slots[index];
+        if (slot.player != null) {
+            try {
+                slot.player.stop();
+                slot.player.release();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            stopSync();
+            detachPlayer(slot);
+            if (!hasAnyPlayer()) {
+                setKeepScreenOn(false);
+            }
+        }
+        slot.currentState = STATE_IDLE;
+        slot.targetState = STATE_IDLE;
+    }
+
+    private boolean hasAnyPlayer() {
+        for (Slot slot : slots) {
+            if (slot.player != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void openVideoImpl(Slot slot) {
+        try {
+            MediaPlayer player = new MediaPlayer();
+            slot.player = player;
+            slotsByPlayer.put(player, slot);
+
+            if (slot.audioSession != 0) {
+                player.setAudioSessionId(slot.audioSession);
+            } else {
+                slot.audioSession = player.getAudioSessionId();
+            }
+            player.setOnPreparedListener(slot);
+            player.setOnVideoSizeChangedListener(slot);
+            player.setOnCompletionListener(slot);
+            player.setOnErrorListener(slot);
+            player.setOnInfoListener(slot);
+            player.setOnBufferingUpdateListener(slot);
+            slot.bufferPercentage = 0;
+
+            setDataSource(slot);
+
+            releaseVideoSurface(slot);
+            slot.surface = new Surface(mRenderer == null ? mSurfaceTexture : mRenderer.getInputTextures()[slot.index]);
+            GlResourceTracker.trackSurface(GlResourceTracker.SURFACE, slot.surface, this);
+            player.setSurface(slot.surface);
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.setScreenOnWhilePlaying(true);
+            player.prepareAsync();
+            player.setLooping(mLooping);
+
+            // we don't set the target state here either, but preserve the target state that was there before.
+            slot.currentState = STATE_PREPARING;
+        } catch (final IOException | IllegalArgumentException ex) {
+            notifyUnableToOpenContent(slot, ex);
+        }
+    }
+
+    private void openVideo(final Slot slot) {
+        if (slot.uri == null && slot.assetFileDescriptor == null) {
+            return;
+        }
+        if (notReadyForPlaybackJustYetWillTryAgainLater()) {
+            return;
+        }
+        tellTheMusicPlaybackServiceToPause();
+
+        // we shouldn't clear the target state, because somebody might have called start() previously
+        release(slot, false);
+        if (mRenderer != null) {
+            mRenderer.setOutputSize(mSurfaceWidth, mSurfaceHeight);
+            mRenderer.startRenderingToOutput(mSurfaceTexture, new Runnable() {
+                @Override
+                public void run() {
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            openVideoImpl(slot);
+                        }
+                    });
+                }
+            });
+        } else {
+            openVideoImpl(slot);
+        }
+    }
+
+    private void setDataSource(Slot slot) throws IOException {
+        if (slot.assetFileDescriptor != null) {
+            slot.player.setDataSource(
+                    slot.assetFileDescriptor.getFileDescriptor(),
+                    slot.assetFileDescriptor.getStartOffset(),
+                    slot.assetFileDescriptor.getLength()
+            );
+        } else {
+            slot.player.setDataSource(getContext(), slot.uri, slot.headers);
+        }
+    }
+
+    private boolean notReadyForPlaybackJustYetWillTryAgainLater() {
+        return mSurfaceTexture == null;
+    }
+
+    private void tellTheMusicPlaybackServiceToPause() {
+        // these constants need to be published somewhere in the framework.
+        Intent i = new Intent("com.android.music.musicservicecommand");
+        i.putExtra("command", "pause");
+        getContext().sendBroadcast(i);
+    }
+
+    private void notifyUnableToOpenContent(Slot slot, final Exception ex) {
+        Log.w("Unable to open content:" + slot.uri, ex);
+        slot.currentState = STATE_ERROR;
+        slot.targetState = STATE_ERROR;
+        slot.onError(slot.player, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    }
+
+    private boolean pausedAt(int index, final int seekToPosition) {
+        return !isPlaying(index) && (seekToPosition != 0 || getCurrentPosition(index) > 0);
+    }
+
+    private void showStickyMediaController() {
+        if (fensterPlayerController != null) {
+            fensterPlayerController.show(0);
+        }
+    }
+
+    private void hideMediaController() {
+        if (fensterPlayerController != null) {
+            fensterPlayerController.hide();
+        }
+    }
+
+    private void showMediaController() {
+        if (fensterPlayerController != null) {
+            fensterPlayerController.show();
+        }
+    }
+
+    private boolean allowPlayStateToHandle(Slot slot, final int frameworkError) {
+        if (frameworkError == MediaPlayer.MEDIA_ERROR_UNKNOWN || frameworkError == MediaPlayer.MEDIA_ERROR_IO) {
+            Log.e(TAG, "TextureVideoView error. File or network related operation errors.");
+            if (hasPlayStateListener()) {
+                int position = slot.player != null ? slot.player.getCurrentPosition() : 0;
+                return onPlayStateListener.onStopWithExternalError(position / MILLIS_IN_SEC);
+            }
+        }
+        return false;
+    }
+
+    private boolean allowErrorListenerToHandle(Slot slot, final int frameworkError, final int implError) {
+
+        if (slot.onErrorListener != null) {
+            return slot.onErrorListener.onError(slot.player, frameworkError, implError);
+        }
+
+        return false;
+    }
+
+    private void handleError(final int frameworkError) {
+        if (getWindowToken() != null) {
+            if (errorDialog != null && errorDialog.isShowing()) {
+                Log.d(TAG, "Dismissing last error dialog for a new one");
+                errorDialog.dismiss();
+            }
+            getErrorMessage(frameworkError);
+        }
+    }
+
+    private static AlertDialog createErrorDialog(final Context context, final MediaPlayer.OnCompletionListener completionListener, final MediaPlayer mediaPlayer, final int errorMessage) {
+        return new AlertDialog.Builder(context)
+                .setMessage(errorMessage)
+                .setPositiveButton(
+                        android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(final DialogInterface dialog, final int whichButton) {
+                                    /* If we get here, there is no onError listener, so
+                                     * at least inform them that the video is over.
+                                     */
+                                if (completionListener != null) {
+                                    completionListener.onCompletion(mediaPlayer);
+                                }
+                            }
+                        }
+                )
+                .setCancelable(false)
+                .create();
+    }
+
+    private static int getErrorMessage(final int frameworkError) {
+        int messageId = R.string.fen__play_error_message;
+
+        if (frameworkError == MediaPlayer.MEDIA_ERROR_IO) {
+            Log.e(TAG, "TextureVideoView error. File or network related operation errors.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_MALFORMED) {
+            Log.e(TAG, "TextureVideoView error. Bitstream is not conforming to the related coding standard or file spec.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+            Log.e(TAG, "TextureVideoView error. Media server died. In this case, the application must release the MediaPlayer object and instantiate a new one.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_TIMED_OUT) {
+            Log.e(TAG, "TextureVideoView error. Some operation takes too long to complete, usually more than 3-5 seconds.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_UNKNOWN) {
+            Log.e(TAG, "TextureVideoView error. Unspecified media player error.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_UNSUPPORTED) {
+            Log.e(TAG, "TextureVideoView error. Bitstream is conforming to the related coding standard or file spec, but the media framework does not support the feature.");
+        } else if (frameworkError == MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK) {
+            Log.e(TAG, "TextureVideoView error. The video is streamed and its container is not valid for progressive playback i.e the video's index (e.g moov atom) is not at the start of the file.");
+            messageId = R.string.fen__play_progressive_error_message;
+        }
+        return messageId;
+    }
+
+    /**
+     * Register a callback to be invoked when the media file
+     * is loaded and ready to go.
+     *
+     * @param l The callback that will be run
+     */
+    public void setOnPreparedListener(int index, final MediaPlayer.OnPreparedListener l) {
+        slots[index].onPreparedListener = l;
+    }
+
+    /**
+     * Register a callback to be invoked when the end of a media file
+     * has been reached during playback.
+     *
+     * @param l The callback that will be run
+     */
+    public void setOnCompletionListener(int index, final MediaPlayer.OnCompletionListener l) {
+        slots[index].onCompletionListener = l;
+    }
+
+    /**
+     * Register a callback to be invoked when an error occurs
+     * during playback or setup.  If no listener is specified,
+     * or if the listener returned false, VideoView will inform
+     * the user of any errors.
+     *
+     * @param l The callback that will be run
+     */
+    public void setOnErrorListener(int index, final MediaPlayer.OnErrorListener l) {
+        slots[index].onErrorListener = l;
+    }
+
+    private SurfaceTextureListener mSTListener = new SurfaceTextureListener() {
+        @Override
+        public void onSurfaceTextureAvailable(final SurfaceTexture surface, final int width, final int height) {
+
+            mSurfaceTexture = surface;
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            for (Slot slot : slots) {
+                openVideo(slot);
+            }
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(final SurfaceTexture surface, final int width, final int height) {
+            mSurfaceTexture = surface;
+            if (mRenderer != null) {
+                mRenderer.setOutputSize(width, height);
+            }
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            for (Slot slot : slots) {
+                boolean isValidState = (slot.targetState == STATE_PLAYING);
+                if (slot.player != null && isValidState) {
+                    if (slot.seekWhenPrepared != 0) {
+                        seekSlot(slot, slot.seekWhenPrepared);
+                    }
+                    startSlot(slot);
+                }
+            }
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            mSurfaceTexture = null;
+
+            hideMediaController();
+            for (Slot slot : slots) {
+                release(slot, true);
+            }
+            releaseRenderer();
+            return false;
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(final SurfaceTexture surface) {
+            if (mSurfaceTexture != surface) {
+                mSurfaceTexture = surface;
+            }
+        }
+    };
+
+    /*
+     * release the media player in any state
+     */
+    private void release(Slot slot, final boolean clearTargetState) {
+        if (slot.player != null) {
+            stopSync();
+            slot.player.release();
+            detachPlayer(slot);
+            slot.currentState = STATE_IDLE;
+            if (clearTargetState) {
+                slot.targetState = STATE_IDLE;
+            }
+        }
+    }
+
+    private void detachPlayer(Slot slot) {
+        slotsByPlayer.remove(slot.player);
+        slot.player = null;
+        releaseVideoSurface(slot);
+    }
+
+    /*
+     * release the renderer once no video is left, it keeps drawing while a single video is reopened
+     */
+    private void releaseRenderer() {
+        if (mRenderer != null) {
+            if (mRenderer.isStarted()) {
+                mRenderer.onPause();
+                mRenderer = null;
+            }
+        }
+    }
+
+    private void releaseVideoSurface(Slot slot) {
+        if (slot.surface != null) {
+            GlResourceTracker.untrackSurface(slot.surface);
+            slot.surface.release();
+            slot.surface = null;
+        }
+    }
+
+    /**
+     * Starts a single video, which stops keeping the videos in sync.
+     */
+    public void start(int index) {
+        stopSync();
+        startSlot(slots[index]);
+    }
+
+    private void startSlot(Slot slot) {
+        if (isInPlaybackState(slot)) {
+            slot.player.start();
+            slot.currentState = STATE_PLAYING;
+        }
+        slot.targetState = STATE_PLAYING;
+    }
+
+    public void start() {
+        stopSync();
+        for (Slot slot : slots) {
+            startSlot(slot);
+        }
+    }
+
+    /**
+     * Starts all videos at the same time and keeps them in step with a master clock, correcting their drift with small
+     * speed changes or, when they are too far off, by seeking. Videos still preparing are waited for, and videos
+     * paused by {@link #pause()} while in sync continue from the master position.
+     */
+    public void startInSync() {
+        if (syncPaused && syncEngine != null) {
+            syncPaused = false;
+            syncEngine.resume();
+            markSyncedSlotsPlaying();
+            scheduleSyncCorrection();
+            return;
+        }
+        stopSync();
+        syncStartPending = true;
+        for (Slot slot : slots) {
+            slot.targetState = STATE_PLAYING;
+        }
+        startInSyncIfPrepared();
+    }
+
+    private void startInSyncIfPrepared() {
+        if (!syncStartPending) {
+            return;
+        }
+        List<PlaybackSyncEngine.Player> players = new ArrayList<>();
+        int position = Integer.MAX_VALUE;
+        for (Slot slot : slots) {
+            if (!isSynced(slot)) {
+                continue;
+            }
+            if (!isInPlaybackState(slot)) {
+                // Started once the last one is prepared
+                return;
+            }
+            players.add(new MediaPlayerSyncAdapter(slot.player));
+            position = Math.min(position, slot.player.getCurrentPosition());
+        }
+        if (players.isEmpty()) {
+            return;
+        }
+        syncStartPending = false;
+        if (syncEngine == null) {
+            syncEngine = new PlaybackSyncEngine();
+        }
+        syncEngine.setPlayers(players);
+        syncEngine.setLooping(mLooping);
+        syncEngine.start(position);
+        markSyncedSlotsPlaying();
+        scheduleSyncCorrection();
+        showMediaController();
+    }
+
+    /**
+     * @return true if the slot has a video taking part in synchronized playback
+     */
+    private static boolean isSynced(Slot slot) {
+        return (slot.uri != null || slot.assetFileDescriptor != null) && slot.currentState != STATE_ERROR;
+    }
+
+    private void markSyncedSlotsPlaying() {
+        for (Slot slot : slots) {
+            if (isSynced(slot) && isInPlaybackState(slot)) {
+                slot.currentState = STATE_PLAYING;
+                slot.targetState = STATE_PLAYING;
+            }
+        }
+    }
+
+    private void scheduleSyncCorrection() {
+        syncHandler.removeCallbacks(syncCorrection);
+        syncHandler.postDelayed(syncCorrection, PlaybackSyncEngine.DEFAULT_CORRECTION_INTERVAL_MS);
+    }
+
+    private final Runnable syncCorrection = new Runnable() {
+        @Override
+        public void run() {
+            if (syncEngine != null && syncEngine.isRunning()) {
+                syncEngine.correct();
+                syncHandler.postDelayed(this, PlaybackSyncEngine.DEFAULT_CORRECTION_INTERVAL_MS);
+            }
+        }
+    };
+
+    /**
+     * Stops keeping the videos in sync, they keep playing at normal speed.
+     */
+    private void stopSync() {
+        syncStartPending = false;
+        syncPaused = false;
+        syncHandler.removeCallbacks(syncCorrection);
+        if (syncEngine != null) {
+            syncEngine.stop();
+        }
+    }
+
+    /**
+     * @return true if the videos are kept in sync, see {@link #startInSync()}
+     */
+    public boolean isInSync() {
+        return syncEngine != null && syncEngine.isRunning();
+    }
+
+    /**
+     * Pauses a single video, which stops keeping the videos in sync.
+     */
+    public void pause(int index) {
+        stopSync();
+        pauseSlot(slots[index]);
+    }
+
+    private void pauseSlot(Slot slot) {
+        if (isInPlaybackState(slot)) {
+            if (slot.player.isPlaying()) {
+                slot.player.pause();
+                slot.currentState = STATE_PAUSED;
+            }
+        }
+        slot.targetState = STATE_PAUSED;
+    }
+
+    /**
+     * Pauses all videos, videos in sync stay in sync when started again by {@link #startInSync()}.
+     */
+    public void pause() {
+        if (syncEngine != null && syncEngine.isRunning()) {
+            syncEngine.pause();
+            syncPaused = true;
+            syncHandler.removeCallbacks(syncCorrection);
+        } else {
+            syncStartPending = false;
+        }
+        for (Slot slot : slots) {
+            pauseSlot(slot);
+        }
+    }
+
+    public void suspend() {
+        for (Slot slot : slots) {
+            release(slot, false);
+        }
+        releaseRenderer();
+    }
+
+    public void resume(int index) {
+        openVideo(slots[index]);
+    }
+
+    public int getDuration(int index) {
+        Slot slot = slots[index];
+        if (isInPlaybackState(slot)) {
+            return slot.player.getDuration();
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return current position in milliseconds
+     */
+    public int getCurrentPosition(int index) {
+        Slot slot = slots[index];
+        if (isInPlaybackState(slot)) {
+            return slot.player.getCurrentPosition();
+        }
+        return 0;
+    }
+
+    public int getCurrentPositionInSeconds(int index) {
+        return getCurrentPosition(index) / MILLIS_IN_SEC;
+    }
+
+    /**
+     * Seeks a single video, which stops keeping the videos in sync.
+     */
+    public void seekTo(int index, final int millis) {
+        stopSync();
+        seekSlot(slots[index], millis);
+    }
+
+    private void seekSlot(Slot slot, final int millis) {
+        if (isInPlaybackState(slot)) {
+            try {
+                slot.player.seekTo(millis);
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                slot.seekWhenPrepared = millis;
+            }
+        } else {
+            slot.seekWhenPrepared = millis;
+        }
+    }
+
+    public void seekToSeconds(int index, final int seconds) {
+        seekTo(index, seconds * MILLIS_IN_SEC);
+        MediaPlayer player = slots[index].player;
+        if (player != null) {
+            player.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+                @Override
+                public void onSeekComplete(final MediaPlayer mp) {
+                    Log.i(TAG, "seek completed");
+                }
+            });
+        }
+    }
+
+    public boolean isPlaying(int index) {
+        Slot slot = slots[index];
+        return isInPlaybackState(slot) && slot.player.isPlaying();
+    }
+
+    public int getBufferPercentage(int index) {
+        Slot slot = slots[index];
+        if (slot.player != null) {
+            return slot.bufferPercentage;
+        }
+        return 0;
+    }
+
+    private static boolean isInPlaybackState(Slot slot) {
+        return (slot.player != null &&
+                slot.currentState != STATE_ERROR &&
+                slot.currentState != STATE_IDLE &&
+                slot.currentState != STATE_PREPARING);
+    }
+
+    private final MediaPlayer.OnInfoListener onInfoToPlayStateListener = new MediaPlayer.OnInfoListener() {
+
+        @Override
+        public boolean onInfo(final MediaPlayer mp, final int what, final int extra) {
+            if (noPlayStateListener()) {
+                return false;
+            }
+
+            if (MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START == what) {
+                onPlayStateListener.onFirstVideoFrameRendered();
+                onPlayStateListener.onPlay();
+            }
+            if (MediaPlayer.MEDIA_INFO_BUFFERING_START == what) {
+                onPlayStateListener.onBuffer();
+            }
+            if (MediaPlayer.MEDIA_INFO_BUFFERING_END == what) {
+                onPlayStateListener.onPlay();
+            }
+
+            return false;
+        }
+    };
+
+    private boolean noPlayStateListener() {
+        return !hasPlayStateListener();
+    }
+
+    private boolean hasPlayStateListener() {
+        return onPlayStateListener != null;
+    }
+
+    public void setOnPlayStateListener(final FensterVideoStateListener onPlayStateListener) {
+        this.onPlayStateListener = onPlayStateListener;
+    }
+
+    public Renderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * @param renderer compositor of the videos, with at least {@link #getPlayerCount()} input textures
+     */
+    public void setRenderer(Renderer renderer) {
+        this.mRenderer = renderer;
+    }
+
+    public boolean canPause(int index) {
+        return slots[index].canPause;
+    }
+
+    public boolean canSeekBack(int index) {
+        return slots[index].canSeekBack;
+    }
+
+    public boolean canSeekForward(int index) {
+        return slots[index].canSeekForward;
+    }
+
+    /**
+     * State of one video and the listener of its player. Callbacks of a player released since are ignored.
+     */
+    private final class Slot implements MediaPlayer.OnPreparedListener, MediaPlayer.OnVideoSizeChangedListener,
+            MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener,
+            MediaPlayer.OnBufferingUpdateListener {
+
+        final int index;
+        final VideoSizeCalculator videoSizeCalculator = new VideoSizeCalculator();
+        MediaPlayer player;
+        // currentState is the current state of the video.
+        // targetState is the state that a method caller intends to reach.
+        // For instance, regardless the current state, calling pause()
+        // intends to bring the video to a target state of STATE_PAUSED.
+        int currentState = STATE_IDLE;
+        int targetState = STATE_IDLE;
+        Uri uri;
+        AssetFileDescriptor assetFileDescriptor;
+        Map<String, String> headers;
+        // Surface the player decodes into, owned by the view
+        Surface surface;
+        MediaPlayer.OnCompletionListener onCompletionListener;
+        MediaPlayer.OnPreparedListener onPreparedListener;
+        MediaPlayer.OnErrorListener onErrorListener;
+        MediaPlayer.OnInfoListener onInfoListener;
+        int audioSession;
+        int seekWhenPrepared;  // recording the seek position while preparing
+        int bufferPercentage;
+        boolean canPause;
+        boolean canSeekBack;
+        boolean canSeekForward;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onVideoSizeChanged(final MediaPlayer mp, final int width, final int height) {
+            if (mp != player) {
+                return;
+            }
+            videoSizeCalculator.setVideoSize(mp.getVideoWidth(), mp.getVideoHeight());
+            if (mRenderer != null) {
+                mRenderer.setVideoSize(index, width, height);
+            }
+            if (videoSizeCalculator.hasASizeYet()) {
+                requestLayout();
+            }
+        }
+
+        @Override
+        public void onPrepared(final MediaPlayer mp) {
+            if (mp != player) {
+                return;
+            }
+            currentState = STATE_PREPARED;
+
+            canPause = true;
+            canSeekBack = true;
+            canSeekForward = true;
+
+            if (onPreparedListener != null) {
+                onPreparedListener.onPrepared(player);
+            }
+            if (fensterPlayerController != null) {
+                fensterPlayerController.setEnabled(true);
+            }
+            videoSizeCalculator.setVideoSize(mp.getVideoWidth(), mp.getVideoHeight());
+            if (mRenderer != null) {
+                mRenderer.setVideoSize(index, mp.getVideoWidth(), mp.getVideoHeight());
+            }
+
+            int seekToPosition = seekWhenPrepared;  // seekWhenPrepared may be changed after seekTo() call
+            if (seekToPosition != 0) {
+                seekSlot(this, seekToPosition);
+            }
+
+            if (syncStartPending) {
+                startInSyncIfPrepared();
+            } else if (targetState == STATE_PLAYING) {
+                startSlot(this);
+                showMediaController();
+            } else if (pausedAt(index, seekToPosition)) {
+                showStickyMediaController();
+            }
+        }
+
+        @Override
+        public void onCompletion(final MediaPlayer mp) {
+            if (mp != player) {
+                return;
+            }
+            setKeepScreenOn(false);
+            currentState = STATE_PLAYBACK_COMPLETED;
+            targetState = STATE_PLAYBACK_COMPLETED;
+            hideMediaController();
+            if (onCompletionListener != null) {
+                onCompletionListener.onCompletion(player);
+            }
+        }
+
+        @Override
+        public boolean onInfo(final MediaPlayer mp, final int arg1, final int arg2) {
+            if (mp == player && onInfoListener != null) {
+                onInfoListener.onInfo(mp, arg1, arg2);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onError(final MediaPlayer mp, final int frameworkError, final int implError) {
+            Log.d(TAG, "Error: " + frameworkError + "," + implError);
+            if (mp == player) {
+                if (currentState == STATE_ERROR) {
+                    return true;
+                }
+                currentState = STATE_ERROR;
+                targetState = STATE_ERROR;
+                hideMediaController();
+
+                if (allowPlayStateToHandle(this, frameworkError)) {
+                    return true;
+                }
+
+                if (allowErrorListenerToHandle(this, frameworkError, implError)) {
+                    return true;
+                }
+            }
+
+            handleError(frameworkError);
+
+            return true;
+        }
+
+        @Override
+        public void onBufferingUpdate(final MediaPlayer mp, final int percent) {
+            if (mp == player) {
+                bufferPercentage = percent;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.malmstein.fenster.view;
 
+import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -14,6 +15,7 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnInfoListener;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.AttributeSet;
@@ -31,6 +33,8 @@ import com.malmstein.fenster.R;
 import com.malmstein.fenster.controller.FensterPlayerController;
 import com.malmstein.fenster.play.FensterPlayer;
 import com.malmstein.fenster.play.FensterVideoStateListener;
+import com.malmstein.fenster.recording.ClipExporter;
+import com.malmstein.fenster.renderer.GlResourceTracker;
 
 import java.io.IOException;
 import java.util.Map;
@@ -100,6 +104,8 @@ public class FensterVideoView extends TextureView implements MediaController.Med
     private AssetFileDescriptor mAssetFileDescriptor;
     private Map<String, String> mHeaders;
     private SurfaceTexture mSurfaceTexture;
+    // Surface the media player decodes into, owned by this view
+    private Surface mVideoSurface;
     private MediaPlayer mMediaPlayer = null;
     private FensterPlayerController fensterPlayerController;
     private OnCompletionListener mOnCompletionListener;
@@ -251,6 +257,7 @@ public class FensterVideoView extends TextureView implements MediaController.Med
             mMediaPlayer.stop();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            releaseVideoSurface();
             setKeepScreenOn(false);
             mCurrentState = STATE_IDLE;
             mTargetState = STATE_IDLE;
@@ -277,7 +284,10 @@ public class FensterVideoView extends TextureView implements MediaController.Med
             setDataSource();
             setScaleType(mScaleType);
 
-            mMediaPlayer.setSurface(new Surface(mRenderer == null ? mSurfaceTexture : mRenderer.getInputTexture()));
+            releaseVideoSurface();
+            mVideoSurface = new Surface(mRenderer == null ? mSurfaceTexture : mRenderer.getInputTexture());
+            GlResourceTracker.trackSurface(GlResourceTracker.SURFACE, mVideoSurface, this);
+            mMediaPlayer.setSurface(mVideoSurface);
             mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
             mMediaPlayer.setScreenOnWhilePlaying(true);
             mMediaPlayer.prepareAsync();
@@ -291,6 +301,14 @@ public class FensterVideoView extends TextureView implements MediaController.Med
         }
     }
 
+    private void releaseVideoSurface() {
+        if (mVideoSurface != null) {
+            GlResourceTracker.untrackSurface(mVideoSurface);
+            mVideoSurface.release();
+            mVideoSurface = null;
+        }
+    }
+
     private void openVideo() {
         if (mUri == null) {
             return;
@@ -686,6 +704,7 @@ public class FensterVideoView extends TextureView implements MediaController.Med
             mMediaPlayer.reset();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            releaseVideoSurface();
             mCurrentState = STATE_IDLE;
             if (clearTargetState) {
                 mTargetState = STATE_IDLE;
@@ -810,6 +829,41 @@ public class FensterVideoView extends TextureView implements MediaController.Med
         }
     }
 
+    /**
+     * Prepares a copy of a range of the current video, without re-encoding it, see {@link ClipExporter}. The clip is
+     * written once the exporter is started. Requires API 18.
+     *
+     * @param startMs start of the range, moved back to the previous sync frame
+     * @param endMs   end of the range, limited to the duration once known
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public ClipExporter createClipExporter(final int startMs, final int endMs, final String outputPath) {
+        ClipExporter exporter;
+        if (mAssetFileDescriptor != null) {
+            exporter = new ClipExporter(mAssetFileDescriptor, outputPath);
+        } else if (mUri != null) {
+            exporter = new ClipExporter(getContext(), mUri, mHeaders, outputPath);
+        } else {
+            throw new IllegalStateException("No video set");
+        }
+        int duration = getDuration();
+        exporter.setRange(Math.max(startMs, 0), duration > 0 ? Math.min(endMs, duration) : endMs);
+        return exporter;
+    }
+
+    /**
+     * Prepares a copy of the moment around the current position, see {@link #createClipExporter(int, int, String)}.
+     *
+     * @param beforeMs length of the clip before the current position
+     * @param afterMs  length of the clip after the current position
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public ClipExporter createClipExporterAroundCurrentPosition(final int beforeMs, final int afterMs,
+                                                                final String outputPath) {
+        int position = getCurrentPosition();
+        return createClipExporter(position - beforeMs, position + afterMs, outputPath);
+    }
+
     public void seekToSeconds(final int seconds) {
         seekTo(seconds * MILLIS_IN_SEC);
         mMediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
@@ -0,0 +1,191 @@
+package com.malmstein.fenster.recording;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingSizePolicyTest {
+
+    private RecordingSizePolicy policy;
+    private FakeCapabilities capabilities;
+
+    @Before
+    public void setUp() {
+        policy = new RecordingSizePolicy();
+        capabilities = new FakeCapabilities();
+    }
+
+    @Test
+    public void alignmentIsAMultipleOfTheMacroblock() {
+        assertEquals(16, RecordingSizePolicy.alignment(0));
+        assertEquals(16, RecordingSizePolicy.alignment(1));
+        assertEquals(16, RecordingSizePolicy.alignment(2));
+        assertEquals(16, RecordingSizePolicy.alignment(16));
+        assertEquals(32, RecordingSizePolicy.alignment(32));
+        assertEquals(48, RecordingSizePolicy.alignment(24));
+        assertEquals(80, RecordingSizePolicy.alignment(10));
+    }
+
+    @Test
+    public void fullHdIsScaledDownToThePixelBudget() {
+        assertSelected(1920, 1080, 1280, 720);
+    }
+
+    @Test
+    public void sourceWithinTheBudgetIsNotScaledUp() {
+        assertSelected(640, 480, 640, 480);
+        assertSelected(320, 240, 320, 240);
+    }
+
+    @Test
+    public void edgesAreRoundedDownToTheMacroblock() {
+        assertSelected(900, 900, 896, 896);
+        assertSelected(854, 480, 848, 480);
+    }
+
+    @Test
+    public void portraitSourceKeepsItsOrientation() {
+        assertSelected(1080, 1920, 720, 1280);
+    }
+
+    @Test
+    public void sizeFollowsTheEncoderAlignment() {
+        capabilities.widthAlignment = 32;
+        capabilities.heightAlignment = 32;
+        assertSelected(1920, 1080, 1248, 704);
+
+        capabilities.widthAlignment = 24;
+        capabilities.heightAlignment = 2;
+        assertTrue(policy.select(1920, 1080, capabilities));
+        assertEquals(0, policy.getWidth() % 48);
+        assertEquals(0, policy.getHeight() % 16);
+    }
+
+    @Test
+    public void bitRateBudgetLimitsThePixels() {
+        policy.setMaxBitRate(1000000);
+        long budget = (long) (1000000 / (VideoEncoder.DEFAULT_FRAME_RATE * VideoEncoder.BITS_PER_PIXEL));
+        assertEquals(budget, policy.getPixelBudget(capabilities));
+        assertSelected(1920, 1080, 688, 384);
+    }
+
+    @Test
+    public void encoderBitRateLimitsThePixels() {
+        capabilities.maxBitRate = 1000000;
+        assertSelected(1920, 1080, 688, 384);
+    }
+
+    @Test
+    public void higherFrameRateLowersTheBitRateBudget() {
+        policy.setMaxBitRate(1000000);
+        long budget30 = policy.getPixelBudget(capabilities);
+        policy.setFrameRate(60);
+        assertEquals(budget30 / 2, policy.getPixelBudget(capabilities), 1);
+    }
+
+    @Test
+    public void pixelBudgetIsAtLeastAMacroblock() {
+        policy.setMaxPixels(1);
+        assertEquals(16 * 16, policy.getPixelBudget(capabilities));
+        assertSelected(1920, 1080, 16, 16);
+    }
+
+    @Test
+    public void sizesTheEncoderRejectsAreSkipped() {
+        capabilities.maxEdge = 960;
+        assertSelected(1920, 1080, 960, 544);
+    }
+
+    @Test
+    public void sizesTooLargeForTheFrameRateAreSkipped() {
+        capabilities.maxPixelsAtHighRate = 640 * 360;
+        policy.setFrameRate(60);
+        // 640x368 is the closest to 640x360 on the macroblock grid, one step over
+        assertSelected(1920, 1080, 624, 352);
+
+        policy.setFrameRate(30);
+        assertSelected(1920, 1080, 1280, 720);
+    }
+
+    @Test
+    public void noSupportedSizeFails() {
+        capabilities.maxEdge = 0;
+        assertFalse(policy.select(1920, 1080, capabilities));
+    }
+
+    @Test
+    public void aspectRatioIsKeptWithinAnAlignmentStep() {
+        int[][] sources = {{1920, 1080}, {1280, 720}, {720, 1280}, {1440, 1080}, {2560, 1080}, {1080, 1080}};
+        for (int[] source : sources) {
+            assertTrue(policy.select(source[0], source[1], capabilities));
+            double expectedHeight = (double) policy.getWidth() * source[1] / source[0];
+            assertTrue(source[0] + "x" + source[1] + " recorded at " + policy.getWidth() + "x" + policy.getHeight(),
+                    Math.abs(policy.getHeight() - expectedHeight) <= 8);
+        }
+    }
+
+    @Test
+    public void sourceSmallerThanAMacroblockIsScaledUpToOne() {
+        assertSelected(8, 8, 16, 16);
+        assertSelected(10, 200, 16, 192);
+    }
+
+    @Test
+    public void shortEdgeIsNotScaledUpToKeepTheAspect() {
+        assertSelected(100, 60, 96, 48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSourceSizeIsRejected() {
+        policy.select(0, 1080, capabilities);
+    }
+
+    @Test
+    public void defaultCapabilitiesStopAt720p() {
+        assertTrue(policy.select(3840, 2160, RecordingSizePolicy.DEFAULT_CAPABILITIES));
+        assertEquals(1280, policy.getWidth());
+        assertEquals(720, policy.getHeight());
+    }
+
+    private void assertSelected(int sourceWidth, int sourceHeight, int width, int height) {
+        assertTrue(policy.select(sourceWidth, sourceHeight, capabilities));
+        assertEquals(width + "x" + height, policy.getWidth() + "x" + policy.getHeight());
+    }
+
+    private static class FakeCapabilities implements EncoderCapabilities {
+
+        int widthAlignment = 2;
+        int heightAlignment = 2;
+        int maxEdge = 4096;
+        int maxPixelsAtHighRate = Integer.MAX_VALUE;
+        int maxBitRate = 100 * 1000 * 1000;
+
+        @Override
+        public int getWidthAlignment() {
+            return widthAlignment;
+        }
+
+        @Override
+        public int getHeightAlignment() {
+            return heightAlignment;
+        }
+
+        @Override
+        public boolean isSizeSupported(int width, int height) {
+            return width <= maxEdge && height <= maxEdge;
+        }
+
+        @Override
+        public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+            return isSizeSupported(width, height) && (frameRate <= 30 || width * height <= maxPixelsAtHighRate);
+        }
+
+        @Override
+        public int getMaxBitRate() {
+            return maxBitRate;
+        }
+    }
+}
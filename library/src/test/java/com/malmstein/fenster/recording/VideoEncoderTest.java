@@ -0,0 +1,31 @@
+package com.malmstein.fenster.recording;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VideoEncoderTest {
+
+    @Test
+    public void bitRateFollowsTheFrameRate() {
+        VideoEncoder encoder = new VideoEncoder("out.mp4", 1280, 720);
+        int bitRate30 = encoder.getBitRate();
+        assertEquals(VideoEncoder.defaultBitRate(1280, 720, VideoEncoder.DEFAULT_FRAME_RATE), bitRate30);
+
+        encoder.setFrameRate(60);
+        assertEquals(2 * bitRate30, encoder.getBitRate(), 1);
+    }
+
+    @Test
+    public void explicitBitRateIsKept() {
+        VideoEncoder encoder = new VideoEncoder("out.mp4", 1280, 720);
+        encoder.setBitRate(2000000);
+        encoder.setFrameRate(60);
+        assertEquals(2000000, encoder.getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddSizeIsRejected() {
+        new VideoEncoder("out.mp4", 1279, 720);
+    }
+}
@@ -0,0 +1,73 @@
+package com.malmstein.fenster.renderer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClockFrameSchedulerTest {
+
+    private static final long START = 1000000000L;
+    private static final long INTERVAL = 16000000L;
+
+    private FakeClock clock;
+    private ClockFrameScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock(START);
+        scheduler = new ClockFrameScheduler(clock, INTERVAL);
+    }
+
+    @Test
+    public void firstFrameIsImmediate() throws InterruptedException {
+        assertEquals(START, scheduler.awaitNextFrame());
+        assertEquals(0, clock.sleptNanos);
+    }
+
+    @Test
+    public void framesStayOnTheGridWhateverTheDrawTime() throws InterruptedException {
+        scheduler.awaitNextFrame();
+        clock.advance(5000000L);
+        assertEquals(START + INTERVAL, scheduler.awaitNextFrame());
+        assertEquals(INTERVAL - 5000000L, clock.sleptNanos);
+
+        clock.advance(12000000L);
+        assertEquals(START + 2 * INTERVAL, scheduler.awaitNextFrame());
+        assertEquals(START + 2 * INTERVAL, clock.nanoTime());
+    }
+
+    @Test
+    public void slightlyLateFrameIsNotDelayed() throws InterruptedException {
+        scheduler.awaitNextFrame();
+        clock.advance(INTERVAL + 4000000L);
+        long sleptBefore = clock.sleptNanos;
+        assertEquals(START + INTERVAL, scheduler.awaitNextFrame());
+        assertEquals(sleptBefore, clock.sleptNanos);
+        // The grid is kept, the next frame comes early to catch up
+        assertEquals(START + 2 * INTERVAL, scheduler.awaitNextFrame());
+    }
+
+    @Test
+    public void gridRestartsInsteadOfBurstingAfterFallingBehind() throws InterruptedException {
+        scheduler.awaitNextFrame();
+        clock.advance(10 * INTERVAL);
+        long now = clock.nanoTime();
+        assertEquals(now, scheduler.awaitNextFrame());
+        assertEquals(now + INTERVAL, scheduler.awaitNextFrame());
+        assertEquals(INTERVAL, clock.sleptNanos);
+    }
+
+    @Test
+    public void releaseRestartsTheGrid() throws InterruptedException {
+        scheduler.awaitNextFrame();
+        scheduler.release();
+        clock.advance(3000000L);
+        assertEquals(START + 3000000L, scheduler.awaitNextFrame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveInterval() {
+        new ClockFrameScheduler(clock, 0);
+    }
+}
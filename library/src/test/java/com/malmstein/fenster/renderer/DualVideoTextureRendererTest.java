@@ -0,0 +1,73 @@
+package com.malmstein.fenster.renderer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class DualVideoTextureRendererTest {
+
+    private static final float DELTA = 1e-5f;
+
+    private final float[] bounds = new float[4];
+    private final float[] clips = new float[4];
+
+    @Test
+    public void videoOfTheSameAspectFillsItsRectangle() {
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0f, 0f, 1f, 1f, 1920, 1080, 1280, 720);
+        assertArrayEquals(new float[]{0f, 0f, 1f, 1f}, bounds, DELTA);
+        assertArrayEquals(new float[]{0f, 0f, 1f, 1f}, clips, DELTA);
+    }
+
+    @Test
+    public void widerVideoIsLetterboxed() {
+        // 2.4:1 in a 16:9 output
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0f, 0f, 1f, 1f, 2400, 1000, 1600, 900);
+        float height = (16f / 9f) / 2.4f;
+        assertArrayEquals(new float[]{0f, (1f - height) / 2f, 1f, height}, bounds, DELTA);
+        assertArrayEquals(new float[]{0f, (1f - height) / 2f, 1f, (1f + height) / 2f}, clips, DELTA);
+    }
+
+    @Test
+    public void narrowerVideoIsPillarboxed() {
+        // 4:3 in a 16:9 output
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0f, 0f, 1f, 1f, 640, 480, 1600, 900);
+        float width = (4f / 3f) / (16f / 9f);
+        assertArrayEquals(new float[]{(1f - width) / 2f, 0f, width, 1f}, bounds, DELTA);
+    }
+
+    @Test
+    public void sideBySideCellsUseTheirOwnAspect() {
+        // Each half of a 1600x900 output is 800x900, a 16:9 video is letterboxed in it
+        float[] allBounds = new float[8];
+        float[] allClips = new float[8];
+        DualVideoTextureRenderer.fit(allBounds, allClips, 4, 0.5f, 0f, 1f, 1f, 1600, 900, 1600, 900);
+        float height = (800f / 900f) / (16f / 9f);
+        assertArrayEquals(new float[]{0f, 0f, 0f, 0f, 0.5f, (1f - height) / 2f, 0.5f, height}, allBounds, DELTA);
+    }
+
+    @Test
+    public void unknownSizeStretchesOverTheRectangle() {
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0.6f, 0.05f, 0.95f, 0.4f, 0, 0, 1600, 900);
+        assertArrayEquals(new float[]{0.6f, 0.05f, 0.35f, 0.35f}, bounds, DELTA);
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0.6f, 0.05f, 0.95f, 0.4f, 1920, 1080, 0, 0);
+        assertArrayEquals(new float[]{0.6f, 0.05f, 0.35f, 0.35f}, bounds, DELTA);
+    }
+
+    @Test
+    public void clipOnlyShrinksTheVisiblePart() {
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0f, 0f, 1f, 1f, 1920, 1080, 1280, 720);
+        DualVideoTextureRenderer.clip(clips, 0, 0.3f, -1f, 2f, 0.8f);
+        assertArrayEquals(new float[]{0.3f, 0f, 1f, 0.8f}, clips, DELTA);
+        // The video is still placed over the whole rectangle
+        assertArrayEquals(new float[]{0f, 0f, 1f, 1f}, bounds, DELTA);
+    }
+
+    @Test
+    public void splitClipsKeepTheLetterbox() {
+        DualVideoTextureRenderer.fit(bounds, clips, 0, 0f, 0f, 1f, 1f, 2400, 1000, 1600, 900);
+        float bottom = clips[1];
+        float top = clips[3];
+        DualVideoTextureRenderer.clip(clips, 0, 0f, 0f, 0.5f, 1f);
+        assertArrayEquals(new float[]{0f, bottom, 0.5f, top}, clips, DELTA);
+    }
+}
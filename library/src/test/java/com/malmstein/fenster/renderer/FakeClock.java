@@ -0,0 +1,39 @@
+package com.malmstein.fenster.renderer;
+
+/**
+ * Clock which only moves when told to, sleeping advances it instantly.
+ */
+class FakeClock implements FrameScheduler.Clock {
+
+    private long nanoTime;
+    private long autoAdvanceNanos;
+    long sleptNanos;
+
+    FakeClock(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    void advance(long nanos) {
+        nanoTime += nanos;
+    }
+
+    /**
+     * Makes every read of the clock move it forward, for code waiting on the clock for something that never comes.
+     */
+    void setAutoAdvance(long nanos) {
+        autoAdvanceNanos = nanos;
+    }
+
+    @Override
+    public long nanoTime() {
+        long now = nanoTime;
+        nanoTime += autoAdvanceNanos;
+        return now;
+    }
+
+    @Override
+    public void sleepNanos(long nanos) {
+        sleptNanos += nanos;
+        nanoTime += nanos;
+    }
+}
@@ -0,0 +1,132 @@
+package com.malmstein.fenster.renderer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FramePacerTest {
+
+    private static final long VSYNC_60 = 16666667L;
+    private static final long FRAME_24 = 41666667L;
+    // Far from any media timestamp, so timestamps starting at 0 are media times
+    private static final long DISPLAY_START = 500000000000L;
+
+    private FramePacer pacer;
+
+    @Before
+    public void setUp() {
+        pacer = new FramePacer();
+    }
+
+    @Test
+    public void firstFrameIsPresentedOnTheNextVsync() {
+        assertEquals(FramePacer.PRESENT, pacer.schedule(0, DISPLAY_START, VSYNC_60, false));
+        assertEquals(DISPLAY_START + VSYNC_60, pacer.getPresentationTimeNanos());
+        assertEquals(1, pacer.getPresentedFrames());
+    }
+
+    @Test
+    public void frameDueLaterWaits() {
+        pacer.schedule(0, DISPLAY_START, VSYNC_60, false);
+        assertEquals(FramePacer.WAIT, pacer.schedule(FRAME_24, DISPLAY_START + VSYNC_60, VSYNC_60, false));
+        assertEquals(1, pacer.getPresentedFrames());
+    }
+
+    @Test
+    public void lateFrameIsDroppedOnlyWhenANewerOneIsQueued() {
+        pacer.schedule(0, DISPLAY_START, VSYNC_60, false);
+        long vsync = DISPLAY_START + 5 * VSYNC_60;
+        // Due on the second vsync, now three vsyncs late
+        assertEquals(FramePacer.PRESENT, pacer.schedule(2 * VSYNC_60, vsync, VSYNC_60, false));
+        assertEquals(vsync + VSYNC_60, pacer.getPresentationTimeNanos());
+
+        assertEquals(FramePacer.DROP, pacer.schedule(3 * VSYNC_60, vsync + VSYNC_60, VSYNC_60, true));
+        assertEquals(1, pacer.getDroppedFrames());
+        assertEquals(2, pacer.getPresentedFrames());
+    }
+
+    @Test
+    public void slightlyLateFrameIsPresented() {
+        pacer.schedule(0, DISPLAY_START, VSYNC_60, false);
+        long vsync = DISPLAY_START + 2 * VSYNC_60;
+        assertEquals(FramePacer.PRESENT, pacer.schedule(VSYNC_60, vsync, VSYNC_60, true));
+        assertEquals(0, pacer.getDroppedFrames());
+    }
+
+    @Test
+    public void film24OnA60HzDisplayFollowsThe32Cadence() {
+        List<Long> presentations = new ArrayList<>();
+        long vsync = DISPLAY_START;
+        int frame = 0;
+        while (presentations.size() < 48) {
+            int decision = pacer.schedule(frame * FRAME_24, vsync, VSYNC_60, false);
+            assertTrue(decision != FramePacer.DROP);
+            if (decision == FramePacer.PRESENT) {
+                presentations.add(pacer.getPresentationTimeNanos());
+                frame++;
+            }
+            vsync += VSYNC_60;
+        }
+
+        int repeated = 0;
+        for (int i = 1; i < presentations.size(); i++) {
+            long vsyncs = Math.round((double) (presentations.get(i) - presentations.get(i - 1)) / VSYNC_60);
+            long previous = i > 1
+                    ? Math.round((double) (presentations.get(i - 1) - presentations.get(i - 2)) / VSYNC_60) : 5 - vsyncs;
+            assertTrue("frame " + i + " shown for " + vsyncs + " vsyncs", vsyncs == 2 || vsyncs == 3);
+            assertEquals("cadence broken at frame " + i, 5, vsyncs + previous);
+            repeated += vsyncs - 1;
+        }
+        assertEquals(48, pacer.getPresentedFrames());
+        assertEquals(0, pacer.getDroppedFrames());
+        assertEquals(repeated, pacer.getRepeatedFrames());
+    }
+
+    @Test
+    public void framesAfterAPauseArePacedAgainInsteadOfDropped() {
+        long vsync = DISPLAY_START;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(FramePacer.PRESENT, pacer.schedule(i * 2 * VSYNC_60, vsync, VSYNC_60, false));
+            vsync += 2 * VSYNC_60;
+        }
+        // Paused for 5 s, the media timestamps carry on where they stopped
+        vsync += 5000000000L;
+        assertEquals(FramePacer.PRESENT, pacer.schedule(8 * VSYNC_60, vsync, VSYNC_60, true));
+        assertEquals(vsync + VSYNC_60, pacer.getPresentationTimeNanos());
+        assertEquals(FramePacer.WAIT, pacer.schedule(10 * VSYNC_60, vsync + VSYNC_60, VSYNC_60, true));
+        assertEquals(FramePacer.PRESENT, pacer.schedule(10 * VSYNC_60, vsync + 2 * VSYNC_60, VSYNC_60, true));
+        assertEquals(vsync + 3 * VSYNC_60, pacer.getPresentationTimeNanos());
+        assertEquals(0, pacer.getDroppedFrames());
+    }
+
+    @Test
+    public void seekBackwardsTakesANewAnchor() {
+        pacer.schedule(10 * FRAME_24, DISPLAY_START, VSYNC_60, false);
+        long vsync = DISPLAY_START + 3 * VSYNC_60;
+        assertEquals(FramePacer.PRESENT, pacer.schedule(0, vsync, VSYNC_60, false));
+        assertEquals(vsync + VSYNC_60, pacer.getPresentationTimeNanos());
+    }
+
+    @Test
+    public void absoluteTimestampsArePresentedOnTheirVsync() {
+        long pts = DISPLAY_START + 3 * VSYNC_60;
+        assertEquals(FramePacer.WAIT, pacer.schedule(pts, DISPLAY_START, VSYNC_60, false));
+        assertEquals(FramePacer.PRESENT, pacer.schedule(pts, DISPLAY_START + 2 * VSYNC_60, VSYNC_60, false));
+        assertEquals(pts, pacer.getPresentationTimeNanos());
+    }
+
+    @Test
+    public void resetStatsClearsTheCounters() {
+        pacer.schedule(0, DISPLAY_START, VSYNC_60, false);
+        pacer.schedule(VSYNC_60, DISPLAY_START + 10 * VSYNC_60, VSYNC_60, true);
+        pacer.resetStats();
+        assertEquals(0, pacer.getPresentedFrames());
+        assertEquals(0, pacer.getDroppedFrames());
+        assertEquals(0, pacer.getRepeatedFrames());
+    }
+}
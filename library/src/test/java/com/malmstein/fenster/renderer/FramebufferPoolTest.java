@@ -0,0 +1,155 @@
+package com.malmstein.fenster.renderer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FramebufferPoolTest {
+
+    // 100x100 RGBA
+    private static final long SIZE = 100 * 100 * 4;
+
+    private FakePool pool;
+
+    @Before
+    public void setUp() {
+        pool = new FakePool();
+    }
+
+    @Test
+    public void releasedFramebufferIsReusedForTheSameSizeAndFormat() {
+        Framebuffer first = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(first);
+        assertSame(first, pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA));
+        assertEquals(1, pool.created.size());
+    }
+
+    @Test
+    public void otherSizeOrFormatGetsANewFramebuffer() {
+        Framebuffer first = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(first);
+        assertNotSame(first, pool.acquire(100, 50, FramebufferPool.FORMAT_RGBA));
+        assertNotSame(first, pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA_DEPTH));
+        assertEquals(SIZE + 100 * 50 * 4 + 100 * 100 * 6, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void retainedFramebufferIsNotHandedOutUntilTheLastRelease() {
+        Framebuffer first = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.retain(first);
+        pool.release(first);
+        Framebuffer second = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        assertNotSame(first, second);
+
+        pool.release(first);
+        assertSame(first, pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA));
+    }
+
+    @Test
+    public void extraReleaseIsIgnored() {
+        Framebuffer first = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(first);
+        pool.release(first);
+        assertSame(first, pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA));
+        assertNotSame(first, pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainAfterReleaseFails() {
+        Framebuffer first = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(first);
+        pool.retain(first);
+    }
+
+    @Test
+    public void idleFramebuffersAreTrimmedLeastRecentlyReleasedFirst() {
+        pool.setBudgetBytes(2 * SIZE);
+        Framebuffer a = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        Framebuffer b = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(b);
+        pool.release(a);
+        assertEquals(2 * SIZE, pool.getAllocatedBytes());
+
+        // A third one goes over the budget, b has been idle the longest
+        Framebuffer c = pool.acquire(50, 200, FramebufferPool.FORMAT_RGBA);
+        assertTrue(isDeleted(b));
+        assertFalse(isDeleted(a));
+        assertFalse(isDeleted(c));
+        assertEquals(2 * SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void framebuffersInUseAreNeverTrimmed() {
+        pool.setBudgetBytes(SIZE);
+        Framebuffer a = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        Framebuffer b = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        assertEquals(2 * SIZE, pool.getAllocatedBytes());
+        assertFalse(isDeleted(a));
+        assertFalse(isDeleted(b));
+
+        pool.release(a);
+        assertTrue(isDeleted(a));
+        assertEquals(SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void loweringTheBudgetTrimsRightAway() {
+        Framebuffer a = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        Framebuffer b = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(a);
+        pool.release(b);
+        pool.setBudgetBytes(SIZE);
+        assertTrue(isDeleted(a));
+        assertFalse(isDeleted(b));
+        assertEquals(SIZE, pool.getBudgetBytes());
+    }
+
+    @Test
+    public void clearDeletesOnlyIdleFramebuffers() {
+        Framebuffer a = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        Framebuffer b = pool.acquire(100, 100, FramebufferPool.FORMAT_RGBA);
+        pool.release(a);
+        pool.clear();
+        assertTrue(isDeleted(a));
+        assertFalse(isDeleted(b));
+        assertEquals(SIZE, pool.getAllocatedBytes());
+    }
+
+    private static boolean isDeleted(Framebuffer framebuffer) {
+        return ((FakeFramebuffer) framebuffer).deleted;
+    }
+
+    private static class FakePool extends FramebufferPool {
+
+        final List<Framebuffer> created = new ArrayList<>();
+
+        @Override
+        Framebuffer create(int width, int height, int format) {
+            Framebuffer framebuffer = new FakeFramebuffer(width, height, format);
+            created.add(framebuffer);
+            return framebuffer;
+        }
+    }
+
+    private static class FakeFramebuffer extends Framebuffer {
+
+        boolean deleted;
+
+        FakeFramebuffer(int width, int height, int format) {
+            super(width, height, format);
+        }
+
+        @Override
+        void delete() {
+            deleted = true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.malmstein.fenster.renderer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GlResourceTrackerTest {
+
+    private final Object context = new Object();
+    private final Object otherContext = new Object();
+    private final Object pool = new Object();
+    private final Object renderer = new Object();
+
+    @Before
+    public void setUp() {
+        GlResourceTracker.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        GlResourceTracker.setEnabled(false);
+    }
+
+    @Test
+    public void trackedObjectsAddUpUntilDeleted() {
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 1, 400, renderer, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 2, 100, renderer, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, 1, 64, pool, context);
+        assertEquals(2, GlResourceTracker.getLiveCount(GlResourceTracker.TEXTURE));
+        assertEquals(500, GlResourceTracker.getLiveBytes(GlResourceTracker.TEXTURE));
+        assertEquals(564, GlResourceTracker.getLiveBytes());
+
+        GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, 1, context);
+        assertEquals(1, GlResourceTracker.getLiveCount(GlResourceTracker.TEXTURE));
+        assertEquals(164, GlResourceTracker.getLiveBytes());
+    }
+
+    @Test
+    public void updateReplacesTheEstimate() {
+        GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, 3, 0, renderer, context);
+        GlResourceTracker.updateGlObject(GlResourceTracker.BUFFER, 3, 2048, context);
+        assertEquals(2048, GlResourceTracker.getLiveBytes(GlResourceTracker.BUFFER));
+        // Unknown objects are not added
+        GlResourceTracker.updateGlObject(GlResourceTracker.BUFFER, 4, 2048, context);
+        assertEquals(1, GlResourceTracker.getLiveCount(GlResourceTracker.BUFFER));
+    }
+
+    @Test
+    public void namesAreKeptApartPerContext() {
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 1, 100, renderer, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 1, 200, renderer, otherContext);
+        GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, 1, context);
+        assertEquals(200, GlResourceTracker.getLiveBytes(GlResourceTracker.TEXTURE));
+    }
+
+    @Test
+    public void releasedContextIsForgottenAndItsOrphansCountedAsLeaks() {
+        GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, 1, 64, pool, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.FRAMEBUFFER, 1, 0, pool, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 5, 400, renderer, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 5, 300, renderer, otherContext);
+
+        assertEquals(1, GlResourceTracker.releaseContext(context, pool));
+        assertEquals(0, GlResourceTracker.getLiveCount(GlResourceTracker.BUFFER));
+        assertEquals(0, GlResourceTracker.getLiveCount(GlResourceTracker.FRAMEBUFFER));
+        assertEquals(1, GlResourceTracker.getLiveCount(GlResourceTracker.TEXTURE));
+        assertEquals(300, GlResourceTracker.getLiveBytes());
+
+        assertEquals(0, GlResourceTracker.releaseContext(context, pool));
+    }
+
+    @Test
+    public void leaksAreReportedPerOwner() {
+        Object surface = new Object();
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 1, 400, renderer, context);
+        GlResourceTracker.trackGlObject(GlResourceTracker.BUFFER, 1, 64, pool, context);
+        GlResourceTracker.trackSurface(GlResourceTracker.SURFACE_TEXTURE, surface, renderer);
+        assertEquals(2, GlResourceTracker.reportLeaks(renderer));
+
+        GlResourceTracker.untrackGlObject(GlResourceTracker.TEXTURE, 1, context);
+        GlResourceTracker.untrackSurface(surface);
+        assertEquals(0, GlResourceTracker.reportLeaks(renderer));
+        assertEquals(1, GlResourceTracker.reportLeaks(pool));
+    }
+
+    @Test
+    public void nothingIsRecordedWhileDisabled() {
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 1, 400, renderer, context);
+        GlResourceTracker.setEnabled(false);
+        assertEquals(0, GlResourceTracker.getLiveCount(GlResourceTracker.TEXTURE));
+        GlResourceTracker.trackGlObject(GlResourceTracker.TEXTURE, 2, 400, renderer, context);
+        GlResourceTracker.trackSurface(GlResourceTracker.SURFACE, new Object(), renderer);
+        assertEquals(0, GlResourceTracker.getLiveBytes());
+        assertEquals(0, GlResourceTracker.getLiveCount(GlResourceTracker.SURFACE));
+        assertEquals(0, GlResourceTracker.releaseContext(context));
+    }
+}
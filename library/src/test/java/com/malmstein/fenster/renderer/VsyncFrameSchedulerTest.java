@@ -0,0 +1,116 @@
+package com.malmstein.fenster.renderer;
+
+import android.view.Choreographer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VsyncFrameSchedulerTest {
+
+    private static final long START = 1000000000L;
+    private static final long VSYNC_60 = 16666667L;
+    private static final long VSYNC_120 = 8333333L;
+
+    private FakeClock clock;
+    private FakeVsyncSource vsyncSource;
+    private VsyncFrameScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock(START);
+        vsyncSource = new FakeVsyncSource();
+        scheduler = new VsyncFrameScheduler(clock, vsyncSource);
+    }
+
+    @Test
+    public void returnsTheVsyncTime() throws InterruptedException {
+        vsyncSource.vsyncs.add(START + 5000000L);
+        assertEquals(START + 5000000L, scheduler.awaitNextFrame());
+        assertEquals(1, vsyncSource.requests);
+    }
+
+    @Test
+    public void defaultsTo60HzBeforeAnyVsync() {
+        assertEquals(FrameScheduler.DEFAULT_FRAME_INTERVAL_NANOS, scheduler.getFrameIntervalNanos());
+    }
+
+    @Test
+    public void measuresTheRefreshInterval() throws InterruptedException {
+        deliverVsyncs(START, VSYNC_120, 4);
+        assertEquals(VSYNC_120, scheduler.getFrameIntervalNanos());
+    }
+
+    @Test
+    public void skippedVsyncsDoNotInflateTheInterval() throws InterruptedException {
+        deliverVsyncs(START, VSYNC_60, 3);
+        // An idle loop comes back several vsyncs later
+        vsyncSource.vsyncs.add(START + 2 * VSYNC_60 + 5 * VSYNC_60);
+        scheduler.awaitNextFrame();
+        assertEquals(VSYNC_60, scheduler.getFrameIntervalNanos());
+    }
+
+    @Test
+    public void followsARefreshRateSwitchOnceTheWindowHasPassed() throws InterruptedException {
+        long last = deliverVsyncs(START, VSYNC_60, 20);
+        deliverVsyncs(last + VSYNC_120, VSYNC_120, 2);
+        assertEquals(VSYNC_120, scheduler.getFrameIntervalNanos());
+
+        last = deliverVsyncs(START + 10000000000L, VSYNC_120, 20);
+        deliverVsyncs(last + VSYNC_60, VSYNC_60, 20);
+        assertEquals(VSYNC_60, scheduler.getFrameIntervalNanos());
+    }
+
+    @Test
+    public void fallsBackToTheClockWhenVsyncStops() throws InterruptedException {
+        clock.setAutoAdvance(60000000L);
+        long frameTime = scheduler.awaitNextFrame();
+        assertTrue(frameTime - START >= VsyncFrameScheduler.VSYNC_TIMEOUT_NANOS);
+        assertTrue(frameTime - START < 2 * VsyncFrameScheduler.VSYNC_TIMEOUT_NANOS);
+    }
+
+    @Test
+    public void releaseCancelsThePendingVsync() {
+        scheduler.release();
+        assertEquals(1, vsyncSource.cancellations);
+    }
+
+    /**
+     * @return time of the last vsync delivered
+     */
+    private long deliverVsyncs(long first, long interval, int count) throws InterruptedException {
+        long time = first;
+        for (int i = 0; i < count; i++) {
+            time = first + i * interval;
+            vsyncSource.vsyncs.add(time);
+            scheduler.awaitNextFrame();
+        }
+        return time;
+    }
+
+    private static class FakeVsyncSource implements VsyncFrameScheduler.VsyncSource {
+
+        final Queue<Long> vsyncs = new ArrayDeque<>();
+        int requests;
+        int cancellations;
+
+        @Override
+        public void requestVsync(Choreographer.FrameCallback callback) {
+            requests++;
+            Long vsync = vsyncs.poll();
+            if (vsync != null) {
+                callback.doFrame(vsync);
+            }
+        }
+
+        @Override
+        public void cancelVsync(Choreographer.FrameCallback callback) {
+            cancellations++;
+        }
+    }
+}
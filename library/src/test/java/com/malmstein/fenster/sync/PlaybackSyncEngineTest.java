@@ -0,0 +1,301 @@
+package com.malmstein.fenster.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackSyncEngineTest {
+
+    private static final float DELTA = 1e-6f;
+
+    private FakeClock clock;
+    private FakePlayer reference;
+    private FakePlayer player;
+    private PlaybackSyncEngine engine;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        reference = new FakePlayer(60000);
+        player = new FakePlayer(60000);
+        engine = new PlaybackSyncEngine(clock);
+        engine.setPlayers(Arrays.asList(reference, player));
+        engine.start(1000);
+        // Past the settle time of the initial seek
+        advance(PlaybackSyncEngine.SEEK_SETTLE_MS);
+        player.seeks.clear();
+        reference.seeks.clear();
+    }
+
+    @Test
+    public void startSeeksAndStartsEveryPlayer() {
+        FakePlayer other = new FakePlayer(60000);
+        engine.setPlayers(Arrays.asList(other));
+        engine.start(2500);
+        assertEquals(Arrays.asList(2500), other.seeks);
+        assertTrue(other.playing);
+        assertEquals(2500, engine.getMasterPosition());
+    }
+
+    @Test
+    public void masterPositionFollowsTheClock() {
+        assertEquals(1000 + PlaybackSyncEngine.SEEK_SETTLE_MS, engine.getMasterPosition());
+    }
+
+    @Test
+    public void driftWithinToleranceIsLeftAlone() {
+        player.position = engine.getMasterPosition() + PlaybackSyncEngine.TOLERANCE_MS;
+        engine.correct();
+        assertTrue(player.speeds.isEmpty());
+        assertTrue(player.seeks.isEmpty());
+    }
+
+    @Test
+    public void smallDriftIsCaughtUpThroughSpeed() {
+        player.position = engine.getMasterPosition() + 100;
+        engine.correct();
+        assertEquals(1f - 100f / PlaybackSyncEngine.CATCH_UP_MS, player.speed, DELTA);
+
+        player.position = engine.getMasterPosition() - 60;
+        engine.correct();
+        assertEquals(1f + 60f / PlaybackSyncEngine.CATCH_UP_MS, player.speed, DELTA);
+        assertTrue(player.seeks.isEmpty());
+    }
+
+    @Test
+    public void speedAdjustmentIsBounded() {
+        player.position = engine.getMasterPosition() + PlaybackSyncEngine.RESYNC_THRESHOLD_MS - 1;
+        engine.correct();
+        assertEquals(1f - PlaybackSyncEngine.MAX_SPEED_ADJUSTMENT, player.speed, DELTA);
+        assertTrue(player.seeks.isEmpty());
+    }
+
+    @Test
+    public void speedRampsBackToNormalAsTheDriftShrinks() {
+        player.position = engine.getMasterPosition() + 200;
+        engine.correct();
+        assertEquals(1f - PlaybackSyncEngine.MAX_SPEED_ADJUSTMENT, player.speed, DELTA);
+
+        player.position = engine.getMasterPosition() + 80;
+        engine.correct();
+        assertEquals(1f - 80f / PlaybackSyncEngine.CATCH_UP_MS, player.speed, DELTA);
+
+        // Less than MIN_SPEED_CHANGE away from the current speed, not worth a change
+        player.position = engine.getMasterPosition() + 75;
+        engine.correct();
+        assertEquals(1f - 80f / PlaybackSyncEngine.CATCH_UP_MS, player.speed, DELTA);
+
+        player.position = engine.getMasterPosition() + 10;
+        engine.correct();
+        assertEquals(1f, player.speed, DELTA);
+        assertEquals(3, player.speeds.size());
+    }
+
+    @Test
+    public void largeDriftIsResyncedBySeeking() {
+        player.position = engine.getMasterPosition() + 100;
+        engine.correct();
+        int master = engine.getMasterPosition();
+        player.position = master - PlaybackSyncEngine.RESYNC_THRESHOLD_MS;
+        engine.correct();
+        assertEquals(Arrays.asList(master), player.seeks);
+        assertEquals(1f, player.speed, DELTA);
+    }
+
+    @Test
+    public void positionsAreIgnoredUntilASeekHasSettled() {
+        player.position = engine.getMasterPosition() + 1000;
+        engine.correct();
+        assertEquals(1, player.seeks.size());
+
+        // Still reporting the old position
+        advance(PlaybackSyncEngine.SEEK_SETTLE_MS - 1);
+        engine.correct();
+        assertEquals(1, player.seeks.size());
+
+        advance(1);
+        engine.correct();
+        assertEquals(2, player.seeks.size());
+    }
+
+    @Test
+    public void playersWithoutSpeedControlAreOnlyCorrectedBySeeking() {
+        player.speedSupported = false;
+        player.position = engine.getMasterPosition() + 100;
+        engine.correct();
+        assertTrue(player.seeks.isEmpty());
+
+        player.position = engine.getMasterPosition() + PlaybackSyncEngine.SEEK_ONLY_THRESHOLD_MS - 1;
+        engine.correct();
+        assertTrue(player.seeks.isEmpty());
+        // Not asked again once it refused
+        assertEquals(1, player.speeds.size());
+
+        int master = engine.getMasterPosition();
+        player.position = master + PlaybackSyncEngine.SEEK_ONLY_THRESHOLD_MS;
+        engine.correct();
+        assertEquals(Arrays.asList(master), player.seeks);
+        assertEquals(1, player.speeds.size());
+    }
+
+    @Test
+    public void playersNotPlayingAreSkipped() {
+        player.playing = false;
+        player.position = 0;
+        engine.correct();
+        assertTrue(player.seeks.isEmpty());
+        assertTrue(player.speeds.isEmpty());
+    }
+
+    @Test
+    public void pauseFreezesTheMasterAndResumeSeeksBackToIt() {
+        player.position = engine.getMasterPosition() + 100;
+        engine.correct();
+        int master = engine.getMasterPosition();
+        engine.pause();
+        assertFalse(player.playing);
+        assertEquals(1f, player.speed, DELTA);
+
+        advance(5000);
+        assertEquals(master, engine.getMasterPosition());
+        engine.resume();
+        assertTrue(player.playing);
+        assertEquals(Arrays.asList(master), player.seeks);
+    }
+
+    @Test
+    public void loopingPlayersAreComparedWithinTheirDuration() {
+        FakePlayer looping = new FakePlayer(10000);
+        engine.setPlayers(Arrays.asList(looping));
+        engine.setLooping(true);
+        engine.start(0);
+        advance(25000);
+
+        looping.position = 5050;
+        engine.correct();
+        assertEquals(1, looping.seeks.size());
+        assertEquals(1f - 50f / PlaybackSyncEngine.CATCH_UP_MS, looping.speed, DELTA);
+    }
+
+    @Test
+    public void loopPointIsCrossedTheShortWay() {
+        FakePlayer looping = new FakePlayer(10000);
+        engine.setPlayers(Arrays.asList(looping));
+        engine.setLooping(true);
+        engine.start(9000);
+        advance(PlaybackSyncEngine.SEEK_SETTLE_MS);
+        looping.seeks.clear();
+
+        // The master wrapped to 10, the player is slightly behind before its own wrap
+        advance(10010 - engine.getMasterPosition());
+        looping.position = 9950;
+        engine.correct();
+        assertTrue(looping.seeks.isEmpty());
+        assertEquals(1f + 60f / PlaybackSyncEngine.CATCH_UP_MS, looping.speed, DELTA);
+
+        // And the other way, the player already wrapped while the master has not
+        advance(19990 - engine.getMasterPosition());
+        looping.position = 50;
+        engine.correct();
+        assertTrue(looping.seeks.isEmpty());
+        assertEquals(1f - 60f / PlaybackSyncEngine.CATCH_UP_MS, looping.speed, DELTA);
+    }
+
+    @Test
+    public void resumeWrapsTheMasterForLoopingPlayers() {
+        FakePlayer looping = new FakePlayer(10000);
+        engine.setPlayers(Arrays.asList(looping));
+        engine.setLooping(true);
+        engine.start(0);
+        advance(23000);
+        engine.pause();
+        looping.seeks.clear();
+        engine.resume();
+        assertEquals(Arrays.asList(3000), looping.seeks);
+    }
+
+    @Test
+    public void catchUpSpeedIsBounded() {
+        assertEquals(1f, PlaybackSyncEngine.catchUpSpeed(0), DELTA);
+        assertEquals(1f + PlaybackSyncEngine.MAX_SPEED_ADJUSTMENT, PlaybackSyncEngine.catchUpSpeed(-100000), DELTA);
+        assertEquals(1f - PlaybackSyncEngine.MAX_SPEED_ADJUSTMENT, PlaybackSyncEngine.catchUpSpeed(100000), DELTA);
+    }
+
+    private void advance(long ms) {
+        clock.timeMs += ms;
+        reference.position = engine.getMasterPosition();
+    }
+
+    private static class FakeClock implements PlaybackSyncEngine.Clock {
+
+        long timeMs = 100000;
+
+        @Override
+        public long currentTimeMs() {
+            return timeMs;
+        }
+    }
+
+    private static class FakePlayer implements PlaybackSyncEngine.Player {
+
+        final int duration;
+        int position;
+        boolean playing;
+        boolean speedSupported = true;
+        float speed = 1f;
+        final List<Integer> seeks = new ArrayList<>();
+        final List<Float> speeds = new ArrayList<>();
+
+        FakePlayer(int duration) {
+            this.duration = duration;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return position;
+        }
+
+        @Override
+        public int getDuration() {
+            return duration;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return playing;
+        }
+
+        @Override
+        public void start() {
+            playing = true;
+        }
+
+        @Override
+        public void pause() {
+            playing = false;
+        }
+
+        @Override
+        public void seekTo(int positionMs) {
+            seeks.add(positionMs);
+            position = positionMs;
+        }
+
+        @Override
+        public boolean setSpeed(float speed) {
+            speeds.add(speed);
+            if (!speedSupported) {
+                return false;
+            }
+            this.speed = speed;
+            return true;
+        }
+    }
+}
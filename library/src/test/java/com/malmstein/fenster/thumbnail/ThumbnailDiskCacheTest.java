@@ -0,0 +1,103 @@
+package com.malmstein.fenster.thumbnail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailDiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private ThumbnailDiskCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("thumbnails");
+        cache = new ThumbnailDiskCache(directory, 250);
+    }
+
+    @Test
+    public void storedSheetsStayWithinTheBudget() throws IOException {
+        store("a", 100, 1000);
+        store("b", 100, 2000);
+        assertTrue(cache.fileFor("a").exists());
+        assertTrue(cache.fileFor("b").exists());
+
+        store("c", 100, 3000);
+        assertFalse(cache.fileFor("a").exists());
+        assertTrue(cache.fileFor("b").exists());
+        assertTrue(cache.fileFor("c").exists());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsDeletedFirst() throws IOException {
+        store("a", 100, 1000);
+        store("b", 100, 2000);
+        // Reading a sheet marks it as used
+        assertTrue(cache.fileFor("a").setLastModified(5000000));
+
+        store("c", 100, 3000);
+        assertTrue(cache.fileFor("a").exists());
+        assertFalse(cache.fileFor("b").exists());
+    }
+
+    @Test
+    public void filesFromEarlierRunsCountAgainstTheBudget() throws IOException {
+        write(cache.fileFor("old1"), 100, 1000);
+        write(cache.fileFor("old2"), 100, 2000);
+        ThumbnailDiskCache reopened = new ThumbnailDiskCache(directory, 250);
+
+        File temporary = new File(directory, "new.tmp");
+        write(temporary, 100, 3000);
+        reopened.store("new", temporary);
+        assertFalse(reopened.fileFor("old1").exists());
+        assertTrue(reopened.fileFor("old2").exists());
+        assertTrue(reopened.fileFor("new").exists());
+    }
+
+    @Test
+    public void replacingASheetDoesNotCountItTwice() throws IOException {
+        store("a", 100, 1000);
+        store("b", 100, 2000);
+        store("b", 100, 3000);
+        store("b", 100, 4000);
+        assertTrue(cache.fileFor("a").exists());
+        assertTrue(cache.fileFor("b").exists());
+        assertFalse(new File(directory, "b.tmp").exists());
+    }
+
+    @Test
+    public void sheetLargerThanTheBudgetIsNotKept() throws IOException {
+        store("a", 100, 1000);
+        store("huge", 300, 2000);
+        assertFalse(cache.fileFor("a").exists());
+        assertFalse(cache.fileFor("huge").exists());
+    }
+
+    private void store(String key, int bytes, long lastModified) throws IOException {
+        File temporary = new File(directory, key + ".tmp");
+        write(temporary, bytes, lastModified);
+        cache.store(key, temporary);
+    }
+
+    private static void write(File file, int bytes, long lastModified) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,73 @@
+package com.malmstein.fenster.thumbnail;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailEngineTest {
+
+    private static final long INTERVAL = 5000;
+
+    @Test
+    public void positionMapsToTheThumbnailAtOrBeforeIt() {
+        assertEquals(0, ThumbnailEngine.thumbnailIndexOf(0, INTERVAL));
+        assertEquals(0, ThumbnailEngine.thumbnailIndexOf(4999, INTERVAL));
+        assertEquals(1, ThumbnailEngine.thumbnailIndexOf(5000, INTERVAL));
+        assertEquals(0, ThumbnailEngine.thumbnailIndexOf(-300, INTERVAL));
+    }
+
+    @Test
+    public void thumbnailsFillSheetsRowByRow() {
+        int perSheet = ThumbnailEngine.TILES_PER_SHEET;
+        assertEquals(0, ThumbnailEngine.sheetIndexOf(perSheet - 1));
+        assertEquals(perSheet - 1, ThumbnailEngine.tileOf(perSheet - 1));
+        assertEquals(1, ThumbnailEngine.sheetIndexOf(perSheet));
+        assertEquals(0, ThumbnailEngine.tileOf(perSheet));
+        assertEquals(3, ThumbnailEngine.sheetIndexOf(3L * perSheet + 7));
+        assertEquals(7, ThumbnailEngine.tileOf(3L * perSheet + 7));
+    }
+
+    @Test
+    public void tileBoundsFollowTheGrid() {
+        int columns = ThumbnailEngine.COLUMNS;
+        assertEquals(0, ThumbnailEngine.tileLeft(0, 160));
+        assertEquals(0, ThumbnailEngine.tileTop(0, 90));
+        assertEquals((columns - 1) * 160, ThumbnailEngine.tileLeft(columns - 1, 160));
+        assertEquals(0, ThumbnailEngine.tileTop(columns - 1, 90));
+        assertEquals(0, ThumbnailEngine.tileLeft(columns, 160));
+        assertEquals(90, ThumbnailEngine.tileTop(columns, 90));
+        int last = ThumbnailEngine.TILES_PER_SHEET - 1;
+        assertEquals((columns - 1) * 160, ThumbnailEngine.tileLeft(last, 160));
+        assertEquals((ThumbnailEngine.ROWS - 1) * 90, ThumbnailEngine.tileTop(last, 90));
+    }
+
+    @Test
+    public void onlyTheLastRowPrefetchesTheNextSheet() {
+        int firstOfLastRow = ThumbnailEngine.TILES_PER_SHEET - ThumbnailEngine.COLUMNS;
+        assertFalse(ThumbnailEngine.isInLastRow(firstOfLastRow - 1));
+        assertTrue(ThumbnailEngine.isInLastRow(firstOfLastRow));
+        assertTrue(ThumbnailEngine.isInLastRow(ThumbnailEngine.TILES_PER_SHEET - 1));
+    }
+
+    @Test
+    public void sheetStartsAtItsFirstThumbnail() {
+        assertEquals(0, ThumbnailEngine.sheetStartMs(0, INTERVAL));
+        long start = ThumbnailEngine.sheetStartMs(2, INTERVAL);
+        assertEquals(2 * ThumbnailEngine.TILES_PER_SHEET * INTERVAL, start);
+        long index = ThumbnailEngine.thumbnailIndexOf(start, INTERVAL);
+        assertEquals(2, ThumbnailEngine.sheetIndexOf(index));
+        assertEquals(0, ThumbnailEngine.tileOf(index));
+    }
+
+    @Test
+    public void longVideosDoNotOverflow() {
+        // Ten days at one thumbnail per second
+        long positionMs = 10L * 24 * 3600 * 1000;
+        long index = ThumbnailEngine.thumbnailIndexOf(positionMs, 1000);
+        int sheet = ThumbnailEngine.sheetIndexOf(index);
+        assertEquals(positionMs, ThumbnailEngine.sheetStartMs(sheet, 1000)
+                + ThumbnailEngine.tileOf(index) * 1000L);
+    }
+}